@@ -53,4 +53,23 @@ public interface AbstractSinkRecord {
    * @return the topic name.
    */
   public String topic();
+
+  /**
+   * Partition of the topic that contained the message, if the underlying system has one. It is used
+   * together with {@link #offset()} to track which records have been fully processed.
+   *
+   * @return the partition, or null if unknown.
+   */
+  public default Integer partition() {
+    return null;
+  }
+
+  /**
+   * Position of the message in its partition, if the underlying system has one.
+   *
+   * @return the offset, or null if unknown.
+   */
+  public default Long offset() {
+    return null;
+  }
 }
@@ -31,19 +31,23 @@ import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting
 import com.datastax.oss.driver.shaded.guava.common.util.concurrent.ThreadFactoryBuilder;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,11 +59,25 @@ import org.slf4j.LoggerFactory;
 public abstract class AbstractSinkTask {
   private static final Runnable NO_OP = () -> {};
   private static final Logger log = LoggerFactory.getLogger(AbstractSinkTask.class);
+  // One thread per batching shard; threads are reused across calls to put().
   private final ExecutorService boundStatementProcessorService =
-      Executors.newFixedThreadPool(
-          1, new ThreadFactoryBuilder().setNameFormat("bound-statement-processor-%d").build());
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("bound-statement-processor-%d").build());
   private InstanceState instanceState;
   private TaskStateManager taskStateManager;
+  private final FailureReporter failureReporter = new FailureReporter(this::deliverFailures);
+
+  // Long-lived statement processor, only used when batchLingerMs or asyncPut is enabled.
+  private ShardedBoundStatementProcessor persistentProcessor;
+  private CompletableFuture<Void> persistentProcessorTask;
+  private Set<CompletionStage<? extends AsyncResultSet>> persistentQueryFutures;
+
+  // One bounded queue per batching shard, reused by every processor of this task.
+  private List<BlockingQueue<RecordAndStatement>> statementQueues;
+
+  // Only used when asyncPut is enabled.
+  private OffsetWatermarkTracker offsetTracker;
+  private Set<CompletableFuture<Void>> pendingMappings;
 
   public void start(Map<String, String> props) {
     log.debug("CassandraSinkTask starting with props: {}", props);
@@ -70,6 +88,10 @@ public abstract class AbstractSinkTask {
   /**
    * Entry point for record processing.
    *
+   * <p>When {@code asyncPut} is enabled, this method returns as soon as the records have been
+   * handed over for processing; use {@link #getProcessedOffsets()} and {@link #waitForOffsets(Map)}
+   * to know which offsets may be committed.
+   *
    * @param sinkRecords collection of {@link AbstractSinkRecord}s to process
    */
   public final void put(Collection<AbstractSinkRecord> sinkRecords) {
@@ -83,34 +105,37 @@ public abstract class AbstractSinkTask {
     taskStateManager.waitRunTransitionLogic(
         () -> {
           // failureOffsets.clear();
+          // Failures of the records of previous calls may not have been handled.
+          failureReporter.rethrowError();
           beforeProcessingBatch();
 
+          if (instanceState.isAsyncPut()) {
+            submitRecords(getPersistentProcessor(), sinkRecords);
+            return;
+          }
+
+          if (instanceState.getBatchLingerMs() > 0) {
+            // Hand the statements over to the long-lived processor; it executes them once their
+            // batch is full, once it has lingered long enough or on the next flush().
+            mapAndQueueRecords(getPersistentProcessor(), sinkRecords);
+            failureReporter.rethrowError();
+            return;
+          }
+
           Instant start = Instant.now();
-          List<CompletableFuture<Void>> mappingFutures;
           Collection<CompletionStage<? extends AsyncResultSet>> queryFutures =
               new ConcurrentLinkedQueue<>();
-          BlockingQueue<RecordAndStatement> boundStatementsQueue = new LinkedBlockingQueue<>();
-          BoundStatementProcessor boundStatementProcessor =
-              new BoundStatementProcessor(
-                  this,
-                  boundStatementsQueue,
-                  queryFutures,
-                  instanceState.getMaxNumberOfRecordsInBatch());
+          ShardedBoundStatementProcessor boundStatementProcessor =
+              new ShardedBoundStatementProcessor(
+                  getStatementQueues(),
+                  queue ->
+                      new BoundStatementProcessor(
+                          this, queue, queryFutures, instanceState.getMaxNumberOfRecordsInBatch()));
           try {
             Future<?> boundStatementProcessorTask =
-                boundStatementProcessorService.submit(boundStatementProcessor);
-            mappingFutures =
-                sinkRecords
-                    .stream()
-                    .map(
-                        record ->
-                            CompletableFuture.runAsync(
-                                () -> mapAndQueueRecord(boundStatementsQueue, record),
-                                instanceState.getMappingExecutor()))
-                    .collect(Collectors.toList());
-
+                boundStatementProcessor.start(boundStatementProcessorService);
             try {
-              CompletableFuture.allOf(mappingFutures.toArray(new CompletableFuture[0])).join();
+              mapAndQueueRecords(boundStatementProcessor, sinkRecords);
             } finally {
               boundStatementProcessor.stop();
             }
@@ -122,15 +147,7 @@ public abstract class AbstractSinkTask {
                   e);
             }
             log.debug("Query futures: {}", queryFutures.size());
-            for (CompletionStage<? extends AsyncResultSet> f : queryFutures) {
-              try {
-                f.toCompletableFuture().get();
-              } catch (ExecutionException e) {
-                log.error(
-                    "Problem when getting queryFuture. This is likely a bug in the connector, please report.",
-                    e);
-              }
-            }
+            waitForQueryFutures(queryFutures);
 
             Instant end = Instant.now();
             long ms = Duration.between(start, end).toMillis();
@@ -139,29 +156,318 @@ public abstract class AbstractSinkTask {
                 boundStatementProcessor.getSuccessfulRecordCount(),
                 sinkRecords.size(),
                 ms);
+            failureReporter.rethrowError();
           } catch (InterruptedException e) {
             boundStatementProcessor.stop();
-            queryFutures.forEach(
-                f -> {
-                  f.toCompletableFuture().cancel(true);
-                  try {
-                    f.toCompletableFuture().get();
-                  } catch (InterruptedException | ExecutionException | CancellationException ex) {
-                    log.warn("Problem when interrupting completableFuture", ex);
-                  }
-                });
-
+            // The processor may still be draining its queues; don't share them with the next one.
+            discardStatementQueues();
+            cancelQueryFutures(queryFutures);
             throw new RuntimeException("Interrupted while issuing queries", e);
           }
         });
   }
 
+  /**
+   * Commit barrier: execute every statement group kept open because of {@code batchLingerMs} or
+   * {@code asyncPut} and wait for all in-flight queries to complete. When one of these settings is
+   * enabled, records given to {@link #put(Collection)} are only guaranteed to be written (or
+   * reported as failed) once this method returns. It is a no-op otherwise.
+   */
+  public final void flush() {
+    if (persistentProcessor == null) {
+      return;
+    }
+    taskStateManager.waitRunTransitionLogic(
+        () -> {
+          try {
+            waitForPendingMappings();
+            flushPersistentProcessor();
+            waitForQueryFutures(new ArrayList<>(persistentQueryFutures));
+          } catch (InterruptedException e) {
+            cancelQueryFutures(persistentQueryFutures);
+            throw new RuntimeException("Interrupted while flushing queries", e);
+          }
+          failureReporter.rethrowError();
+        });
+  }
+
+  /**
+   * Returns, for each topic partition, the highest offset such that every record given to {@link
+   * #put(Collection)} at or below it has been processed, either written or reported to {@link
+   * #handleFailure}. Only records exposing their {@link AbstractSinkRecord#partition() partition}
+   * and {@link AbstractSinkRecord#offset() offset} are tracked, and only when {@code asyncPut} is
+   * enabled.
+   *
+   * @return a map of topic to partition to offset, empty if nothing is tracked.
+   */
+  public final Map<String, Map<Integer, Long>> getProcessedOffsets() {
+    OffsetWatermarkTracker tracker = offsetTracker;
+    return tracker == null ? Collections.emptyMap() : tracker.getWatermarks();
+  }
+
+  /**
+   * Commit hook: wait until every record given to {@link #put(Collection)} with an offset lower
+   * than or equal to the given ones (for the same topic partition) has been processed. Records of
+   * other partitions, or with higher offsets, are not waited for. Pending statement groups are
+   * executed right away instead of lingering. Returns immediately when {@code asyncPut} is not
+   * enabled, since {@link #put(Collection)} is then synchronous.
+   *
+   * @param offsets a map of topic to partition to offset to be committed
+   */
+  public final void waitForOffsets(Map<String, Map<Integer, Long>> offsets) {
+    if (offsetTracker == null || offsets.isEmpty()) {
+      return;
+    }
+    taskStateManager.waitRunTransitionLogic(
+        () -> {
+          try {
+            waitForPendingMappings();
+            flushPersistentProcessor();
+            offsetTracker.awaitProcessed(offsets);
+          } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for offsets", e);
+          }
+          // The offsets of records whose failure could not be handled are not processed.
+          failureReporter.rethrowError();
+        });
+  }
+
+  /**
+   * Partition revocation hook: stop tracking the offsets of the given topic partitions, typically
+   * because the task closed them or lost them in a rebalance. Their offsets are no longer returned
+   * by {@link #getProcessedOffsets()}, and threads blocked in {@link #waitForOffsets(Map)} for them
+   * are released. Records of these partitions that are still being processed are written as usual.
+   *
+   * @param partitions a map of topic to partitions
+   */
+  public final void closePartitions(Map<String, ? extends Collection<Integer>> partitions) {
+    OffsetWatermarkTracker tracker = offsetTracker;
+    if (tracker != null) {
+      tracker.remove(partitions);
+    }
+  }
+
+  /**
+   * Report that one of the statements of the given record has been processed, successfully or not.
+   *
+   * @param record the record
+   */
+  final void recordProcessed(AbstractSinkRecord record) {
+    OffsetWatermarkTracker tracker = offsetTracker;
+    if (tracker != null) {
+      tracker.processed(record);
+    }
+  }
+
+  private void mapAndQueueRecords(
+      ShardedBoundStatementProcessor boundStatementProcessor,
+      Collection<AbstractSinkRecord> sinkRecords) {
+    mapAndQueueRecordsAsync(boundStatementProcessor, sinkRecords).join();
+  }
+
+  private CompletableFuture<Void> mapAndQueueRecordsAsync(
+      ShardedBoundStatementProcessor boundStatementProcessor,
+      Collection<AbstractSinkRecord> sinkRecords) {
+    List<CompletableFuture<Void>> mappingFutures =
+        sinkRecords
+            .stream()
+            .map(
+                record ->
+                    CompletableFuture.runAsync(
+                        () -> mapAndQueueRecord(boundStatementProcessor::offer, record),
+                        instanceState.getMappingExecutor()))
+            .collect(Collectors.toList());
+    return CompletableFuture.allOf(mappingFutures.toArray(new CompletableFuture[0]));
+  }
+
+  /** Map and queue the given records without waiting for them to be processed. */
+  private void submitRecords(
+      ShardedBoundStatementProcessor boundStatementProcessor,
+      Collection<AbstractSinkRecord> sinkRecords) {
+    // Register offsets in the order they were received, before any of them can complete.
+    for (AbstractSinkRecord record : sinkRecords) {
+      offsetTracker.register(record, countStatements(record));
+    }
+    CompletableFuture<Void> mapping = mapAndQueueRecordsAsync(boundStatementProcessor, sinkRecords);
+    pendingMappings.add(mapping);
+    boolean linger = instanceState.getBatchLingerMs() > 0;
+    // Fire and forget: waitForPendingMappings() waits for the mapping itself, and the failures of
+    // its records are reported by mapAndQueueRecord.
+    Future<?> unused =
+        mapping.whenComplete(
+            (v, e) -> {
+              pendingMappings.remove(mapping);
+              if (e != null) {
+                log.error(
+                    "Problem when mapping records. This is likely a bug in the connector, please report.",
+                    e);
+              }
+              if (!linger) {
+                // Without a linger time, groups must not wait for records of a future put().
+                // No need to wait for the flush: waitForOffsets() flushes again before waiting.
+                Future<?> unusedFlush = boundStatementProcessor.flush();
+              }
+            });
+  }
+
+  /**
+   * @return the number of statements the given record maps to, that is the number of times {@link
+   *     #recordProcessed(AbstractSinkRecord)} will be called for it.
+   */
+  private int countStatements(AbstractSinkRecord record) {
+    try {
+      return instanceState.getTopicConfig(record.topic()).getTableConfigs().size();
+    } catch (ConfigException e) {
+      // The record will be reported as failed once.
+      return 1;
+    }
+  }
+
+  private void waitForPendingMappings() throws InterruptedException {
+    if (pendingMappings == null) {
+      return;
+    }
+    for (CompletableFuture<Void> mapping : new ArrayList<>(pendingMappings)) {
+      try {
+        mapping.get();
+      } catch (ExecutionException e) {
+        // Already logged when the mapping completed.
+      }
+    }
+  }
+
+  /** Execute pending statement groups and wait until they have been handed to the driver. */
+  private void flushPersistentProcessor() throws InterruptedException {
+    CompletableFuture<Void> flushed = persistentProcessor.flush();
+    try {
+      CompletableFuture.anyOf(flushed, persistentProcessorTask).get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Bound statement processor failed", e.getCause());
+    }
+    if (!flushed.isDone()) {
+      throw new IllegalStateException(
+          "Bound statement processor terminated before flushing pending statements");
+    }
+  }
+
+  private ShardedBoundStatementProcessor getPersistentProcessor() {
+    if (persistentProcessor == null) {
+      persistentQueryFutures = ConcurrentHashMap.newKeySet();
+      ShardedBoundStatementProcessor boundStatementProcessor =
+          new ShardedBoundStatementProcessor(
+              getStatementQueues(),
+              queue ->
+                  new BoundStatementProcessor(
+                      this,
+                      queue,
+                      persistentQueryFutures,
+                      instanceState.getMaxNumberOfRecordsInBatch(),
+                      instanceState.getBatchLingerMs()));
+      if (instanceState.isAsyncPut()) {
+        offsetTracker = new OffsetWatermarkTracker();
+        pendingMappings = ConcurrentHashMap.newKeySet();
+      }
+      persistentProcessorTask =
+          boundStatementProcessor
+              .start(boundStatementProcessorService)
+              .whenComplete(
+                  (v, e) -> {
+                    if (e != null) {
+                      log.error(
+                          "Problem in boundStatementProcessorTask. This is likely a bug in the connector, please report.",
+                          e);
+                    }
+                  });
+      persistentProcessor = boundStatementProcessor;
+    }
+    return persistentProcessor;
+  }
+
+  private List<BlockingQueue<RecordAndStatement>> getStatementQueues() {
+    if (statementQueues == null) {
+      int shards = instanceState.getBatchingShards();
+      List<BlockingQueue<RecordAndStatement>> queues = new ArrayList<>(shards);
+      for (int i = 0; i < shards; i++) {
+        BlockingQueue<RecordAndStatement> queue =
+            new MpscRingBuffer<>(
+                instanceState.getStatementQueueCapacity(),
+                instanceState.getStatementQueueWaitStrategy());
+        instanceState.registerStatementQueue(queue);
+        queues.add(queue);
+      }
+      statementQueues = queues;
+    }
+    return statementQueues;
+  }
+
+  private void discardStatementQueues() {
+    if (statementQueues != null) {
+      statementQueues.forEach(instanceState::unregisterStatementQueue);
+      statementQueues = null;
+    }
+  }
+
+  private void stopPersistentProcessor() {
+    if (persistentProcessor == null) {
+      return;
+    }
+    try {
+      waitForPendingMappings();
+      // Execute the statements that are still pending before the session may be closed.
+      persistentProcessor.stop();
+      persistentProcessorTask.get();
+      waitForQueryFutures(new ArrayList<>(persistentQueryFutures));
+    } catch (ExecutionException e) {
+      log.warn("Problem when stopping boundStatementProcessorTask", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      persistentProcessor = null;
+      if (offsetTracker != null) {
+        offsetTracker.clear();
+        offsetTracker = null;
+      }
+    }
+  }
+
+  private static void waitForQueryFutures(
+      Collection<CompletionStage<? extends AsyncResultSet>> queryFutures)
+      throws InterruptedException {
+    for (CompletionStage<? extends AsyncResultSet> f : queryFutures) {
+      try {
+        f.toCompletableFuture().get();
+      } catch (ExecutionException e) {
+        log.error(
+            "Problem when getting queryFuture. This is likely a bug in the connector, please report.",
+            e);
+      }
+    }
+  }
+
+  private static void cancelQueryFutures(
+      Collection<CompletionStage<? extends AsyncResultSet>> queryFutures) {
+    queryFutures.forEach(
+        f -> {
+          f.toCompletableFuture().cancel(true);
+          try {
+            f.toCompletableFuture().get();
+          } catch (InterruptedException | ExecutionException | CancellationException ex) {
+            log.warn("Problem when interrupting completableFuture", ex);
+          }
+        });
+  }
+
   public final void stop() {
     if (taskStateManager == null) {
       return;
     }
     taskStateManager.toStopTransitionLogic(
-        NO_OP, () -> LifeCycleManager.stopTask(this.instanceState, this));
+        NO_OP,
+        () -> {
+          stopPersistentProcessor();
+          discardStatementQueues();
+          LifeCycleManager.stopTask(this.instanceState, this);
+        });
   }
 
   @VisibleForTesting
@@ -176,7 +482,8 @@ public abstract class AbstractSinkTask {
 
   /**
    * Map the given Kafka record based on its topic and the table mappings. Add result {@link
-   * BoundStatement}'s to the given queue for further processing.
+   * BoundStatement}'s to the given queue for further processing, waiting for space in it if needed;
+   * the record fails if the wait is interrupted.
    *
    * @param boundStatementsQueue the queue that processes {@link RecordAndStatement}'s
    * @param record the {@link AbstractSinkRecord} to map
@@ -184,36 +491,70 @@ public abstract class AbstractSinkTask {
   @VisibleForTesting
   public final void mapAndQueueRecord(
       BlockingQueue<RecordAndStatement> boundStatementsQueue, AbstractSinkRecord record) {
+    mapAndQueueRecord(
+        recordAndStatement -> {
+          try {
+            boundStatementsQueue.put(recordAndStatement);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing statement", e);
+          }
+        },
+        record);
+  }
+
+  private void mapAndQueueRecord(
+      Consumer<RecordAndStatement> boundStatementsQueue, AbstractSinkRecord record) {
     try {
       String topicName = record.topic();
       TopicConfig topicConfig = instanceState.getTopicConfig(topicName);
       if (topicConfig == null) {
         throw new ConfigException("Topic " + topicName + " is not configured");
       }
+      // Decode the record once, however many tables it is written to: the decoded record and its
+      // metadata are immutable and shared by every mapper.
+      KeyValueRecord keyValueRecord = null;
+      KeyValueRecordMetadata recordMetadata = null;
+      Exception decodingError = null;
+      try {
+        // JSON keys and values are only parsed as far as the mappings of the topic need.
+        InnerDataAndMetadata key =
+            MetadataCreator.makeMeta(
+                record.key(),
+                topicConfig.getMappedKeyFields(),
+                instanceState.getDoubleKeyFields(topicName));
+        InnerDataAndMetadata value =
+            MetadataCreator.makeMeta(
+                record.value(),
+                topicConfig.getMappedValueFields(),
+                instanceState.getDoubleValueFields(topicName));
+        Iterable<AbstractSinkRecordHeader> headers = record.headers();
+
+        keyValueRecord =
+            new KeyValueRecord(
+                key.getInnerData(), value.getInnerData(), record.timestamp(), headers);
+        recordMetadata =
+            new KeyValueRecordMetadata(
+                key.getInnerMetadata(), value.getInnerMetadata(), new HeadersDataMetadata(headers));
+      } catch (Exception ex) {
+        decodingError = ex;
+      }
       for (TableConfig tableConfig : topicConfig.getTableConfigs()) {
         Runnable failedRecordIncrement =
             () ->
                 instanceState.incrementFailedCounter(topicName, tableConfig.getKeyspaceAndTable());
         try {
-          InnerDataAndMetadata key = MetadataCreator.makeMeta(record.key());
-          InnerDataAndMetadata value = MetadataCreator.makeMeta(record.value());
-          Iterable<AbstractSinkRecordHeader> headers = record.headers();
-
-          KeyValueRecord keyValueRecord =
-              new KeyValueRecord(
-                  key.getInnerData(), value.getInnerData(), record.timestamp(), headers);
+          if (decodingError != null) {
+            // The record fails for each of its tables, as if each of them had decoded it.
+            throw decodingError;
+          }
           RecordMapper mapper = instanceState.getRecordMapper(tableConfig);
-          boundStatementsQueue.offer(
+          boundStatementsQueue.accept(
               new RecordAndStatement(
                   record,
                   tableConfig.getKeyspaceAndTable(),
                   mapper
-                      .map(
-                          new KeyValueRecordMetadata(
-                              key.getInnerMetadata(),
-                              value.getInnerMetadata(),
-                              new HeadersDataMetadata(headers)),
-                          keyValueRecord)
+                      .map(recordMetadata, keyValueRecord)
                       .setConsistencyLevel(tableConfig.getConsistencyLevel())));
         } catch (Exception ex) {
           // An IOException can theoretically happen when processing json data. But bad json
@@ -221,32 +562,79 @@ public abstract class AbstractSinkTask {
           // IO.
           // KAF-200: expand failure handling to all runtime and checked exceptions when parsing
           // and mapping records.
-          doHandleFailure(record, ex, null, failedRecordIncrement);
+          reportFailure(new RecordFailure(record, ex, null, failedRecordIncrement));
         }
       }
     } catch (Exception e) {
       // A KafkaException could occur if the record references an unknown topic.
       // Most likely this error can't occur in this application...but we try to protect ourselves
       // anyway just in case.
-      doHandleFailure(record, e, null, instanceState::incrementFailedWithUnknownTopicCounter);
+      reportFailure(
+          new RecordFailure(
+              record, e, null, instanceState::incrementFailedWithUnknownTopicCounter));
+    }
+  }
+
+  private void reportFailure(RecordFailure failure) {
+    reportFailures(Collections.singletonList(failure));
+  }
+
+  /**
+   * Report failed records. They are given to {@link #handleFailures(List)} in batches, never
+   * concurrently, and reported as processed once handled. If handling a batch fails, the watermarks
+   * of its records stay below them, so that their offsets are not committed, and the error is
+   * thrown by the next call to {@link #put(Collection)}, {@link #flush()} or {@link
+   * #waitForOffsets(Map)}. This does not wait for another thread that is handling failures: the
+   * given ones may be handled by that thread.
+   *
+   * @param failures the failed records
+   */
+  void reportFailures(Collection<RecordFailure> failures) {
+    failureReporter.report(failures);
+  }
+
+  private void deliverFailures(List<RecordFailure> failures) {
+    try {
+      handleFailures(failures);
+    } catch (RuntimeException e) {
+      // Don't leave waitForOffsets() waiting for these records.
+      OffsetWatermarkTracker tracker = offsetTracker;
+      if (tracker != null) {
+        failures.forEach(failure -> tracker.failed(failure.getRecord()));
+      }
+      throw e;
     }
+    failures.forEach(failure -> recordProcessed(failure.getRecord()));
   }
 
   /**
-   * Call concrete implementation of handleFailure, ensuring correct synchronization
+   * Handle failed records. Calls are never concurrent. By default, {@link #handleFailure} is called
+   * for each record; if it throws for some of them, the others are still handled, and the first
+   * exception is thrown afterwards.
    *
-   * @param record
-   * @param e
-   * @param cql
-   * @param failCounter
+   * @param failures the failed records, in the order they were reported
    */
-  private final synchronized void doHandleFailure(
-      AbstractSinkRecord record, Throwable e, String cql, Runnable failCounter) {
-    handleFailure(record, e, cql, failCounter);
+  protected void handleFailures(List<RecordFailure> failures) {
+    RuntimeException error = null;
+    for (RecordFailure failure : failures) {
+      try {
+        handleFailure(
+            failure.getRecord(), failure.getError(), failure.getCql(), failure.getFailCounter());
+      } catch (RuntimeException e) {
+        if (error == null) {
+          error = e;
+        } else {
+          error.addSuppressed(e);
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
   }
 
   /**
-   * Handle a failed record.
+   * Handle a failed record. Calls are never concurrent.
    *
    * @param record the {@link AbstractSinkRecord} that failed to process
    * @param e the exception
@@ -263,6 +651,19 @@ public abstract class AbstractSinkTask {
    */
   protected void handleSuccess(AbstractSinkRecord record) {}
 
+  /**
+   * Called in case of successful processing of records written together, outside of the driver's
+   * I/O threads. By default, {@link #handleSuccess} is called for each record; override this to
+   * acknowledge them at once.
+   *
+   * @param records the records for which we report success
+   */
+  protected void handleSuccessBatch(List<AbstractSinkRecord> records) {
+    for (AbstractSinkRecord record : records) {
+      handleSuccess(record);
+    }
+  }
+
   /**
    * Called by the framework before processing a batch of record, but inside the taskManager
    * context/execution flow.
@@ -26,6 +26,17 @@ public interface AbstractStruct {
    */
   public Object get(String field);
 
+  /**
+   * Access a field by position. Implementations that store values by position should override this,
+   * so that fields are read without looking their names up.
+   *
+   * @param index the position of the field in the fields of the schema
+   * @return the value of the field, or null
+   */
+  public default Object get(int index) {
+    return get(schema().fields().get(index).name());
+  }
+
   /**
    * The data type of the field
    *
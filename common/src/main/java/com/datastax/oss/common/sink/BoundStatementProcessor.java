@@ -16,45 +16,122 @@
 package com.datastax.oss.common.sink;
 
 import com.codahale.metrics.Histogram;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.BatchGrouping;
+import com.datastax.oss.common.sink.config.TableConfig;
 import com.datastax.oss.common.sink.record.RecordAndStatement;
+import com.datastax.oss.common.sink.state.AdaptiveBatchController;
+import com.datastax.oss.common.sink.state.AdmissionController;
 import com.datastax.oss.common.sink.state.InstanceState;
+import com.datastax.oss.common.sink.state.SpillLog;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.NoNodeAvailableException;
 import com.datastax.oss.driver.api.core.ProtocolVersion;
 import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
 import com.datastax.oss.driver.api.core.cql.BatchStatement;
 import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
 import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinition;
 import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
 import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.TokenMap;
+import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
+import com.datastax.oss.driver.api.core.servererrors.QueryValidationException;
+import com.datastax.oss.driver.api.core.type.DataTypes;
 import com.datastax.oss.driver.api.core.type.codec.registry.CodecRegistry;
 import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting;
 import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableList;
 import com.datastax.oss.dsbulk.sampler.DataSizes;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 
 /**
  * Runnable class that pulls [sink-record, bound-statement] pairs from a queue and groups them based
  * on topic and routing-key, and then issues batch statements when groups are large enough
  * (currently 32). Execute BoundStatement's when there is only one in a group and we know no more
  * BoundStatements will be added to the queue.
+ *
+ * <p>When a maximum batch size in bytes is configured, a batch is sent before a statement that
+ * would make it exceed that size is added to it; statements larger than the limit are sent alone.
+ *
+ * <p>When adaptive batching is enabled, the {@link AdaptiveBatchController} of each table further
+ * limits the size of its groups, and may have them sent as concurrent single statements instead of
+ * batches.
+ *
+ * <p>When writes are coalesced or counters aggregated, a statement writing to the same row as a
+ * pending one may replace it in its group, see {@link StatementCoalescer}.
+ *
+ * <p>When failed batches are split, the two halves of a failed batch are retried after a delay, and
+ * so on down to single statements, so that only the records whose statements fail alone are
+ * reported as failed.
+ *
+ * <p>When a spill directory is configured, idempotent statements that can't be sent for a while, or
+ * that fail because the cluster is unreachable or overloaded, are written to the {@link SpillLog}
+ * instead, and their records reported as written. Such statements are given an explicit write
+ * timestamp when they are received, so that replaying them later never overwrites newer writes.
+ *
+ * <p>Statements are only sent once admitted by the {@link AdmissionController}; those that can't be
+ * admitted yet wait without blocking the processor, so that the statements of other tables and
+ * replicas are still batched and sent meanwhile.
+ *
+ * <p>When batches are grouped by replica set, statements for different partitions owned by the same
+ * replicas share a group, so that each batch can be coordinated by one of these replicas.
+ *
+ * <p>A long-lived processor keeps groups open across calls to {@link
+ * AbstractSinkTask#put(Collection)}; they are executed when they are full, when their oldest
+ * statement has waited for the linger time (if any), or when {@link #flush()} is called.
  */
 class BoundStatementProcessor implements Callable<Void> {
   private static final RecordAndStatement END_STATEMENT = new RecordAndStatement(null, null, null);
+  // The delay before retrying the halves of a failed batch stops doubling after 5 splits.
+  private static final int MAX_SPLIT_RETRY_DELAY_SHIFT = 5;
+  // How many requests may wait to be admitted while the statements of other tables and replicas
+  // are still batched and sent.
+  private static final int MAX_PARKED_REQUESTS = 1024;
+  // The last write timestamp given to a statement that may be spilled, in microseconds.
+  private static final AtomicLong LAST_WRITE_TIMESTAMP = new AtomicLong();
   private final AbstractSinkTask task;
   private final BlockingQueue<RecordAndStatement> boundStatementsQueue;
   private final Collection<CompletionStage<? extends AsyncResultSet>> queryFutures;
   private final int maxNumberOfRecordsInBatch;
+  private final long lingerNanos;
+  private final boolean longLived;
+  private final boolean groupByReplicaSet;
+  private final int maxNumberOfRecordsInReplicaBatch;
+  private final long maxBatchSizeInBytes;
+  private final boolean coalesceWrites;
+  private final boolean aggregateCounters;
+  private final boolean splitFailedBatches;
+  private final long splitRetryDelayMs;
+  private final long spillAdmissionTimeoutNanos;
+  // Bounds the requests waiting to be admitted, see execute.
+  private final Semaphore parkingSpaces = new Semaphore(MAX_PARKED_REQUESTS);
+  // The coalescer of each topic and table, empty if their statements can't be collapsed; tables
+  // whose metadata is not known yet are not there.
+  private final Map<String, Optional<StatementCoalescer>> coalescers = new HashMap<>();
   private final AtomicInteger successfulRecordCount = new AtomicInteger();
   private final ProtocolVersion protocolVersion;
   private final CodecRegistry codecRegistry;
@@ -64,12 +141,51 @@ class BoundStatementProcessor implements Callable<Void> {
       BlockingQueue<RecordAndStatement> boundStatementsQueue,
       Collection<CompletionStage<? extends AsyncResultSet>> queryFutures,
       int maxNumberOfRecordsInBatch) {
+    this(task, boundStatementsQueue, queryFutures, maxNumberOfRecordsInBatch, 0, false);
+  }
+
+  /**
+   * Create a long-lived processor, outliving a single {@link AbstractSinkTask#put(Collection)}.
+   * Completed futures are removed from {@code queryFutures}, which must then be a concurrent set.
+   *
+   * @param lingerMs how long a partially filled group may wait for more statements; 0 means that
+   *     groups are only executed when full or when {@link #flush()} or {@link #stop()} is called.
+   */
+  BoundStatementProcessor(
+      AbstractSinkTask task,
+      BlockingQueue<RecordAndStatement> boundStatementsQueue,
+      Collection<CompletionStage<? extends AsyncResultSet>> queryFutures,
+      int maxNumberOfRecordsInBatch,
+      long lingerMs) {
+    this(task, boundStatementsQueue, queryFutures, maxNumberOfRecordsInBatch, lingerMs, true);
+  }
+
+  private BoundStatementProcessor(
+      AbstractSinkTask task,
+      BlockingQueue<RecordAndStatement> boundStatementsQueue,
+      Collection<CompletionStage<? extends AsyncResultSet>> queryFutures,
+      int maxNumberOfRecordsInBatch,
+      long lingerMs,
+      boolean longLived) {
     this.task = task;
     this.boundStatementsQueue = boundStatementsQueue;
     this.queryFutures = queryFutures;
     this.maxNumberOfRecordsInBatch = maxNumberOfRecordsInBatch;
-    this.protocolVersion = task.getInstanceState().getProtocolVersion();
-    this.codecRegistry = task.getInstanceState().getCodecRegistry();
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+    this.longLived = longLived;
+    InstanceState instanceState = task.getInstanceState();
+    this.protocolVersion = instanceState.getProtocolVersion();
+    this.codecRegistry = instanceState.getCodecRegistry();
+    this.groupByReplicaSet = instanceState.getBatchGrouping() == BatchGrouping.REPLICA_SET;
+    this.maxNumberOfRecordsInReplicaBatch =
+        Math.min(maxNumberOfRecordsInBatch, instanceState.getMaxNumberOfRecordsInReplicaBatch());
+    this.maxBatchSizeInBytes = instanceState.getMaxBatchSizeInBytes();
+    this.coalesceWrites = instanceState.isCoalesceWrites();
+    this.aggregateCounters = instanceState.isAggregateCounters();
+    this.splitFailedBatches = instanceState.isSplitFailedBatches();
+    this.splitRetryDelayMs = instanceState.getSplitRetryDelayMs();
+    this.spillAdmissionTimeoutNanos =
+        TimeUnit.MILLISECONDS.toNanos(instanceState.getSpillAdmissionTimeoutMs());
   }
 
   /**
@@ -79,12 +195,65 @@ class BoundStatementProcessor implements Callable<Void> {
    * @param statements list of statements to execute
    */
   private void executeStatements(List<RecordAndStatement> statements) {
-    Statement statement;
     if (statements.isEmpty()) {
       // Should never happen, but just in case. No-op.
       return;
     }
 
+    RecordAndStatement firstStatement = statements.get(0);
+    AdaptiveBatchController controller =
+        task.getInstanceState()
+            .getAdaptiveBatchController(
+                firstStatement.getRecord().topic(), firstStatement.getKeyspaceAndTable());
+    if (statements.size() > 1 && controller != null && controller.isFanOut()) {
+      // Concurrent single statements are currently cheaper than a batch for this table.
+      statements.forEach(s -> executeStatements(Collections.singletonList(s)));
+      return;
+    }
+    CompletionStage<AsyncResultSet> queryFuture = execute(statements, controller, 0);
+    queryFutures.add(queryFuture);
+    if (longLived) {
+      // This processor outlives a single put(); forget about completed queries so that
+      // queryFutures only ever holds the in-flight ones.
+      queryFuture.whenComplete((result, ex) -> queryFutures.remove(queryFuture));
+    }
+  }
+
+  /**
+   * Send the given statements, and report the outcome of their records; when failed batches are
+   * split, the records of a failed batch are only reported once its halves are done.
+   *
+   * @param splits the number of times the statements' original batch was split
+   * @return a future completing once every record is reported.
+   */
+  private CompletionStage<AsyncResultSet> execute(
+      List<RecordAndStatement> statements,
+      @Nullable AdaptiveBatchController controller,
+      int splits) {
+    CompletableFuture<AdmissionController.Permit> admission = admit(statements);
+    if (admission.isDone()) {
+      return send(statements, controller, splits, admission.join());
+    }
+    // Sent once admitted; meanwhile, the statements of other tables and replicas are still
+    // batched and sent. Past MAX_PARKED_REQUESTS such requests, wait for one to be admitted.
+    parkingSpaces.acquireUninterruptibly();
+    return admission
+        .whenComplete((permit, ex) -> parkingSpaces.release())
+        .thenComposeAsync(
+            permit -> send(statements, controller, splits, permit),
+            task.getInstanceState().getCompletionExecutor());
+  }
+
+  /**
+   * Send the given statements once admitted.
+   *
+   * @param permit the permit to send the statements with, or null if they were spilled
+   */
+  private CompletionStage<AsyncResultSet> send(
+      List<RecordAndStatement> statements,
+      @Nullable AdaptiveBatchController controller,
+      int splits,
+      @Nullable AdmissionController.Permit permit) {
     RecordAndStatement firstStatement = statements.get(0);
     InstanceState instanceState = task.getInstanceState();
     Histogram batchSizeHistogram =
@@ -94,73 +263,317 @@ class BoundStatementProcessor implements Callable<Void> {
         instanceState.getBatchSizeInBytesHistogram(
             firstStatement.getRecord().topic(), firstStatement.getKeyspaceAndTable());
 
-    Consumer<Integer> recordIncrement =
-        v ->
-            instanceState.incrementRecordCounter(
-                firstStatement.getRecord().topic(), firstStatement.getKeyspaceAndTable(), v);
-    Runnable failedRecordIncrement =
-        () ->
-            instanceState.incrementFailedCounter(
-                firstStatement.getRecord().topic(), firstStatement.getKeyspaceAndTable());
+    SpillLog spillLog = instanceState.getSpillLog();
+    if (permit == null) {
+      // Written later, by the spill drainer.
+      return CompletableFuture.supplyAsync(
+          () -> {
+            reportOutcome(statements, null, splits > 0);
+            return null;
+          },
+          instanceState.getCompletionExecutor());
+    }
 
+    Statement<?> statement;
     if (statements.size() == 1) {
       statement = firstStatement.getStatement();
-      updateBatchSizeMetrics(statement, batchSizeHistogram, batchSizeInBytesHistogram);
     } else {
+      // The batch is routed like its first statement: when grouping by replica set, its
+      // coordinator is thus a replica of every partition in the batch.
       BatchStatementBuilder bsb = BatchStatement.builder(DefaultBatchType.UNLOGGED);
       statements.stream().map(RecordAndStatement::getStatement).forEach(bsb::addStatement);
       // Construct the batch statement; set its consistency level to that of its first
       // bound statement. All bound statements in a bucket have the same CL, so this is fine.
+      // A batch is written with a single timestamp: the newest explicit one of its statements.
+      long timestamp = Statement.NO_DEFAULT_TIMESTAMP;
+      for (RecordAndStatement recordAndStatement : statements) {
+        timestamp = Math.max(timestamp, recordAndStatement.getStatement().getQueryTimestamp());
+      }
       statement =
-          bsb.build().setConsistencyLevel(firstStatement.getStatement().getConsistencyLevel());
-      updateBatchSizeMetrics(statements, batchSizeHistogram, batchSizeInBytesHistogram);
-    }
-    @NonNull Semaphore requestBarrier = instanceState.getRequestBarrier();
-    requestBarrier.acquireUninterruptibly();
-    CompletionStage<? extends AsyncResultSet> future =
-        instanceState.getSession().executeAsync(statement);
-    queryFutures.add(
-        future.whenComplete(
+          bsb.setQueryTimestamp(timestamp)
+              .build()
+              .setConsistencyLevel(firstStatement.getStatement().getConsistencyLevel());
+    }
+    updateBatchSizeMetrics(statements, batchSizeHistogram, batchSizeInBytesHistogram);
+    long start = System.nanoTime();
+    CompletionStage<AsyncResultSet> future =
+        instanceState
+            .getSession()
+            .executeAsync(statement)
+            .whenComplete(
+                (result, ex) -> {
+                  long latencyNanos = System.nanoTime() - start;
+                  permit.release(latencyNanos, ex);
+                  if (controller != null) {
+                    controller.onRequestCompleted(statements.size(), ex);
+                  }
+                });
+    // Reporting records may be costly (e.g. acknowledging messages one by one): keep it off the
+    // driver's I/O threads.
+    return future
+        .handleAsync(
             (result, ex) -> {
-              requestBarrier.release();
-              if (ex != null) {
-                statements.forEach(
-                    recordAndStatement -> {
-                      AbstractSinkRecord record = recordAndStatement.getRecord();
-                      task.handleFailure(
-                          record,
-                          ex,
-                          recordAndStatement.getStatement().getPreparedStatement().getQuery(),
-                          failedRecordIncrement);
-                    });
-              } else {
-                successfulRecordCount.addAndGet(statements.size());
-                statements.forEach(
-                    recordAndStatement -> {
-                      AbstractSinkRecord record = recordAndStatement.getRecord();
-                      task.handleSuccess(record);
-                    });
+              if (ex != null
+                  && spillLog != null
+                  && canSpill(statements, ex)
+                  && spill(spillLog, statements)) {
+                // Written later, by the spill drainer.
+                reportOutcome(statements, null, splits > 0);
+                return CompletableFuture.<AsyncResultSet>completedFuture(null);
+              }
+              if (ex != null && splitFailedBatches && canSplit(statements, ex)) {
+                return split(statements, controller, splits + 1);
               }
-              recordIncrement.accept(statements.size());
-            }));
+              reportOutcome(statements, ex, splits > 0);
+              return future;
+            },
+            instanceState.getCompletionExecutor())
+        .thenCompose(Function.identity());
+  }
+
+  /**
+   * Admit the given statements without waiting; when spilling, they may only wait for a while, and
+   * are then spilled instead.
+   *
+   * @return a future completing with the permit to send the statements with, or with null if they
+   *     were spilled.
+   */
+  private CompletableFuture<AdmissionController.Permit> admit(List<RecordAndStatement> statements) {
+    RecordAndStatement firstStatement = statements.get(0);
+    InstanceState instanceState = task.getInstanceState();
+    AdmissionController admissionController = instanceState.getAdmissionController();
+    String keyspaceAndTable = firstStatement.getKeyspaceAndTable();
+    Set<Node> replicas =
+        admissionController.isNodeLimited()
+            ? getReplicas(
+                firstStatement.getStatement(), firstStatement.getStatement().getRoutingKey())
+            : null;
+    CompletableFuture<AdmissionController.Permit> permit =
+        admissionController.acquireAsync(keyspaceAndTable, replicas);
+    SpillLog spillLog = instanceState.getSpillLog();
+    if (permit.isDone() || spillLog == null || !isIdempotent(statements)) {
+      return permit;
+    }
+    CompletableFuture<AdmissionController.Permit> result = new CompletableFuture<>();
+    Future<?> timeout =
+        instanceState
+            .getRetryScheduler()
+            .schedule(
+                () -> {
+                  // Still not admitted: stop waiting, unless it just happened.
+                  if (permit.cancel(false)) {
+                    if (spill(spillLog, statements)) {
+                      result.complete(null);
+                    } else {
+                      // The log is full: wait for the cluster.
+                      Future<?> unused =
+                          admissionController
+                              .acquireAsync(keyspaceAndTable, replicas)
+                              .thenAccept(result::complete);
+                    }
+                  }
+                },
+                spillAdmissionTimeoutNanos,
+                TimeUnit.NANOSECONDS);
+    Future<?> unused =
+        permit.thenAccept(
+            admitted -> {
+              timeout.cancel(false);
+              result.complete(admitted);
+            });
+    return result;
+  }
+
+  private void reportOutcome(
+      List<RecordAndStatement> statements, @Nullable Throwable ex, boolean split) {
+    InstanceState instanceState = task.getInstanceState();
+    String topic = statements.get(0).getRecord().topic();
+    String keyspaceAndTable = statements.get(0).getKeyspaceAndTable();
+    List<RecordAndStatement> sources = StatementCoalescer.sources(statements);
+    if (ex != null) {
+      List<RecordFailure> failures = new ArrayList<>(sources.size());
+      for (RecordAndStatement recordAndStatement : sources) {
+        failures.add(
+            new RecordFailure(
+                recordAndStatement.getRecord(),
+                ex,
+                recordAndStatement.getStatement().getPreparedStatement().getQuery(),
+                () -> instanceState.incrementFailedCounter(topic, keyspaceAndTable)));
+      }
+      task.reportFailures(failures);
+    } else {
+      successfulRecordCount.addAndGet(sources.size());
+      if (split) {
+        instanceState.incrementRecoveredRecordCounter(topic, keyspaceAndTable, sources.size());
+      }
+      List<AbstractSinkRecord> records = new ArrayList<>(sources.size());
+      for (RecordAndStatement recordAndStatement : sources) {
+        records.add(recordAndStatement.getRecord());
+      }
+      try {
+        task.handleSuccessBatch(records);
+      } finally {
+        records.forEach(task::recordProcessed);
+      }
+    }
+    instanceState.incrementRecordCounter(topic, keyspaceAndTable, sources.size());
+  }
+
+  /**
+   * @return whether the failed batch of the given statements may be set aside in the spill log, to
+   *     be replayed once the cluster is back, statement by statement.
+   */
+  @VisibleForTesting
+  static boolean canSpill(List<RecordAndStatement> statements, Throwable ex) {
+    // Replayed statements may have been applied already.
+    return SpillLog.isTransient(ex) && isIdempotent(statements);
+  }
+
+  /**
+   * @return whether the failed batch of the given statements may be retried as two smaller ones,
+   *     without applying any of its statements twice.
+   */
+  @VisibleForTesting
+  static boolean canSplit(List<RecordAndStatement> statements, Throwable ex) {
+    if (statements.size() < 2) {
+      return false;
+    }
+    Throwable cause =
+        ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    if (cause instanceof NoNodeAvailableException) {
+      // Smaller batches won't find a node either.
+      return false;
+    }
+    if (cause instanceof QueryValidationException) {
+      // Rejected before being executed: none of the statements was applied.
+      return true;
+    }
+    // The batch may have been partially applied (e.g. on a timeout).
+    return isIdempotent(statements);
+  }
+
+  /**
+   * @return whether the statements are known to be safe to apply twice, as flagged by the {@link
+   *     RecordMapper} for the statements it generates.
+   */
+  private static boolean isIdempotent(List<RecordAndStatement> statements) {
+    for (RecordAndStatement recordAndStatement : statements) {
+      BoundStatement statement = recordAndStatement.getStatement();
+      if (!Boolean.TRUE.equals(statement.isIdempotent()) || isCounterUpdate(statement)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Give the given statement an explicit write timestamp if it may be spilled: once replayed, it
+   * must not overwrite writes to the same row received after it, even if they were sent first.
+   */
+  private static RecordAndStatement withWriteTimestamp(RecordAndStatement recordAndStatement) {
+    BoundStatement statement = recordAndStatement.getStatement();
+    if (statement.getQueryTimestamp() != Statement.NO_DEFAULT_TIMESTAMP
+        || !isIdempotent(Collections.singletonList(recordAndStatement))) {
+      return recordAndStatement;
+    }
+    long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    // Monotonic, so that statements for the same row are ordered as they were received.
+    long timestamp = LAST_WRITE_TIMESTAMP.updateAndGet(last -> Math.max(now, last + 1));
+    return new RecordAndStatement(
+        recordAndStatement.getRecord(),
+        recordAndStatement.getKeyspaceAndTable(),
+        statement.setQueryTimestamp(timestamp));
+  }
+
+  private static boolean spill(SpillLog spillLog, List<RecordAndStatement> statements) {
+    List<BoundStatement> boundStatements = new ArrayList<>(statements.size());
+    for (RecordAndStatement recordAndStatement : statements) {
+      boundStatements.add(recordAndStatement.getStatement());
+    }
+    return spillLog.append(boundStatements, statements.get(0).getKeyspaceAndTable());
+  }
+
+  private static boolean isCounterUpdate(BoundStatement statement) {
+    for (ColumnDefinition variable : statement.getPreparedStatement().getVariableDefinitions()) {
+      if (variable.getType() == DataTypes.COUNTER) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Execute both halves of a failed batch, after a delay doubling with every split.
+   *
+   * @return a future completing once the records of both halves are reported.
+   */
+  private CompletionStage<AsyncResultSet> split(
+      List<RecordAndStatement> statements,
+      @Nullable AdaptiveBatchController controller,
+      int splits) {
+    RecordAndStatement firstStatement = statements.get(0);
+    task.getInstanceState()
+        .incrementSplitBatchCounter(
+            firstStatement.getRecord().topic(), firstStatement.getKeyspaceAndTable());
+    long delayMs = splitRetryDelayMs << Math.min(splits - 1, MAX_SPLIT_RETRY_DELAY_SHIFT);
+    int middle = statements.size() / 2;
+    CompletableFuture<AsyncResultSet> first =
+        executeLater(statements.subList(0, middle), controller, splits, delayMs);
+    CompletableFuture<AsyncResultSet> second =
+        executeLater(statements.subList(middle, statements.size()), controller, splits, delayMs);
+    return CompletableFuture.allOf(first, second).thenApply(v -> null);
+  }
+
+  private CompletableFuture<AsyncResultSet> executeLater(
+      List<RecordAndStatement> statements,
+      @Nullable AdaptiveBatchController controller,
+      int splits,
+      long delayMs) {
+    CompletableFuture<AsyncResultSet> result = new CompletableFuture<>();
+    // Not sent from the completion executor: waiting for a parking space may block. The retry
+    // completes the result itself, whatever happens; the scheduler is only shut down once every
+    // task has waited for its queries.
+    Future<?> unused =
+        task.getInstanceState()
+            .getRetryScheduler()
+            .schedule(
+                () -> {
+                  try {
+                    execute(statements, controller, splits)
+                        .whenComplete(
+                            (rs, ex) -> {
+                              if (ex != null) {
+                                result.completeExceptionally(ex);
+                              } else {
+                                result.complete(rs);
+                              }
+                            });
+                  } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                  }
+                },
+                delayMs,
+                TimeUnit.MILLISECONDS);
+    return result;
   }
 
   private void updateBatchSizeMetrics(
       List<RecordAndStatement> statements,
       Histogram batchSizeHistogram,
       Histogram batchSizeInBytesHistogram) {
-    statements.forEach(
-        s ->
-            batchSizeInBytesHistogram.update(
-                DataSizes.getDataSize(s.getStatement(), protocolVersion, codecRegistry)));
+    statements.forEach(s -> batchSizeInBytesHistogram.update(dataSize(s)));
     batchSizeHistogram.update(statements.size());
   }
 
-  private void updateBatchSizeMetrics(
-      Statement<?> statement, Histogram batchSizeHistogram, Histogram batchSizeInBytesHistogram) {
-    batchSizeInBytesHistogram.update(
-        DataSizes.getDataSize(statement, protocolVersion, codecRegistry));
-    batchSizeHistogram.update(1);
+  /** @return the data size of the statement, computed once. */
+  private long dataSize(RecordAndStatement recordAndStatement) {
+    long dataSize = recordAndStatement.getDataSize();
+    if (dataSize < 0) {
+      dataSize =
+          DataSizes.getDataSize(recordAndStatement.getStatement(), protocolVersion, codecRegistry);
+      recordAndStatement.setDataSize(dataSize);
+    }
+    return dataSize;
   }
 
   int getSuccessfulRecordCount() {
@@ -175,69 +588,231 @@ class BoundStatementProcessor implements Callable<Void> {
 
   @VisibleForTesting
   void runLoop(Consumer<List<RecordAndStatement>> consumer) throws InterruptedException {
-    // Map of <topic, map<partition-key, list<recordAndStatement>>
-    Map<String, Map<ByteBuffer, List<RecordAndStatement>>> statementGroups = new HashMap<>();
+    // Map of <topic, map<partition-key or replica set, statement group>>
+    Map<String, Map<Object, StatementGroup>> statementGroups = new HashMap<>();
+    // Only used when lingering: the next time at which some group may have expired.
+    long nextExpiryNanos = 0;
+    boolean expiryScheduled = false;
     while (true) {
 
-      // Note: this call may block indefinitely if stop() is never called.
-      // It is the producer's responsibility to call stop() when there are no more records
-      // to process.
-      RecordAndStatement recordAndStatement = boundStatementsQueue.take();
+      RecordAndStatement recordAndStatement;
+      if (expiryScheduled) {
+        long remainingNanos = nextExpiryNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+          nextExpiryNanos = executeExpiredGroups(statementGroups, consumer);
+          expiryScheduled = !statementGroups.isEmpty();
+          continue;
+        }
+        recordAndStatement = boundStatementsQueue.poll(remainingNanos, TimeUnit.NANOSECONDS);
+        if (recordAndStatement == null) {
+          continue;
+        }
+      } else {
+        // Note: this call may block indefinitely if stop() is never called.
+        // It is the producer's responsibility to call stop() when there are no more records
+        // to process.
+        recordAndStatement = boundStatementsQueue.take();
+      }
 
       if (recordAndStatement == END_STATEMENT) {
         // There are no more bound-statements being produced.
         // Create and execute remaining statement groups,
         // creating BatchStatement's when a group has more than
         // one BoundStatement.
-        statementGroups
-            .values()
-            .stream()
-            .map(Map::values)
-            .flatMap(Collection::stream)
-            .filter(recordAndStatements -> !recordAndStatements.isEmpty())
-            .map(ImmutableList::copyOf)
-            .forEach(consumer);
+        executeAllGroups(statementGroups, consumer);
         return;
       }
 
+      if (recordAndStatement instanceof FlushBarrier) {
+        executeAllGroups(statementGroups, consumer);
+        statementGroups.clear();
+        expiryScheduled = false;
+        ((FlushBarrier) recordAndStatement).flushed.complete(null);
+        continue;
+      }
+
+      if (task.getInstanceState().getSpillLog() != null) {
+        recordAndStatement = withWriteTimestamp(recordAndStatement);
+      }
+
       // Get the routing-key and add this statement to the appropriate
       // statement group. A statement group contains collections of
       // bound statements for a particular table. Each collection contains
       // statements for a particular routing key (a representation of partition key).
 
-      List<RecordAndStatement> recordsAndStatements =
-          categorizeStatement(statementGroups, recordAndStatement);
-      if (recordsAndStatements.size() == maxNumberOfRecordsInBatch) {
+      StatementGroup statementGroup = findStatementGroup(statementGroups, recordAndStatement);
+      long dataSize = maxBatchSizeInBytes > 0 ? dataSize(recordAndStatement) : 0;
+      if (!statementGroup.add(recordAndStatement, dataSize)) {
+        // This statement doesn't fit in the batch being built: send the batch first.
+        consumer.accept(ImmutableList.copyOf(statementGroup.getStatements()));
+        statementGroup.clear();
+        statementGroup.add(recordAndStatement, dataSize);
+      }
+      if (statementGroup.isFull()) {
         // We're ready to send out a batch request!
-        consumer.accept(ImmutableList.copyOf(recordsAndStatements));
-        recordsAndStatements.clear();
+        consumer.accept(ImmutableList.copyOf(statementGroup.getStatements()));
+        statementGroup.clear();
+      } else if (lingerNanos > 0 && statementGroup.size() == 1 && !expiryScheduled) {
+        nextExpiryNanos = statementGroup.getCreatedNanos() + lingerNanos;
+        expiryScheduled = true;
       }
     }
   }
 
+  private static void executeAllGroups(
+      Map<String, Map<Object, StatementGroup>> statementGroups,
+      Consumer<List<RecordAndStatement>> consumer) {
+    statementGroups
+        .values()
+        .stream()
+        .map(Map::values)
+        .flatMap(Collection::stream)
+        .filter(statementGroup -> !statementGroup.isEmpty())
+        .map(statementGroup -> ImmutableList.copyOf(statementGroup.getStatements()))
+        .forEach(consumer);
+  }
+
+  /**
+   * Execute the groups whose oldest statement has waited for at least the linger time, and drop the
+   * empty ones so that routing keys that are no longer written to do not accumulate.
+   *
+   * @return the time at which the oldest remaining group will expire; meaningless if no group
+   *     remains.
+   */
+  private long executeExpiredGroups(
+      Map<String, Map<Object, StatementGroup>> statementGroups,
+      Consumer<List<RecordAndStatement>> consumer) {
+    long now = System.nanoTime();
+    long nextExpiryNanos = now + lingerNanos;
+    Iterator<Map<Object, StatementGroup>> tables = statementGroups.values().iterator();
+    while (tables.hasNext()) {
+      Map<Object, StatementGroup> table = tables.next();
+      Iterator<StatementGroup> groups = table.values().iterator();
+      while (groups.hasNext()) {
+        StatementGroup statementGroup = groups.next();
+        long expiryNanos = statementGroup.getCreatedNanos() + lingerNanos;
+        if (statementGroup.isEmpty()) {
+          groups.remove();
+        } else if (expiryNanos - now <= 0) {
+          consumer.accept(ImmutableList.copyOf(statementGroup.getStatements()));
+          groups.remove();
+        } else if (expiryNanos - nextExpiryNanos < 0) {
+          nextExpiryNanos = expiryNanos;
+        }
+      }
+      if (table.isEmpty()) {
+        tables.remove();
+      }
+    }
+    return nextExpiryNanos;
+  }
+
   /**
    * Categorize the given statement into the appropriate statement group, based on keyspace/table
    * and routing key.
    *
    * @param statementGroups running collection of categorized statements that are pending execution
    * @param recordAndStatement the record/statement that needs to be put in a bucket
-   * @return The specific bucket (list) to which the record/statement was added.
+   * @return The specific bucket to which the record/statement was added.
    */
   @VisibleForTesting
   @NonNull
-  List<RecordAndStatement> categorizeStatement(
-      Map<String, Map<ByteBuffer, List<RecordAndStatement>>> statementGroups,
+  StatementGroup categorizeStatement(
+      Map<String, Map<Object, StatementGroup>> statementGroups,
+      RecordAndStatement recordAndStatement) {
+    StatementGroup recordsAndStatements = findStatementGroup(statementGroups, recordAndStatement);
+    recordsAndStatements.add(recordAndStatement, 0);
+    return recordsAndStatements;
+  }
+
+  @NonNull
+  private StatementGroup findStatementGroup(
+      Map<String, Map<Object, StatementGroup>> statementGroups,
       RecordAndStatement recordAndStatement) {
     BoundStatement statement = recordAndStatement.getStatement();
     AbstractSinkRecord sinkRecord = recordAndStatement.getRecord();
     ByteBuffer routingKey = statement.getRoutingKey();
-    Map<ByteBuffer, List<RecordAndStatement>> statementGroup =
+    Map<Object, StatementGroup> statementGroup =
         statementGroups.computeIfAbsent(
             makeGroupKey(recordAndStatement, sinkRecord), t -> new HashMap<>());
-    List<RecordAndStatement> recordsAndStatements =
-        statementGroup.computeIfAbsent(routingKey, t -> new ArrayList<>());
-    recordsAndStatements.add(recordAndStatement);
-    return recordsAndStatements;
+    Set<Node> replicas = groupByReplicaSet ? getReplicas(statement, routingKey) : null;
+    if (replicas == null) {
+      return statementGroup.computeIfAbsent(
+          routingKey, t -> newStatementGroup(recordAndStatement, maxNumberOfRecordsInBatch));
+    }
+    return statementGroup.computeIfAbsent(
+        replicas, t -> newStatementGroup(recordAndStatement, maxNumberOfRecordsInReplicaBatch));
+  }
+
+  private StatementGroup newStatementGroup(RecordAndStatement recordAndStatement, int maxSize) {
+    AdaptiveBatchController controller =
+        task.getInstanceState()
+            .getAdaptiveBatchController(
+                recordAndStatement.getRecord().topic(), recordAndStatement.getKeyspaceAndTable());
+    StatementCoalescer coalescer = null;
+    if (coalesceWrites || aggregateCounters) {
+      String key = makeGroupKey(recordAndStatement, recordAndStatement.getRecord());
+      Optional<StatementCoalescer> cached = coalescers.get(key);
+      if (cached == null) {
+        cached = createCoalescer(recordAndStatement);
+        if (cached != null) {
+          coalescers.put(key, cached);
+        }
+      }
+      coalescer = cached == null ? null : cached.orElse(null);
+    }
+    return new StatementGroup(maxSize, maxBatchSizeInBytes, controller, coalescer, this::dataSize);
+  }
+
+  /**
+   * @return the coalescer of the table of the given statement, empty if its statements can't be
+   *     collapsed, or null if its metadata is not known yet.
+   */
+  @Nullable
+  private Optional<StatementCoalescer> createCoalescer(RecordAndStatement recordAndStatement) {
+    InstanceState instanceState = task.getInstanceState();
+    Optional<TableConfig> tableConfig =
+        instanceState
+            .getTopicConfig(recordAndStatement.getRecord().topic())
+            .getTableConfigs()
+            .stream()
+            .filter(t -> t.getKeyspaceAndTable().equals(recordAndStatement.getKeyspaceAndTable()))
+            .findFirst();
+    if (!tableConfig.isPresent()) {
+      return Optional.empty();
+    }
+    TableMetadata table =
+        instanceState
+            .getSession()
+            .getMetadata()
+            .getKeyspace(tableConfig.get().getKeyspace())
+            .flatMap(ks -> ks.getTable(tableConfig.get().getTable()))
+            .orElse(null);
+    RecordMapper mapper = instanceState.getRecordMapper(tableConfig.get());
+    if (table == null || mapper == null) {
+      return null;
+    }
+    return Optional.ofNullable(
+        StatementCoalescer.create(
+            tableConfig.get(), table, mapper, coalesceWrites, aggregateCounters));
+  }
+
+  /**
+   * @return the replicas of the statement partition according to the driver token map, or null if
+   *     they are unknown.
+   */
+  @Nullable
+  private Set<Node> getReplicas(BoundStatement statement, ByteBuffer routingKey) {
+    CqlIdentifier keyspace = statement.getRoutingKeyspace();
+    if (routingKey == null || keyspace == null) {
+      return null;
+    }
+    Optional<TokenMap> tokenMap = task.getInstanceState().getSession().getMetadata().getTokenMap();
+    if (!tokenMap.isPresent()) {
+      return null;
+    }
+    Set<Node> replicas = tokenMap.get().getReplicas(keyspace, routingKey);
+    return replicas.isEmpty() ? null : replicas;
   }
 
   private static String makeGroupKey(
@@ -246,6 +821,187 @@ class BoundStatementProcessor implements Callable<Void> {
   }
 
   void stop() {
-    boundStatementsQueue.add(END_STATEMENT);
+    putUninterruptibly(END_STATEMENT);
+  }
+
+  /**
+   * Ask the processing loop to execute all pending statement groups, whatever their size or age.
+   *
+   * @return a future that completes once every group pending at the time of the call has been
+   *     handed over for execution.
+   */
+  CompletableFuture<Void> flush() {
+    FlushBarrier barrier = new FlushBarrier();
+    putUninterruptibly(barrier);
+    return barrier.flushed;
+  }
+
+  /** The queue may be bounded: wait for the processing loop to make room. */
+  private void putUninterruptibly(RecordAndStatement recordAndStatement) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        boundStatementsQueue.put(recordAndStatement);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Statements for the same topic, table and routing key (or replica set) that are pending
+   * execution.
+   */
+  @VisibleForTesting
+  static final class StatementGroup {
+    private final List<RecordAndStatement> statements = new ArrayList<>();
+    private final int maxSize;
+    private final long maxSizeInBytes;
+    @Nullable private final AdaptiveBatchController controller;
+    @Nullable private final StatementCoalescer coalescer;
+    private final ToLongFunction<RecordAndStatement> dataSizer;
+    // Only used when coalescing: the index of the last statement for each row, and the data size
+    // of each statement.
+    private final Map<Object, Integer> rows = new HashMap<>();
+    private final List<Long> dataSizes = new ArrayList<>();
+    private long sizeInBytes;
+    private long createdNanos;
+
+    /**
+     * @param maxSize the maximum number of statements
+     * @param maxSizeInBytes the maximum total data size of the statements, 0 for no limit
+     * @param controller if not null, further limits the number of statements
+     * @param coalescer if not null, collapses statements writing to the same row
+     * @param dataSizer computes the data size of statements built by the coalescer
+     */
+    StatementGroup(
+        int maxSize,
+        long maxSizeInBytes,
+        @Nullable AdaptiveBatchController controller,
+        @Nullable StatementCoalescer coalescer,
+        ToLongFunction<RecordAndStatement> dataSizer) {
+      this.maxSize = maxSize;
+      this.maxSizeInBytes = maxSizeInBytes;
+      this.controller = controller;
+      this.coalescer = coalescer;
+      this.dataSizer = dataSizer;
+    }
+
+    /**
+     * Add the given statement, collapsed with the pending one writing to the same row if possible:
+     * the size of the pending one is then replaced with the size of their combination.
+     *
+     * @param recordAndStatement the statement to add
+     * @param dataSize the data size of the statement, as computed by {@link DataSizes}
+     * @return false if the statement was not added, because the group would exceed its maximum data
+     *     size: it must be executed first.
+     */
+    boolean add(RecordAndStatement recordAndStatement, long dataSize) {
+      Object row = null;
+      if (coalescer != null) {
+        row = coalescer.rowKey(recordAndStatement.getStatement());
+        Integer index = row == null ? null : rows.get(row);
+        if (index != null) {
+          RecordAndStatement coalesced =
+              coalescer.coalesce(statements.get(index), recordAndStatement);
+          if (coalesced != null) {
+            long oldSize = dataSizes.get(index);
+            long newSize =
+                coalescedSize(
+                    coalesced, statements.get(index), oldSize, recordAndStatement, dataSize);
+            if (maxSizeInBytes > 0
+                && statements.size() > 1
+                && sizeInBytes - oldSize + newSize > maxSizeInBytes) {
+              // The combination doesn't fit either.
+              return false;
+            }
+            statements.set(index, coalesced);
+            dataSizes.set(index, newSize);
+            sizeInBytes += newSize - oldSize;
+            return true;
+          }
+        }
+      }
+      if (statements.isEmpty()) {
+        createdNanos = System.nanoTime();
+      } else if (maxSizeInBytes > 0 && sizeInBytes + dataSize > maxSizeInBytes) {
+        return false;
+      }
+      if (coalescer != null) {
+        if (row != null) {
+          rows.put(row, statements.size());
+        }
+        dataSizes.add(dataSize);
+      }
+      statements.add(recordAndStatement);
+      sizeInBytes += dataSize;
+      return true;
+    }
+
+    private long coalescedSize(
+        RecordAndStatement coalesced,
+        RecordAndStatement older,
+        long olderSize,
+        RecordAndStatement newer,
+        long newerSize) {
+      if (coalesced.getStatement() == older.getStatement()) {
+        return olderSize;
+      }
+      if (coalesced.getStatement() == newer.getStatement() || maxSizeInBytes <= 0) {
+        return newerSize;
+      }
+      // A new statement standing for both, e.g. summing their counter increments.
+      return dataSizer.applyAsLong(coalesced);
+    }
+
+    @NonNull
+    List<RecordAndStatement> getStatements() {
+      return statements;
+    }
+
+    /** @return when the oldest statement of the group was added. */
+    long getCreatedNanos() {
+      return createdNanos;
+    }
+
+    int size() {
+      return statements.size();
+    }
+
+    long getSizeInBytes() {
+      return sizeInBytes;
+    }
+
+    boolean isEmpty() {
+      return statements.isEmpty();
+    }
+
+    /** @return whether the group should be executed right away. */
+    boolean isFull() {
+      int size = statements.size();
+      return size >= maxSize
+          || (controller != null && size >= controller.getBatchSize())
+          || (maxSizeInBytes > 0 && sizeInBytes >= maxSizeInBytes);
+    }
+
+    void clear() {
+      statements.clear();
+      rows.clear();
+      dataSizes.clear();
+      sizeInBytes = 0;
+    }
+  }
+
+  /** Marker telling the processing loop to execute all pending groups. */
+  private static final class FlushBarrier extends RecordAndStatement {
+    private final CompletableFuture<Void> flushed = new CompletableFuture<>();
+
+    private FlushBarrier() {
+      super(null, null, null);
+    }
   }
 }
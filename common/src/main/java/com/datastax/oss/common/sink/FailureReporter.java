@@ -0,0 +1,82 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers record failures in batches, without locking. Failures are queued, and the thread that
+ * reports some while no delivery is in progress delivers them, along with the ones other threads
+ * report in the meantime. Deliveries are thus never concurrent, but threads reporting failures
+ * during a delivery don't wait for it: a failure storm doesn't serialize the threads that map and
+ * execute records.
+ *
+ * <p>An exception thrown by the handler is not thrown to the thread delivering the batch, which may
+ * be mapping or acknowledging unrelated records: it is kept until {@link #rethrowError()} is called
+ * from the task's own thread.
+ */
+final class FailureReporter {
+  private static final Logger log = LoggerFactory.getLogger(FailureReporter.class);
+  private final Queue<RecordFailure> failures = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean delivering = new AtomicBoolean();
+  private final Consumer<List<RecordFailure>> handler;
+  private final AtomicReference<RuntimeException> error = new AtomicReference<>();
+
+  FailureReporter(Consumer<List<RecordFailure>> handler) {
+    this.handler = handler;
+  }
+
+  void report(Collection<RecordFailure> failures) {
+    this.failures.addAll(failures);
+    // Failures queued while another thread finishes a delivery are delivered by this one.
+    while (!this.failures.isEmpty() && delivering.compareAndSet(false, true)) {
+      try {
+        List<RecordFailure> batch = new ArrayList<>();
+        RecordFailure failure;
+        while ((failure = this.failures.poll()) != null) {
+          batch.add(failure);
+        }
+        if (!batch.isEmpty()) {
+          handler.accept(batch);
+        }
+      } catch (RuntimeException e) {
+        if (!error.compareAndSet(null, e)) {
+          // Only the first error is rethrown.
+          log.error("Error while handling failed records", e);
+        }
+      } finally {
+        delivering.set(false);
+      }
+    }
+  }
+
+  /** Throw the first exception thrown by the handler since the last call, if any. */
+  void rethrowError() {
+    RuntimeException e = error.getAndSet(null);
+    if (e != null) {
+      throw e;
+    }
+  }
+}
@@ -41,7 +41,7 @@ public class Mapping {
   private final Map<CqlIdentifier, CqlIdentifier> columnsToKafkaFields;
   private final Multimap<CqlIdentifier, CqlIdentifier> kafkaFieldsToDseColumns;
   private final ConvertingCodecFactory codecFactory;
-  private final Cache<String, TypeCodec<?>> columnsToCodecs;
+  private final Cache<List<Object>, TypeCodec<?>> columnsToCodecs;
   private final List<CqlIdentifier> functions;
 
   public Mapping(
@@ -84,7 +84,7 @@ public class Mapping {
     TypeCodec<T> codec =
         (TypeCodec<T>)
             columnsToCodecs.get(
-                column + "/" + cqlType + "/" + javaType,
+                ImmutableList.of(column, cqlType, javaType),
                 n -> codecFactory.createConvertingCodec(cqlType, javaType, true));
     assert codec != null;
     return codec;
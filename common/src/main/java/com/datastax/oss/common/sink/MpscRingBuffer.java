@@ -0,0 +1,332 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.QueueWaitStrategy;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, pre-allocated, lock-free queue for many producers and a single consumer.
+ *
+ * <p>Each slot carries a sequence number telling whether it may be written (sequence equals the
+ * producer position) or read (sequence equals the consumer position + 1); producers claim a
+ * position with a CAS on the tail, and the consumer is the only one to move the head. Offering does
+ * not allocate. Blocking operations wait according to the configured {@link QueueWaitStrategy}.
+ *
+ * <p>Only one thread at a time may call the consuming methods ({@link #poll()}, {@link #take()},
+ * {@link #drainTo(Collection)}...). The {@link #iterator()} is weakly consistent, as the ones of
+ * {@code java.util.concurrent} queues: it may be used from any thread, never throws {@link
+ * java.util.ConcurrentModificationException} and may or may not see concurrent changes. Removing an
+ * element through it (or with {@link #remove(Object)}) leaves a marker in its slot, skipped by the
+ * consumer; {@link #size()} counts it until then.
+ */
+class MpscRingBuffer<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+  // How long a waiting producer parks before checking for free space again.
+  private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  // Left in the slot of an element removed before being consumed.
+  private static final Object REMOVED = new Object();
+
+  private final int capacity;
+  private final int mask;
+  // Holds elements of type E, or REMOVED.
+  private final AtomicReferenceArray<Object> elements;
+  private final AtomicLongArray sequences;
+  private final QueueWaitStrategy waitStrategy;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong head = new AtomicLong();
+  // The consumer thread, when it is parked waiting for an element.
+  private volatile Thread parkedConsumer;
+
+  /**
+   * @param capacity the minimum capacity of the queue; it is rounded up to a power of two
+   * @param waitStrategy how to wait for an element or for free space
+   */
+  MpscRingBuffer(int capacity, QueueWaitStrategy waitStrategy) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = this.capacity - 1;
+    this.elements = new AtomicReferenceArray<>(this.capacity);
+    this.sequences = new AtomicLongArray(this.capacity);
+    for (int i = 0; i < this.capacity; i++) {
+      sequences.set(i, i);
+    }
+    this.waitStrategy = waitStrategy;
+  }
+
+  @Override
+  public boolean offer(E e) {
+    Objects.requireNonNull(e);
+    long position;
+    int index;
+    while (true) {
+      position = tail.get();
+      index = (int) (position & mask);
+      long diff = sequences.get(index) - position;
+      if (diff == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+      } else if (diff < 0) {
+        // The slot still holds the element written one lap ago: the queue is full.
+        return false;
+      }
+      // Otherwise another producer claimed this position first; retry.
+    }
+    elements.lazySet(index, e);
+    // Volatile write, so that a consumer about to park either sees the element or is seen.
+    sequences.set(index, position + 1);
+    Thread consumer = parkedConsumer;
+    if (consumer != null) {
+      LockSupport.unpark(consumer);
+    }
+    return true;
+  }
+
+  @Override
+  public void put(E e) throws InterruptedException {
+    while (!offer(e)) {
+      waitForSpace();
+    }
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!offer(e)) {
+      if (deadline - System.nanoTime() <= 0) {
+        return false;
+      }
+      waitForSpace();
+    }
+    return true;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public E poll() {
+    while (true) {
+      long position = head.get();
+      int index = (int) (position & mask);
+      if (sequences.get(index) != position + 1) {
+        return null;
+      }
+      // Atomically, so that an iterator can't remove the element once it is consumed.
+      Object e = elements.getAndSet(index, null);
+      // Hand the slot back to producers for the next lap.
+      sequences.lazySet(index, position + capacity);
+      head.lazySet(position + 1);
+      if (e != REMOVED) {
+        return (E) e;
+      }
+    }
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    E e;
+    while ((e = poll()) == null) {
+      waitForElement(0);
+    }
+    return e;
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    E e;
+    while ((e = poll()) == null) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return null;
+      }
+      waitForElement(remaining);
+    }
+    return e;
+  }
+
+  @Override
+  public E peek() {
+    for (long position = head.get(); ; position++) {
+      int index = (int) (position & mask);
+      E e = elementAt(position, index);
+      if (e != null || sequences.get(index) != position + 1) {
+        return e;
+      }
+      // Removed: look at the next one.
+    }
+  }
+
+  /**
+   * @return the element at the given position, or null if it was not written yet, or was removed or
+   *     consumed.
+   */
+  @SuppressWarnings("unchecked")
+  private E elementAt(long position, int index) {
+    if (sequences.get(index) != position + 1) {
+      return null;
+    }
+    Object e = elements.get(index);
+    // Check that the slot was not consumed (and reused) in the meantime.
+    if (e == REMOVED || sequences.get(index) != position + 1) {
+      return null;
+    }
+    return (E) e;
+  }
+
+  @Override
+  public int size() {
+    // Read head first so that the result is never negative.
+    long position = head.get();
+    return (int) Math.max(0, Math.min(capacity, tail.get() - position));
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return capacity - size();
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    int drained = 0;
+    E e;
+    while (drained < maxElements && (e = poll()) != null) {
+      c.add(e);
+      drained++;
+    }
+    return drained;
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return new WeakIterator();
+  }
+
+  /** @param timeoutNanos how long to wait at most; 0 means until woken up. */
+  private void waitForElement(long timeoutNanos) throws InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    switch (waitStrategy) {
+      case SPIN:
+        break;
+      case YIELD:
+        Thread.yield();
+        break;
+      default:
+        parkedConsumer = Thread.currentThread();
+        // Check again now that producers can see us, to not miss a wake up.
+        if (peek() == null) {
+          if (timeoutNanos > 0) {
+            LockSupport.parkNanos(this, timeoutNanos);
+          } else {
+            LockSupport.park(this);
+          }
+        }
+        parkedConsumer = null;
+    }
+  }
+
+  private void waitForSpace() throws InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    switch (waitStrategy) {
+      case SPIN:
+        break;
+      case YIELD:
+        Thread.yield();
+        break;
+      default:
+        LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+    }
+  }
+
+  /** Walks the positions from the head to the tail, skipping the ones consumed meanwhile. */
+  private final class WeakIterator implements Iterator<E> {
+    private long position = head.get();
+    private E next;
+    private long nextPosition;
+    private E last;
+    private long lastPosition;
+
+    private WeakIterator() {
+      advance();
+    }
+
+    private void advance() {
+      next = null;
+      long end = tail.get();
+      while (next == null && position < end) {
+        position = Math.max(position, head.get());
+        if (position >= end) {
+          break;
+        }
+        nextPosition = position++;
+        next = elementAt(nextPosition, (int) (nextPosition & mask));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public E next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      lastPosition = nextPosition;
+      advance();
+      return last;
+    }
+
+    @Override
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException();
+      }
+      int index = (int) (lastPosition & mask);
+      // Does nothing if the element was consumed meanwhile.
+      if (sequences.get(index) == lastPosition + 1) {
+        elements.compareAndSet(index, last, REMOVED);
+      }
+      last = null;
+    }
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track, per topic partition, of the records that are being processed and computes the
+ * watermark of each partition: the highest offset such that every record at or below it has been
+ * processed (successfully or not).
+ *
+ * <p>A record may map to several statements (one per table of its topic); it is processed once all
+ * of them have been reported through {@link #processed(AbstractSinkRecord)}. Records that don't
+ * expose a partition and an offset are ignored.
+ */
+class OffsetWatermarkTracker {
+  private final ConcurrentMap<String, ConcurrentMap<Integer, PartitionWatermark>> partitions =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Start tracking the given record.
+   *
+   * @param record the record
+   * @param statements the number of times {@link #processed(AbstractSinkRecord)} will be called for
+   *     this record
+   */
+  void register(AbstractSinkRecord record, int statements) {
+    Integer partition = record.partition();
+    Long offset = record.offset();
+    if (partition == null || offset == null) {
+      return;
+    }
+    partitions
+        .computeIfAbsent(record.topic(), t -> new ConcurrentHashMap<>())
+        .computeIfAbsent(partition, p -> new PartitionWatermark())
+        .register(offset, statements);
+  }
+
+  /**
+   * Report that one of the statements of the given record has been processed.
+   *
+   * @param record the record
+   */
+  void processed(AbstractSinkRecord record) {
+    Integer partition = record.partition();
+    Long offset = record.offset();
+    if (partition == null || offset == null) {
+      return;
+    }
+    Map<Integer, PartitionWatermark> topicPartitions = partitions.get(record.topic());
+    if (topicPartitions != null) {
+      PartitionWatermark watermark = topicPartitions.get(partition);
+      if (watermark != null) {
+        watermark.processed(offset);
+      }
+    }
+  }
+
+  /**
+   * Report that one of the statements of the given record has been processed, but that its failure
+   * could not be handled: the watermark of its partition won't reach its offset, but waiting for it
+   * doesn't block anymore.
+   *
+   * @param record the record
+   */
+  void failed(AbstractSinkRecord record) {
+    Integer partition = record.partition();
+    Long offset = record.offset();
+    if (partition == null || offset == null) {
+      return;
+    }
+    Map<Integer, PartitionWatermark> topicPartitions = partitions.get(record.topic());
+    if (topicPartitions != null) {
+      PartitionWatermark watermark = topicPartitions.get(partition);
+      if (watermark != null) {
+        watermark.failed(offset);
+      }
+    }
+  }
+
+  /**
+   * @return the watermark of every partition for which at least one record has been processed, as a
+   *     map of topic to partition to offset.
+   */
+  Map<String, Map<Integer, Long>> getWatermarks() {
+    Map<String, Map<Integer, Long>> result = new HashMap<>();
+    partitions.forEach(
+        (topic, topicPartitions) ->
+            topicPartitions.forEach(
+                (partition, watermark) -> {
+                  long offset = watermark.get();
+                  if (offset >= 0) {
+                    result.computeIfAbsent(topic, t -> new HashMap<>()).put(partition, offset);
+                  }
+                }));
+    return result;
+  }
+
+  /**
+   * Wait until every tracked record whose offset is lower than or equal to the given ones has been
+   * processed. Records registered after the call are not waited for if their offset is higher.
+   *
+   * @param offsets a map of topic to partition to offset
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void awaitProcessed(Map<String, Map<Integer, Long>> offsets) throws InterruptedException {
+    for (Map.Entry<String, Map<Integer, Long>> topicOffsets : offsets.entrySet()) {
+      Map<Integer, PartitionWatermark> topicPartitions = partitions.get(topicOffsets.getKey());
+      if (topicPartitions == null) {
+        continue;
+      }
+      for (Map.Entry<Integer, Long> partitionOffset : topicOffsets.getValue().entrySet()) {
+        PartitionWatermark watermark = topicPartitions.get(partitionOffset.getKey());
+        if (watermark != null) {
+          watermark.await(partitionOffset.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop tracking the given partitions, e.g. because the task closed them or lost them in a
+   * rebalance: their watermarks are no longer reported and threads waiting for them are released.
+   *
+   * @param partitionsByTopic a map of topic to partitions
+   */
+  void remove(Map<String, ? extends Collection<Integer>> partitionsByTopic) {
+    for (Map.Entry<String, ? extends Collection<Integer>> topicPartitions :
+        partitionsByTopic.entrySet()) {
+      Map<Integer, PartitionWatermark> tracked = partitions.get(topicPartitions.getKey());
+      if (tracked == null) {
+        continue;
+      }
+      for (Integer partition : topicPartitions.getValue()) {
+        PartitionWatermark watermark = tracked.remove(partition);
+        if (watermark != null) {
+          watermark.release();
+        }
+      }
+      partitions.computeIfPresent(topicPartitions.getKey(), (t, p) -> p.isEmpty() ? null : p);
+    }
+  }
+
+  /** Stop tracking every partition, releasing the threads waiting for them. */
+  void clear() {
+    partitions.forEach(
+        (topic, topicPartitions) -> {
+          partitions.remove(topic, topicPartitions);
+          topicPartitions.values().forEach(PartitionWatermark::release);
+        });
+  }
+
+  private static final class PartitionWatermark {
+    // offset -> number of statements of the record that are not processed yet
+    private final TreeMap<Long, Integer> pending = new TreeMap<>();
+    private long watermark = -1;
+    // The lowest offset whose failure could not be handled; the watermark stays below it.
+    private long failedOffset = Long.MAX_VALUE;
+    private boolean released;
+
+    synchronized void register(long offset, int statements) {
+      if (statements <= 0) {
+        return;
+      }
+      pending.merge(offset, statements, Integer::sum);
+      if (offset <= watermark) {
+        // The partition was rewound, e.g. after a rebalance.
+        watermark = offset - 1;
+      }
+      if (offset <= failedOffset) {
+        // The failed record is delivered again.
+        failedOffset = Long.MAX_VALUE;
+      }
+    }
+
+    synchronized void failed(long offset) {
+      if (pending.containsKey(offset)) {
+        failedOffset = Math.min(failedOffset, offset);
+        processed(offset);
+      }
+    }
+
+    synchronized void processed(long offset) {
+      Integer remaining = pending.get(offset);
+      if (remaining == null) {
+        return;
+      }
+      pending.put(offset, remaining - 1);
+      boolean advanced = false;
+      while (!pending.isEmpty() && pending.firstEntry().getValue() <= 0) {
+        watermark = Math.max(watermark, pending.pollFirstEntry().getKey());
+        advanced = true;
+      }
+      if (advanced) {
+        notifyAll();
+      }
+    }
+
+    synchronized void release() {
+      released = true;
+      pending.clear();
+      notifyAll();
+    }
+
+    synchronized long get() {
+      return Math.min(watermark, failedOffset - 1);
+    }
+
+    synchronized void await(long offset) throws InterruptedException {
+      while (!released && !pending.isEmpty() && pending.firstKey() <= offset) {
+        wait();
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+
+/** A record that failed to be processed, as reported to {@link AbstractSinkTask}. */
+public class RecordFailure {
+  private final AbstractSinkRecord record;
+  private final Throwable error;
+  @Nullable private final String cql;
+  private final Runnable failCounter;
+
+  /**
+   * @param record the record that failed to process
+   * @param error the exception
+   * @param cql the cql statement that failed to execute, or null if the record failed before
+   * @param failCounter the metric that keeps track of number of failures encountered
+   */
+  public RecordFailure(
+      @NonNull AbstractSinkRecord record,
+      @NonNull Throwable error,
+      @Nullable String cql,
+      @NonNull Runnable failCounter) {
+    this.record = record;
+    this.error = error;
+    this.cql = cql;
+    this.failCounter = failCounter;
+  }
+
+  @NonNull
+  public AbstractSinkRecord getRecord() {
+    return record;
+  }
+
+  @NonNull
+  public Throwable getError() {
+    return error;
+  }
+
+  @Nullable
+  public String getCql() {
+    return cql;
+  }
+
+  @NonNull
+  public Runnable getFailCounter() {
+    return failCounter;
+  }
+}
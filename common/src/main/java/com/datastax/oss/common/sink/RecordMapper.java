@@ -24,6 +24,7 @@ import com.datastax.oss.common.sink.record.RawData;
 import com.datastax.oss.common.sink.record.Record;
 import com.datastax.oss.common.sink.record.RecordMetadata;
 import com.datastax.oss.common.sink.record.StructTimeUnitConverter;
+import com.datastax.oss.common.sink.record.Utf8TextNode;
 import com.datastax.oss.common.sink.util.FunctionMapper;
 import com.datastax.oss.common.sink.util.SinkUtil;
 import com.datastax.oss.driver.api.core.CqlIdentifier;
@@ -38,8 +39,12 @@ import com.datastax.oss.driver.api.core.type.reflect.GenericType;
 import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.NumericNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -55,6 +60,7 @@ import org.slf4j.LoggerFactory;
  */
 public class RecordMapper {
   private static final Logger log = LoggerFactory.getLogger(RecordMapper.class);
+  private static final int MAX_RECORD_SHAPES = 1000;
   private final PreparedStatement insertUpdateStatement;
   private final PreparedStatement deleteStatement;
   private final Set<CqlIdentifier> primaryKey;
@@ -69,6 +75,14 @@ public class RecordMapper {
 
   private final boolean isQueryProvided;
 
+  // What only depends on the set of fields of records: validation and compiled bindings. Records
+  // with a shape (see Record#shape) are looked up by its identity, like the metadata of schemas,
+  // rather than by hashing and comparing their field names; the others by their set of fields.
+  private final Cache<Object, RecordShape> sharedShapes =
+      Caffeine.newBuilder().weakKeys().maximumSize(MAX_RECORD_SHAPES).build();
+  private final Cache<Set<String>, RecordShape> shapes =
+      Caffeine.newBuilder().maximumSize(MAX_RECORD_SHAPES).build();
+
   public RecordMapper(
       PreparedStatement insertUpdateStatement,
       PreparedStatement deleteStatement,
@@ -89,6 +103,12 @@ public class RecordMapper {
     this.isQueryProvided = tableConfig.isQueryProvided();
   }
 
+  /** @return the statement deletes are bound from, or null if deletes are disabled. */
+  @Nullable
+  PreparedStatement getDeleteStatement() {
+    return deleteStatement;
+  }
+
   @NonNull
   private static String getExternalName(@NonNull String field) {
     if (field.endsWith(RawData.FIELD_NAME)) {
@@ -100,30 +120,27 @@ public class RecordMapper {
 
   @NonNull
   public BoundStatement map(RecordMetadata recordMetadata, Record record) {
+    Object sharedShape = record.shape();
+    RecordShape shape =
+        sharedShape != null
+            ? sharedShapes.get(sharedShape, s -> new RecordShape(record.fields(), record))
+            : shapes.get(record.fields(), fields -> new RecordShape(fields, null));
+    assert shape != null;
     if (!allowMissingFields) {
-      ensureAllFieldsPresent(
-          record.fields(), insertUpdateStatement.getVariableDefinitions(), mapping);
+      shape.ensureAllFieldsPresent();
     }
 
     // Determine if we're doing an insert-update or a delete
-    PreparedStatement preparedStatement;
     boolean isInsertUpdate = true;
-    if (deleteStatement == null) {
-      // There is no delete statement, meaning deletesEnabled must be false. So just
-      // do an insert/update.
-      preparedStatement = insertUpdateStatement;
-    } else {
-      isInsertUpdate = isInsertUpdate(record, mapping, primaryKey);
-      preparedStatement = isInsertUpdate ? insertUpdateStatement : deleteStatement;
+    if (deleteStatement != null) {
+      isInsertUpdate = shape.isInsertUpdate(record);
     }
+    // If there is no delete statement, deletesEnabled must be false. So just do an insert/update.
+    PreparedStatement preparedStatement = isInsertUpdate ? insertUpdateStatement : deleteStatement;
+    BindingPlan plan = shape.plan(isInsertUpdate, record);
     BoundStatementBuilder builder = preparedStatement.boundStatementBuilder();
-    ColumnDefinitions variableDefinitions = preparedStatement.getVariableDefinitions();
-    for (String field : record.fields()) {
-      bindColumnsToBuilder(recordMetadata, record, builder, variableDefinitions, field, false);
-    }
-    for (CqlIdentifier function : mapping.functions()) {
-      bindColumnsToBuilder(
-          recordMetadata, record, builder, variableDefinitions, function.asInternal(), true);
+    for (Binding binding : plan.bindings) {
+      bind(binding, recordMetadata, record, builder);
     }
 
     // Set a timestamp if (a) the user did not explicitly provide a CQL query and (b) no timestamp
@@ -132,34 +149,80 @@ public class RecordMapper {
     if (!isQueryProvided
         && record.getTimestamp() != null
         && isInsertUpdate
-        && timestampIsNotSet(builder)) {
-      bindColumn(
-          builder,
-          SinkUtil.TIMESTAMP_VARNAME_CQL_IDENTIFIER,
-          record.getTimestamp() * 1000,
-          DataTypes.BIGINT,
-          GenericType.LONG);
+        && plan.timestamp != null
+        && timestampIsNotSet(builder, plan.timestamp)) {
+      bindColumn(builder, plan.timestamp, record.getTimestamp() * 1000, plan.timestamp.fixedType);
+    }
+
+    // Only the statements generated by the connector are known to be idempotent: a user-provided
+    // query may append to a collection, and counter updates never are.
+    if (plan.isIdempotent) {
+      builder.setIdempotence(true);
     }
 
     BoundStatement bs = builder.build();
     // if user provided custom query we are not validating PKs because they may have different names
     // in prepared statement than column definition on CQL table
     if (!isQueryProvided) {
-      ensurePrimaryKeySet(bs);
+      ensurePrimaryKeySet(bs, plan);
     }
 
     return bs;
   }
 
-  private void bindColumnsToBuilder(
-      RecordMetadata recordMetadata,
-      Record record,
-      BoundStatementBuilder builder,
+  /**
+   * Resolves, once per statement and set of record fields, the variables each field (and each
+   * function of the mapping) is bound to, so that mapping a record only walks a flat array.
+   *
+   * @param sample a record of the shape to resolve the indices of its fields with, or null if
+   *     fields are read by name
+   */
+  private BindingPlan compilePlan(
+      PreparedStatement preparedStatement, Set<String> fields, @Nullable Record sample) {
+    ColumnDefinitions variableDefinitions = preparedStatement.getVariableDefinitions();
+    List<Binding> bindings = new ArrayList<>();
+    for (String field : fields) {
+      int fieldIndex = sample != null ? sample.indexOf(field) : -1;
+      addBindings(bindings, variableDefinitions, field, fieldIndex, false);
+    }
+    for (CqlIdentifier function : mapping.functions()) {
+      addBindings(bindings, variableDefinitions, function.asInternal(), -1, true);
+    }
+    Binding timestamp = null;
+    int[] timestampIndices =
+        indicesOf(variableDefinitions, SinkUtil.TIMESTAMP_VARNAME_CQL_IDENTIFIER);
+    if (timestampIndices.length > 0) {
+      timestamp =
+          new Binding(
+              SinkUtil.TIMESTAMP_VARNAME,
+              -1,
+              false,
+              SinkUtil.TIMESTAMP_VARNAME_CQL_IDENTIFIER,
+              timestampIndices,
+              DataTypes.BIGINT,
+              GenericType.LONG);
+    }
+    int[] primaryKeyIndices = new int[primaryKey.size()];
+    int i = 0;
+    for (CqlIdentifier key : primaryKey) {
+      primaryKeyIndices[i++] = variableDefinitions.firstIndexOf(key);
+    }
+    boolean isIdempotent = !isQueryProvided;
+    for (int j = 0; j < variableDefinitions.size(); j++) {
+      if (variableDefinitions.get(j).getType() == DataTypes.COUNTER) {
+        isIdempotent = false;
+      }
+    }
+    return new BindingPlan(
+        bindings.toArray(new Binding[0]), timestamp, primaryKeyIndices, isIdempotent);
+  }
+
+  private void addBindings(
+      List<Binding> bindings,
       ColumnDefinitions variableDefinitions,
       String fieldOrFunction,
+      int fieldIndex,
       boolean isFunction) {
-    DataType cqlType;
-    Object raw;
     Collection<CqlIdentifier> columns =
         mapping.fieldToColumns(CqlIdentifier.fromInternal(fieldOrFunction));
     if ((columns == null || columns.isEmpty()) && !allowExtraFields) {
@@ -177,32 +240,66 @@ public class RecordMapper {
           // mapped columns).
           continue;
         }
-        cqlType = variableDefinitions.get(column).getType();
+        GenericType<?> fixedType = null;
         if (isFunction) {
-          GenericType<?> fieldType = FunctionMapper.typeForFunction(fieldOrFunction);
-          if (fieldType != null) {
-            log.trace("binding function {} to column {}", fieldOrFunction, column.asInternal());
-            bindColumn(
-                builder,
-                column,
-                FunctionMapper.valueForFunction(fieldOrFunction),
-                cqlType,
-                fieldType);
-          }
-        } else {
-          GenericType<?> fieldType = recordMetadata.getFieldType(fieldOrFunction, cqlType);
-          if (fieldType != null) {
-            raw =
-                getFieldValueAndMaybeTransform(
-                    record, fieldOrFunction, column, ttlTimeUnit, timestampTimeUnit);
-            log.trace(
-                "binding field {} with value {} to column {}",
-                fieldOrFunction,
-                raw,
-                column.asInternal());
-            bindColumn(builder, column, raw, cqlType, fieldType);
+          fixedType = FunctionMapper.typeForFunction(fieldOrFunction);
+          if (fixedType == null) {
+            continue;
           }
         }
+        bindings.add(
+            new Binding(
+                fieldOrFunction,
+                fieldIndex,
+                isFunction,
+                column,
+                indicesOf(variableDefinitions, column),
+                variableDefinitions.get(column).getType(),
+                fixedType));
+      }
+    }
+  }
+
+  private static int[] indicesOf(ColumnDefinitions variableDefinitions, CqlIdentifier variable) {
+    return variableDefinitions.allIndicesOf(variable).stream().mapToInt(i -> i).toArray();
+  }
+
+  private void bind(
+      Binding binding,
+      RecordMetadata recordMetadata,
+      Record record,
+      BoundStatementBuilder builder) {
+    if (binding.isFunction) {
+      log.trace(
+          "binding function {} to column {}",
+          binding.fieldOrFunction,
+          binding.variable.asInternal());
+      bindColumn(
+          builder,
+          binding,
+          FunctionMapper.valueForFunction(binding.fieldOrFunction),
+          binding.fixedType);
+    } else {
+      GenericType<?> fieldType =
+          recordMetadata.getFieldType(binding.fieldOrFunction, binding.cqlType);
+      if (fieldType != null) {
+        Object fieldValue =
+            binding.fieldIndex < 0
+                ? record.getFieldValue(binding.fieldOrFunction)
+                : record.getFieldValue(binding.fieldIndex);
+        Object raw =
+            transformFieldValue(
+                fieldValue,
+                binding.fieldOrFunction,
+                binding.variable,
+                ttlTimeUnit,
+                timestampTimeUnit);
+        log.trace(
+            "binding field {} with value {} to column {}",
+            binding.fieldOrFunction,
+            raw,
+            binding.variable.asInternal());
+        bindColumn(builder, binding, raw, fieldType);
       }
     }
   }
@@ -215,26 +312,42 @@ public class RecordMapper {
     if (mapping.getMappedColumns().equals(primaryKey)) {
       return true;
     }
-    for (String field : record.fields()) {
-      Object fieldValue = record.getFieldValue(field);
-      if (fieldValue == null || fieldValue instanceof NullNode) {
-        continue;
-      }
+    return hasNonNullField(record, regularFields(record.fields(), mapping, primaryKey), null);
+  }
+
+  /** @return the fields mapped to at least one column outside of the primary key. */
+  private static String[] regularFields(
+      Set<String> fields, Mapping mapping, Set<CqlIdentifier> primaryKey) {
+    List<String> regularFields = new ArrayList<>();
+    for (String field : fields) {
       Collection<CqlIdentifier> mappedCols =
           mapping.fieldToColumns(CqlIdentifier.fromInternal(field));
       if (mappedCols != null) {
         for (CqlIdentifier mappedCol : mappedCols) {
           if (!primaryKey.contains(mappedCol)) {
-            return true;
+            regularFields.add(field);
+            break;
           }
         }
       }
     }
+    return regularFields.toArray(new String[0]);
+  }
+
+  /** @param indices the indices of the fields in the record, or null to read them by name */
+  private static boolean hasNonNullField(Record record, String[] fields, @Nullable int[] indices) {
+    for (int i = 0; i < fields.length; i++) {
+      Object fieldValue =
+          indices == null ? record.getFieldValue(fields[i]) : record.getFieldValue(indices[i]);
+      if (fieldValue != null && !(fieldValue instanceof NullNode)) {
+        return true;
+      }
+    }
     return false;
   }
 
-  private boolean timestampIsNotSet(BoundStatementBuilder builder) {
-    return !builder.isSet(SinkUtil.TIMESTAMP_VARNAME_CQL_IDENTIFIER);
+  private boolean timestampIsNotSet(BoundStatementBuilder builder, Binding timestamp) {
+    return !builder.isSet(timestamp.indices[0]);
   }
 
   @VisibleForTesting
@@ -244,8 +357,17 @@ public class RecordMapper {
       CqlIdentifier column,
       TimeUnit ttlTimeUnit,
       TimeUnit timestampTimeUnit) {
+    return transformFieldValue(
+        record.getFieldValue(field), field, column, ttlTimeUnit, timestampTimeUnit);
+  }
+
+  private static Object transformFieldValue(
+      Object fieldValue,
+      String field,
+      CqlIdentifier column,
+      TimeUnit ttlTimeUnit,
+      TimeUnit timestampTimeUnit) {
     Object raw;
-    Object fieldValue = record.getFieldValue(field);
 
     if (SinkUtil.isTtlMappingColumn(column)) {
       if (fieldValue instanceof NumericNode) { // case that ttl is from Json node
@@ -280,37 +402,41 @@ public class RecordMapper {
     return raw;
   }
 
-  private <T> BoundStatementBuilder bindColumn(
-      BoundStatementBuilder builder,
-      CqlIdentifier variable,
-      T raw,
-      DataType cqlType,
-      GenericType<? extends T> javaType) {
+  private void bindColumn(
+      BoundStatementBuilder builder, Binding binding, Object raw, GenericType<?> javaType) {
     if (log.isDebugEnabled()) {
       log.debug(
           "Mapping {} to {} ({}) cqlType {} javaType {}",
-          variable,
+          binding.variable,
           raw,
           (raw != null ? raw.getClass() : "<NULL>"),
-          cqlType,
+          binding.cqlType,
           javaType);
     }
-    TypeCodec<T> codec = mapping.codec(variable, cqlType, javaType);
-    ByteBuffer bb = codec.encode(raw, builder.protocolVersion());
+    ByteBuffer bb;
+    if (raw instanceof Utf8TextNode && binding.cqlType.equals(DataTypes.TEXT)) {
+      // Already encoded as a text column expects it.
+      bb = ((Utf8TextNode) raw).utf8Bytes();
+    } else {
+      TypeCodec<Object> codec = binding.codec(mapping, javaType);
+      bb = codec.encode(raw, builder.protocolVersion());
+    }
     // Account for nullToUnset.
-    if (isNull(bb, cqlType)) {
-      if (isPrimaryKey(variable)) {
+    if (isNull(bb, binding.cqlType)) {
+      if (binding.isPrimaryKey) {
         throw new ConfigException(
             "Primary key column "
-                + variable.asCql(true)
+                + binding.variable.asCql(true)
                 + " cannot be mapped to null. "
                 + "Check that your mapping setting matches your dataset contents.");
       }
       if (nullToUnset) {
-        return builder;
+        return;
       }
     }
-    return builder.setBytesUnsafe(variable, bb);
+    for (int index : binding.indices) {
+      builder.setBytesUnsafe(index, bb);
+    }
   }
 
   private boolean isNull(ByteBuffer bb, DataType cqlType) {
@@ -331,10 +457,6 @@ public class RecordMapper {
     }
   }
 
-  private boolean isPrimaryKey(CqlIdentifier variable) {
-    return primaryKey.contains(variable);
-  }
-
   @VisibleForTesting
   static void ensureAllFieldsPresent(
       Set<String> recordFields, ColumnDefinitions variables, Mapping mapping) {
@@ -381,18 +503,34 @@ public class RecordMapper {
   }
 
   private static boolean isValueSelfOnlyValueField(Set<String> recordFields) {
-    List<String> result =
-        recordFields.stream().filter(RecordMapper::isFieldValue).collect(Collectors.toList());
-    return result.size() == 1 && result.contains(RawData.VALUE_FIELD_NAME);
+    if (!recordFields.contains(RawData.VALUE_FIELD_NAME)) {
+      return false;
+    }
+    for (String field : recordFields) {
+      if (isFieldValue(field) && !field.equals(RawData.VALUE_FIELD_NAME)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   private static boolean isFieldValue(String variable) {
     return variable.startsWith("value.");
   }
 
-  private void ensurePrimaryKeySet(BoundStatement bs) {
+  private void ensurePrimaryKeySet(BoundStatement bs, BindingPlan plan) {
     // This cannot fail unless the insert/update CQL is custom and the user didn't specify
     // all key columns.
+    boolean allSet = true;
+    for (int index : plan.primaryKeyIndices) {
+      if (index < 0 || !bs.isSet(index)) {
+        allSet = false;
+        break;
+      }
+    }
+    if (allSet) {
+      return;
+    }
     String unsetKeys =
         primaryKey
             .stream()
@@ -407,4 +545,156 @@ public class RecordMapper {
               unsetKeys));
     }
   }
+
+  /**
+   * What is known of the records with a given set of fields: whether they have all the required
+   * fields, which of their fields make them inserts rather than deletes, and their binding plans,
+   * with the indices of the fields if the records of the shape share them (see {@link
+   * Record#indexOf}). Everything is resolved on first use; failures are not remembered.
+   */
+  private final class RecordShape {
+    private final Set<String> fields;
+    /** The fields whose values make a record an insert, or null if records are always inserts. */
+    @Nullable private final String[] regularFields;
+    /** The indices of the regular fields in the records, or null if they are read by name. */
+    @Nullable private final int[] regularFieldIndices;
+    /** Whether the fields of the records of this shape are read by index. */
+    private final boolean indexed;
+
+    private volatile boolean fieldsPresent;
+    @Nullable private volatile BindingPlan insertUpdatePlan;
+    @Nullable private volatile BindingPlan deletePlan;
+
+    /**
+     * @param sample a record of the shape if all of them share the indices of their fields, null
+     *     otherwise
+     */
+    private RecordShape(Set<String> fields, @Nullable Record sample) {
+      this.fields = fields;
+      indexed = sample != null;
+      regularFields =
+          deleteStatement == null || mapping.getMappedColumns().equals(primaryKey)
+              ? null
+              : regularFields(fields, mapping, primaryKey);
+      regularFieldIndices = indices(regularFields, sample);
+    }
+
+    @Nullable
+    private int[] indices(@Nullable String[] fields, @Nullable Record sample) {
+      if (fields == null || sample == null) {
+        return null;
+      }
+      int[] indices = new int[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        indices[i] = sample.indexOf(fields[i]);
+        if (indices[i] < 0) {
+          // Some fields are read by name: read them all by name.
+          return null;
+        }
+      }
+      return indices;
+    }
+
+    private void ensureAllFieldsPresent() {
+      if (!fieldsPresent) {
+        RecordMapper.ensureAllFieldsPresent(
+            fields, insertUpdateStatement.getVariableDefinitions(), mapping);
+        fieldsPresent = true;
+      }
+    }
+
+    private boolean isInsertUpdate(Record record) {
+      return regularFields == null || hasNonNullField(record, regularFields, regularFieldIndices);
+    }
+
+    /** @param record a record of this shape */
+    private BindingPlan plan(boolean isInsertUpdate, Record record) {
+      BindingPlan plan = isInsertUpdate ? insertUpdatePlan : deletePlan;
+      if (plan == null) {
+        Record sample = indexed ? record : null;
+        if (isInsertUpdate) {
+          plan = insertUpdatePlan = compilePlan(insertUpdateStatement, fields, sample);
+        } else {
+          plan = deletePlan = compilePlan(deleteStatement, fields, sample);
+        }
+      }
+      return plan;
+    }
+  }
+
+  /** The variables to bind for records with a given set of fields. */
+  private static final class BindingPlan {
+    private final Binding[] bindings;
+    @Nullable private final Binding timestamp;
+    /** The first index of each primary key column, -1 if it is not a variable. */
+    private final int[] primaryKeyIndices;
+    /** Whether the statement may be applied twice without harm. */
+    private final boolean isIdempotent;
+
+    private BindingPlan(
+        Binding[] bindings,
+        @Nullable Binding timestamp,
+        int[] primaryKeyIndices,
+        boolean isIdempotent) {
+      this.bindings = bindings;
+      this.timestamp = timestamp;
+      this.primaryKeyIndices = primaryKeyIndices;
+      this.isIdempotent = isIdempotent;
+    }
+  }
+
+  /** A variable to bind from a record field or a function. */
+  private final class Binding {
+    private final String fieldOrFunction;
+    /** The index of the field in the records, or -1 to read it by name. */
+    private final int fieldIndex;
+
+    private final boolean isFunction;
+    private final CqlIdentifier variable;
+    private final int[] indices;
+    private final DataType cqlType;
+    private final boolean isPrimaryKey;
+    /** The Java type of the value, if it does not depend on the record. */
+    @Nullable private final GenericType<?> fixedType;
+    /** The codec of the last Java type seen: the type of a field hardly ever changes. */
+    @Nullable private volatile ResolvedCodec lastCodec;
+
+    private Binding(
+        String fieldOrFunction,
+        int fieldIndex,
+        boolean isFunction,
+        CqlIdentifier variable,
+        int[] indices,
+        DataType cqlType,
+        @Nullable GenericType<?> fixedType) {
+      this.fieldOrFunction = fieldOrFunction;
+      this.fieldIndex = fieldIndex;
+      this.isFunction = isFunction;
+      this.variable = variable;
+      this.indices = indices;
+      this.cqlType = cqlType;
+      this.isPrimaryKey = primaryKey.contains(variable);
+      this.fixedType = fixedType;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TypeCodec<Object> codec(Mapping mapping, GenericType<?> javaType) {
+      ResolvedCodec resolved = lastCodec;
+      if (resolved == null || !resolved.javaType.equals(javaType)) {
+        resolved = new ResolvedCodec(javaType, mapping.codec(variable, cqlType, javaType));
+        lastCodec = resolved;
+      }
+      return (TypeCodec<Object>) resolved.codec;
+    }
+  }
+
+  private static final class ResolvedCodec {
+    private final GenericType<?> javaType;
+    private final TypeCodec<?> codec;
+
+    private ResolvedCodec(GenericType<?> javaType, TypeCodec<?> codec) {
+      this.javaType = javaType;
+      this.codec = codec;
+    }
+  }
 }
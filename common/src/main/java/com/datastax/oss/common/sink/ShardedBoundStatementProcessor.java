@@ -0,0 +1,115 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import com.datastax.oss.common.sink.record.RecordAndStatement;
+import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Spreads [sink-record, bound-statement] pairs over several {@link BoundStatementProcessor}s, each
+ * with its own queue, group map and thread, so that batching is not limited to a single core.
+ *
+ * <p>The shard of a statement is selected by hashing its routing key: statements for the same
+ * partition always land in the same shard and keep the order in which they were offered.
+ */
+class ShardedBoundStatementProcessor {
+  private final List<BlockingQueue<RecordAndStatement>> queues;
+  private final List<BoundStatementProcessor> processors;
+
+  /**
+   * @param queues the queue of each shard, at least one; they must be empty and not consumed by
+   *     another processor
+   * @param processorFactory creates the processor of a shard, given the queue it must consume
+   */
+  ShardedBoundStatementProcessor(
+      List<BlockingQueue<RecordAndStatement>> queues,
+      Function<BlockingQueue<RecordAndStatement>, BoundStatementProcessor> processorFactory) {
+    this.queues = queues;
+    processors = new ArrayList<>(queues.size());
+    for (BlockingQueue<RecordAndStatement> queue : queues) {
+      processors.add(processorFactory.apply(queue));
+    }
+  }
+
+  /**
+   * Start the processing loop of every shard.
+   *
+   * @param executor the executor to run the loops on; it must be able to run all of them at once
+   * @return a future that completes once every loop has terminated
+   */
+  CompletableFuture<Void> start(Executor executor) {
+    List<CompletableFuture<Void>> tasks = new ArrayList<>(processors.size());
+    for (BoundStatementProcessor processor : processors) {
+      tasks.add(
+          CompletableFuture.runAsync(
+              () -> {
+                try {
+                  processor.call();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              },
+              executor));
+    }
+    return CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0]));
+  }
+
+  /**
+   * Hand the given statement over to the shard of its routing key, waiting for space in its queue
+   * if needed.
+   *
+   * @param recordAndStatement the record/statement to process
+   */
+  void offer(RecordAndStatement recordAndStatement) {
+    try {
+      queues.get(shardOf(recordAndStatement)).put(recordAndStatement);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while queueing statement", e);
+    }
+  }
+
+  @VisibleForTesting
+  int shardOf(RecordAndStatement recordAndStatement) {
+    if (queues.size() == 1) {
+      return 0;
+    }
+    ByteBuffer routingKey = recordAndStatement.getStatement().getRoutingKey();
+    return routingKey == null ? 0 : Math.floorMod(routingKey.hashCode(), queues.size());
+  }
+
+  /** @see BoundStatementProcessor#stop() */
+  void stop() {
+    processors.forEach(BoundStatementProcessor::stop);
+  }
+
+  /** @see BoundStatementProcessor#flush() */
+  CompletableFuture<Void> flush() {
+    return CompletableFuture.allOf(
+        processors.stream().map(BoundStatementProcessor::flush).toArray(CompletableFuture[]::new));
+  }
+
+  int getSuccessfulRecordCount() {
+    return processors.stream().mapToInt(BoundStatementProcessor::getSuccessfulRecordCount).sum();
+  }
+}
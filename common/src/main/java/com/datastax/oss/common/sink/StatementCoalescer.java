@@ -0,0 +1,221 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import com.datastax.oss.common.sink.config.TableConfig;
+import com.datastax.oss.common.sink.record.RecordAndStatement;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.metadata.schema.ColumnMetadata;
+import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
+import com.datastax.oss.driver.api.core.type.DataTypes;
+import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Collapses statements that write to the same row of a table, so that only one of them is sent: the
+ * last write wins, or, for counter tables, the increments are summed up.
+ *
+ * <p>Of two statements, the one whose record has the newest timestamp wins, or the last one if the
+ * timestamps are equal or unknown. They are only collapsed if this does not change the final state
+ * of the row, that is if the winner overwrites everything the other statement writes: a delete
+ * overwrites the whole row; an insert overwrites the columns it sets, and the whole row if it sets
+ * all of them (deletes are only enabled when all the columns of the table are mapped). Otherwise
+ * both statements are kept, in order.
+ *
+ * <p>Counter updates are not idempotent, and each of them is costly: two updates of the same row
+ * are replaced by one whose increments are the sums of theirs. Record timestamps don't matter
+ * there.
+ *
+ * <p>Statements of user-provided queries are never collapsed.
+ */
+final class StatementCoalescer {
+  private final List<CqlIdentifier> primaryKey;
+  private final boolean counter;
+  // The statement the record mapper binds deletes from, if deletes are enabled.
+  @Nullable private final PreparedStatement deleteStatement;
+
+  @VisibleForTesting
+  StatementCoalescer(
+      List<CqlIdentifier> primaryKey,
+      boolean counter,
+      @Nullable PreparedStatement deleteStatement) {
+    this.primaryKey = primaryKey;
+    this.counter = counter;
+    this.deleteStatement = deleteStatement;
+  }
+
+  /**
+   * @param tableConfig the table to write to
+   * @param table the metadata of the table
+   * @param mapper the mapper of the records to the table
+   * @param coalesceWrites whether to collapse writes to regular tables
+   * @param aggregateCounters whether to sum up increments of counter tables
+   * @return a coalescer for the statements of the table, or null if they can't be collapsed
+   */
+  @Nullable
+  static StatementCoalescer create(
+      TableConfig tableConfig,
+      TableMetadata table,
+      RecordMapper mapper,
+      boolean coalesceWrites,
+      boolean aggregateCounters) {
+    if (tableConfig.isQueryProvided()) {
+      return null;
+    }
+    boolean counter =
+        table.getColumns().values().stream().anyMatch(c -> c.getType() == DataTypes.COUNTER);
+    if (counter ? !aggregateCounters : !coalesceWrites) {
+      return null;
+    }
+    return new StatementCoalescer(
+        table.getPrimaryKey().stream().map(ColumnMetadata::getName).collect(Collectors.toList()),
+        counter,
+        mapper.getDeleteStatement());
+  }
+
+  /** @return the key of the row the statement writes to, or null if it is unknown. */
+  @Nullable
+  Object rowKey(BoundStatement statement) {
+    ColumnDefinitions variables = statement.getPreparedStatement().getVariableDefinitions();
+    List<ByteBuffer> key = new ArrayList<>(primaryKey.size());
+    for (CqlIdentifier column : primaryKey) {
+      if (!variables.contains(column) || !statement.isSet(column)) {
+        return null;
+      }
+      key.add(statement.getBytesUnsafe(column));
+    }
+    return key;
+  }
+
+  /**
+   * @param older a statement writing to some row
+   * @param newer a statement writing to the same row, received after {@code older}
+   * @return a statement standing for both, or null if they must both be executed
+   */
+  @Nullable
+  RecordAndStatement coalesce(RecordAndStatement older, RecordAndStatement newer) {
+    if (counter) {
+      BoundStatement sum = sumIncrements(older.getStatement(), newer.getStatement());
+      return sum == null ? null : new CoalescedStatement(newer, sum, older);
+    }
+    RecordAndStatement winner = newer;
+    RecordAndStatement loser = older;
+    Long olderTimestamp = older.getRecord().timestamp();
+    Long newerTimestamp = newer.getRecord().timestamp();
+    if (olderTimestamp != null && newerTimestamp != null && olderTimestamp > newerTimestamp) {
+      winner = older;
+      loser = newer;
+    }
+    if (!overwrites(winner.getStatement(), loser.getStatement())) {
+      return null;
+    }
+    return new CoalescedStatement(winner, winner.getStatement(), loser);
+  }
+
+  /** @return an update applying the increments of both given ones, or null if there is none. */
+  @Nullable
+  private static BoundStatement sumIncrements(BoundStatement older, BoundStatement newer) {
+    if (!older.getPreparedStatement().getQuery().equals(newer.getPreparedStatement().getQuery())) {
+      return null;
+    }
+    ColumnDefinitions variables = newer.getPreparedStatement().getVariableDefinitions();
+    BoundStatement sum = newer;
+    for (int i = 0; i < variables.size(); i++) {
+      if (variables.get(i).getType() != DataTypes.COUNTER || !older.isSet(i)) {
+        continue;
+      }
+      if (older.isNull(i) || (newer.isSet(i) && newer.isNull(i))) {
+        // Invalid increments: let the server reject them.
+        return null;
+      }
+      // An unset increment leaves the counter unchanged.
+      long increment = newer.isSet(i) ? newer.getLong(i) : 0;
+      sum = sum.setLong(i, older.getLong(i) + increment);
+    }
+    return sum;
+  }
+
+  private boolean overwrites(BoundStatement winner, BoundStatement loser) {
+    if (isDelete(winner)) {
+      return true;
+    }
+    ColumnDefinitions variables = winner.getPreparedStatement().getVariableDefinitions();
+    if (isDelete(loser)) {
+      for (int i = 0; i < variables.size(); i++) {
+        if (!winner.isSet(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    ColumnDefinitions loserVariables = loser.getPreparedStatement().getVariableDefinitions();
+    for (int i = 0; i < loserVariables.size(); i++) {
+      CqlIdentifier name = loserVariables.get(i).getName();
+      if (loser.isSet(i) && !(variables.contains(name) && winner.isSet(name))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isDelete(BoundStatement statement) {
+    return deleteStatement != null && statement.getPreparedStatement() == deleteStatement;
+  }
+
+  /**
+   * @return the statements of the records behind the given ones, including the records of
+   *     statements that were collapsed.
+   */
+  @NonNull
+  static List<RecordAndStatement> sources(List<RecordAndStatement> statements) {
+    if (statements.stream().noneMatch(s -> s instanceof CoalescedStatement)) {
+      return statements;
+    }
+    List<RecordAndStatement> sources = new ArrayList<>();
+    for (RecordAndStatement statement : statements) {
+      addSources(statement, sources);
+    }
+    return sources;
+  }
+
+  private static void addSources(RecordAndStatement statement, List<RecordAndStatement> sources) {
+    if (statement instanceof CoalescedStatement) {
+      sources.addAll(((CoalescedStatement) statement).sources);
+    } else {
+      sources.add(statement);
+    }
+  }
+
+  /** The statement standing for others; it stands for their records as well. */
+  private static final class CoalescedStatement extends RecordAndStatement {
+    private final List<RecordAndStatement> sources = new ArrayList<>();
+
+    private CoalescedStatement(
+        RecordAndStatement winner, BoundStatement statement, RecordAndStatement loser) {
+      super(winner.getRecord(), winner.getKeyspaceAndTable(), statement);
+      addSources(winner, sources);
+      addSources(loser, sources);
+    }
+  }
+}
@@ -38,11 +38,13 @@ import edu.umd.cs.findbugs.annotations.Nullable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
@@ -80,6 +82,14 @@ public class CassandraSinkConfig {
 
   static final String CONCURRENT_REQUESTS_OPT = "maxConcurrentRequests";
 
+  static final String CONCURRENCY_LIMITER_OPT = "concurrencyLimiter";
+
+  static final String MAX_CONCURRENCY_LIMIT_OPT = "maxConcurrencyLimit";
+
+  static final String CONCURRENT_REQUESTS_PER_TABLE_OPT = "maxConcurrentRequestsPerTable";
+
+  static final String CONCURRENT_REQUESTS_PER_NODE_OPT = "maxConcurrentRequestsPerNode";
+
   static final String QUERY_EXECUTION_TIMEOUT_OPT = "queryExecutionTimeout";
   static final String QUERY_EXECUTION_TIMEOUT_DRIVER_SETTING =
       withDriverPrefix(DefaultDriverOption.REQUEST_TIMEOUT);
@@ -100,6 +110,43 @@ public class CassandraSinkConfig {
 
   static final String MAX_NUMBER_OF_RECORDS_IN_BATCH = "maxNumberOfRecordsInBatch";
 
+  static final String MAX_BATCH_SIZE_IN_BYTES_OPT = "maxBatchSizeInBytes";
+
+  static final String BATCH_LINGER_MS_OPT = "batchLingerMs";
+
+  static final String ADAPTIVE_BATCHING_OPT = "adaptiveBatching";
+
+  static final String BATCH_GROUPING_OPT = "batchGrouping";
+
+  static final String MAX_NUMBER_OF_RECORDS_IN_REPLICA_BATCH_OPT =
+      "maxNumberOfRecordsInReplicaBatch";
+
+  static final String ASYNC_PUT_OPT = "asyncPut";
+
+  static final String BATCHING_SHARDS_OPT = "batchingShards";
+
+  static final String STATEMENT_QUEUE_CAPACITY_OPT = "statementQueueCapacity";
+
+  static final String STATEMENT_QUEUE_WAIT_STRATEGY_OPT = "statementQueueWaitStrategy";
+
+  static final String COALESCE_WRITES_OPT = "coalesceWrites";
+
+  static final String AGGREGATE_COUNTERS_OPT = "aggregateCounters";
+
+  static final String SPLIT_FAILED_BATCHES_OPT = "splitFailedBatches";
+
+  static final String SPLIT_RETRY_DELAY_MS_OPT = "splitRetryDelayMs";
+
+  static final String SPILL_DIRECTORY_OPT = "spillDirectory";
+
+  static final String SPILL_MAX_SIZE_IN_BYTES_OPT = "spillMaxSizeInBytes";
+
+  static final String SPILL_ADMISSION_TIMEOUT_MS_OPT = "spillAdmissionTimeoutMs";
+
+  static final String SPILL_DRAIN_RATE_OPT = "spillDrainRate";
+
+  static final String COMPLETION_THREADS_OPT = "completionThreads";
+
   static final String METRICS_HIGHEST_LATENCY_OPT = "metricsHighestLatency";
   static final String METRICS_HIGHEST_LATENCY_DRIVER_SETTINGS =
       withDriverPrefix(DefaultDriverOption.METRICS_NODE_CQL_MESSAGES_HIGHEST);
@@ -147,6 +194,49 @@ public class CassandraSinkConfig {
               ConfigDef.Range.atLeast(1),
               ConfigDef.Importance.HIGH,
               "The maximum number of requests to send at once")
+          .define(
+              CONCURRENCY_LIMITER_OPT,
+              ConfigDef.Type.STRING,
+              "Fixed",
+              ConfigDef.CaseInsensitiveValidString.in("FIXED", "AIMD", "GRADIENT", "VEGAS"),
+              ConfigDef.Importance.LOW,
+              "How the number of requests sent at once is limited. Valid values are: "
+                  + "Fixed (at most "
+                  + CONCURRENT_REQUESTS_OPT
+                  + ", the default), "
+                  + "AIMD (grows by one while requests succeed, shrinks by 10% on timeouts and "
+                  + "overloaded errors), "
+                  + "Gradient (shrinks when latency goes up compared to its long-term average), "
+                  + "Vegas (shrinks when latency shows requests queueing up). "
+                  + "Adaptive limits start at "
+                  + CONCURRENT_REQUESTS_OPT
+                  + " and never exceed "
+                  + MAX_CONCURRENCY_LIMIT_OPT
+                  + ".")
+          .define(
+              MAX_CONCURRENCY_LIMIT_OPT,
+              ConfigDef.Type.INT,
+              2000,
+              ConfigDef.Range.atLeast(1),
+              ConfigDef.Importance.LOW,
+              "The maximum number of requests to send at once when the limit is adaptive")
+          .define(
+              CONCURRENT_REQUESTS_PER_TABLE_OPT,
+              ConfigDef.Type.INT,
+              0,
+              ConfigDef.Range.atLeast(0),
+              ConfigDef.Importance.LOW,
+              "The maximum number of requests to send at once to a single table, so that a heavy "
+                  + "table cannot take every request slot. 0 means no limit.")
+          .define(
+              CONCURRENT_REQUESTS_PER_NODE_OPT,
+              ConfigDef.Type.INT,
+              0,
+              ConfigDef.Range.atLeast(0),
+              ConfigDef.Importance.LOW,
+              "The maximum number of requests to send at once that write to partitions owned by a "
+                  + "single node, so that a slow replica cannot take every request slot. "
+                  + "0 means no limit.")
           .define(
               JMX_OPT,
               ConfigDef.Type.BOOLEAN,
@@ -188,6 +278,177 @@ public class CassandraSinkConfig {
               ConfigDef.Range.atLeast(1),
               ConfigDef.Importance.HIGH,
               "Maximum number of records that could be send in one batch request")
+          .define(
+              MAX_BATCH_SIZE_IN_BYTES_OPT,
+              ConfigDef.Type.INT,
+              0,
+              ConfigDef.Range.atLeast(0),
+              ConfigDef.Importance.MEDIUM,
+              "Maximum data size, in bytes, of the records sent in one batch request. Records larger "
+                  + "than this limit are sent alone. It should be lower than the "
+                  + "batch_size_fail_threshold of the database. 0 (the default) means no limit.")
+          .define(
+              BATCH_LINGER_MS_OPT,
+              ConfigDef.Type.INT,
+              0,
+              ConfigDef.Range.atLeast(0),
+              ConfigDef.Importance.MEDIUM,
+              "Maximum time, in milliseconds, that a partially filled batch may wait for more records "
+                  + "before being sent. When greater than 0, batches are kept open across calls to put "
+                  + "and are sent when full, when this delay expires or when the task is flushed. "
+                  + "When 0 (the default), pending batches are sent at the end of every put.")
+          .define(
+              ADAPTIVE_BATCHING_OPT,
+              ConfigDef.Type.BOOLEAN,
+              false,
+              ConfigDef.Importance.MEDIUM,
+              "Whether to adjust, per topic and table, the number of records in a batch request "
+                  + "(up to "
+                  + MAX_NUMBER_OF_RECORDS_IN_BATCH
+                  + ") and the choice between batches and concurrent single statements, based on "
+                  + "the observed throughput, backing off when the cluster is overloaded.")
+          .define(
+              BATCH_GROUPING_OPT,
+              ConfigDef.Type.STRING,
+              "Partition",
+              ConfigDef.CaseInsensitiveValidString.in("PARTITION", "REPLICA_SET"),
+              ConfigDef.Importance.MEDIUM,
+              "How statements are grouped into batches. "
+                  + "Valid values are: "
+                  + "Partition (statements for the same partition, the default), "
+                  + "Replica_Set (statements whose partitions are owned by the same replicas, "
+                  + "according to the driver token map; such batches are capped by "
+                  + MAX_NUMBER_OF_RECORDS_IN_REPLICA_BATCH_OPT
+                  + ").")
+          .define(
+              MAX_NUMBER_OF_RECORDS_IN_REPLICA_BATCH_OPT,
+              ConfigDef.Type.INT,
+              8,
+              ConfigDef.Range.atLeast(1),
+              ConfigDef.Importance.LOW,
+              "Maximum number of records in a batch spanning several partitions, when "
+                  + BATCH_GROUPING_OPT
+                  + " is Replica_Set. Batches are never larger than "
+                  + MAX_NUMBER_OF_RECORDS_IN_BATCH
+                  + ".")
+          .define(
+              ASYNC_PUT_OPT,
+              ConfigDef.Type.BOOLEAN,
+              false,
+              ConfigDef.Importance.MEDIUM,
+              "Whether put returns as soon as the records are handed over for processing, instead of "
+                  + "waiting for their queries to complete. When enabled, only the offsets reported as "
+                  + "processed by the task may be committed.")
+          .define(
+              BATCHING_SHARDS_OPT,
+              ConfigDef.Type.INT,
+              1,
+              ConfigDef.Range.atLeast(1),
+              ConfigDef.Importance.LOW,
+              "Number of threads grouping statements into batches. Statements are assigned to a "
+                  + "thread by routing key, so writes to the same partition keep their order.")
+          .define(
+              STATEMENT_QUEUE_CAPACITY_OPT,
+              ConfigDef.Type.INT,
+              8192,
+              ConfigDef.Range.between(1, 1 << 30),
+              ConfigDef.Importance.LOW,
+              "Maximum number of statements waiting to be grouped into batches, per batching thread "
+                  + "(rounded up to a power of two). Mapping threads wait when it is reached.")
+          .define(
+              STATEMENT_QUEUE_WAIT_STRATEGY_OPT,
+              ConfigDef.Type.STRING,
+              "Park",
+              ConfigDef.CaseInsensitiveValidString.in("SPIN", "YIELD", "PARK"),
+              ConfigDef.Importance.LOW,
+              "How threads wait on the statement queue when it is empty or full. "
+                  + "Valid values are: "
+                  + "Spin (busy loop, lowest latency but burns a core per waiting thread), "
+                  + "Yield (busy loop yielding to other threads), "
+                  + "Park (sleep until woken up, the default).")
+          .define(
+              COALESCE_WRITES_OPT,
+              ConfigDef.Type.BOOLEAN,
+              false,
+              ConfigDef.Importance.LOW,
+              "Whether to only write the latest of the records waiting to be sent that write to the "
+                  + "same row (last write wins, by record timestamp). Records are only skipped when "
+                  + "the latest one overwrites everything they write; they are still reported as "
+                  + "written or failed along with it. Not applied to counter tables and "
+                  + "user-provided queries.")
+          .define(
+              AGGREGATE_COUNTERS_OPT,
+              ConfigDef.Type.BOOLEAN,
+              false,
+              ConfigDef.Importance.LOW,
+              "Whether to sum up the increments of the records waiting to be sent that update the "
+                  + "same counter row, and send a single update for them. The records are reported "
+                  + "as written or failed along with it. Not applied to user-provided queries.")
+          .define(
+              SPLIT_FAILED_BATCHES_OPT,
+              ConfigDef.Type.BOOLEAN,
+              false,
+              ConfigDef.Importance.LOW,
+              "Whether to retry a failed batch as two smaller batches, and so on down to single "
+                  + "statements, so that only the records whose statements still fail alone are "
+                  + "reported as failed. Batches that may have been partially applied are only "
+                  + "retried if all of their statements are idempotent (counter updates are not).")
+          .define(
+              SPLIT_RETRY_DELAY_MS_OPT,
+              ConfigDef.Type.INT,
+              100,
+              ConfigDef.Range.atLeast(0),
+              ConfigDef.Importance.LOW,
+              "Delay, in milliseconds, before retrying the halves of a failed batch when "
+                  + SPLIT_FAILED_BATCHES_OPT
+                  + " is enabled. It doubles with every further split, up to 32 times this value.")
+          .define(
+              SPILL_DIRECTORY_OPT,
+              ConfigDef.Type.STRING,
+              "",
+              ConfigDef.Importance.LOW,
+              "Local directory where statements are spilled when they can't be written for now: "
+                  + "when no request may be sent for "
+                  + SPILL_ADMISSION_TIMEOUT_MS_OPT
+                  + ", or when they fail because the cluster is unreachable or overloaded. Their "
+                  + "records are then reported as written, and the statements are replayed in the "
+                  + "background, possibly more than once; counter updates are never spilled. The "
+                  + "directory must not be shared with another connector instance. When empty "
+                  + "(the default), statements are not spilled.")
+          .define(
+              SPILL_MAX_SIZE_IN_BYTES_OPT,
+              ConfigDef.Type.LONG,
+              1024L * 1024 * 1024,
+              ConfigDef.Range.atLeast(1024 * 1024),
+              ConfigDef.Importance.LOW,
+              "Maximum size, in bytes, of the spilled statements on disk. When it is reached, "
+                  + "statements wait for the cluster as if "
+                  + SPILL_DIRECTORY_OPT
+                  + " was not set.")
+          .define(
+              SPILL_ADMISSION_TIMEOUT_MS_OPT,
+              ConfigDef.Type.INT,
+              1000,
+              ConfigDef.Range.atLeast(0),
+              ConfigDef.Importance.LOW,
+              "How long, in milliseconds, a batch may wait to be sent because too many requests "
+                  + "are in flight before it is spilled, when "
+                  + SPILL_DIRECTORY_OPT
+                  + " is set.")
+          .define(
+              SPILL_DRAIN_RATE_OPT,
+              ConfigDef.Type.INT,
+              1000,
+              ConfigDef.Range.atLeast(1),
+              ConfigDef.Importance.LOW,
+              "Maximum number of spilled statements replayed per second.")
+          .define(
+              COMPLETION_THREADS_OPT,
+              ConfigDef.Type.INT,
+              4,
+              ConfigDef.Range.atLeast(1),
+              ConfigDef.Importance.LOW,
+              "Number of threads reporting the outcome of requests, off the driver's I/O threads.")
           .define(
               CONNECTION_POOL_LOCAL_SIZE,
               ConfigDef.Type.INT,
@@ -533,6 +794,30 @@ public class CassandraSinkConfig {
     return globalConfig.getInt(CONCURRENT_REQUESTS_OPT);
   }
 
+  public enum ConcurrencyLimiterPolicy {
+    FIXED,
+    AIMD,
+    GRADIENT,
+    VEGAS
+  }
+
+  public ConcurrencyLimiterPolicy getConcurrencyLimiter() {
+    return ConcurrencyLimiterPolicy.valueOf(
+        globalConfig.getString(CONCURRENCY_LIMITER_OPT).toUpperCase(Locale.ROOT));
+  }
+
+  public int getMaxConcurrencyLimit() {
+    return globalConfig.getInt(MAX_CONCURRENCY_LIMIT_OPT);
+  }
+
+  public int getMaxConcurrentRequestsPerTable() {
+    return globalConfig.getInt(CONCURRENT_REQUESTS_PER_TABLE_OPT);
+  }
+
+  public int getMaxConcurrentRequestsPerNode() {
+    return globalConfig.getInt(CONCURRENT_REQUESTS_PER_NODE_OPT);
+  }
+
   public enum IgnoreErrorsPolicy {
     ALL,
     NONE,
@@ -605,6 +890,94 @@ public class CassandraSinkConfig {
     return globalConfig.getInt(MAX_NUMBER_OF_RECORDS_IN_BATCH);
   }
 
+  public int getMaxBatchSizeInBytes() {
+    return globalConfig.getInt(MAX_BATCH_SIZE_IN_BYTES_OPT);
+  }
+
+  public int getBatchLingerMs() {
+    return globalConfig.getInt(BATCH_LINGER_MS_OPT);
+  }
+
+  public boolean isAdaptiveBatching() {
+    return globalConfig.getBoolean(ADAPTIVE_BATCHING_OPT);
+  }
+
+  public enum BatchGrouping {
+    PARTITION,
+    REPLICA_SET
+  }
+
+  public BatchGrouping getBatchGrouping() {
+    return BatchGrouping.valueOf(
+        globalConfig.getString(BATCH_GROUPING_OPT).toUpperCase(Locale.ROOT));
+  }
+
+  public int getMaxNumberOfRecordsInReplicaBatch() {
+    return globalConfig.getInt(MAX_NUMBER_OF_RECORDS_IN_REPLICA_BATCH_OPT);
+  }
+
+  public boolean isAsyncPut() {
+    return globalConfig.getBoolean(ASYNC_PUT_OPT);
+  }
+
+  public int getBatchingShards() {
+    return globalConfig.getInt(BATCHING_SHARDS_OPT);
+  }
+
+  public int getStatementQueueCapacity() {
+    return globalConfig.getInt(STATEMENT_QUEUE_CAPACITY_OPT);
+  }
+
+  public enum QueueWaitStrategy {
+    SPIN,
+    YIELD,
+    PARK
+  }
+
+  public QueueWaitStrategy getStatementQueueWaitStrategy() {
+    return QueueWaitStrategy.valueOf(
+        globalConfig.getString(STATEMENT_QUEUE_WAIT_STRATEGY_OPT).toUpperCase(Locale.ROOT));
+  }
+
+  public boolean isCoalesceWrites() {
+    return globalConfig.getBoolean(COALESCE_WRITES_OPT);
+  }
+
+  public boolean isAggregateCounters() {
+    return globalConfig.getBoolean(AGGREGATE_COUNTERS_OPT);
+  }
+
+  public boolean isSplitFailedBatches() {
+    return globalConfig.getBoolean(SPLIT_FAILED_BATCHES_OPT);
+  }
+
+  public int getSplitRetryDelayMs() {
+    return globalConfig.getInt(SPLIT_RETRY_DELAY_MS_OPT);
+  }
+
+  /** @return the directory where statements are spilled, or null if they are not. */
+  @Nullable
+  public Path getSpillDirectory() {
+    String directory = globalConfig.getString(SPILL_DIRECTORY_OPT);
+    return directory.isEmpty() ? null : Paths.get(directory);
+  }
+
+  public long getSpillMaxSizeInBytes() {
+    return globalConfig.getLong(SPILL_MAX_SIZE_IN_BYTES_OPT);
+  }
+
+  public int getSpillAdmissionTimeoutMs() {
+    return globalConfig.getInt(SPILL_ADMISSION_TIMEOUT_MS_OPT);
+  }
+
+  public int getSpillDrainRate() {
+    return globalConfig.getInt(SPILL_DRAIN_RATE_OPT);
+  }
+
+  public int getCompletionThreads() {
+    return globalConfig.getInt(COMPLETION_THREADS_OPT);
+  }
+
   @Override
   public String toString() {
     return String.format(
@@ -612,7 +985,29 @@ public class CassandraSinkConfig {
             + "        contactPoints: %s%n"
             + "        port: %s%n"
             + "        maxConcurrentRequests: %d%n"
+            + "        concurrencyLimiter: %s%n"
+            + "        maxConcurrencyLimit: %d%n"
+            + "        maxConcurrentRequestsPerTable: %d%n"
+            + "        maxConcurrentRequestsPerNode: %d%n"
             + "        maxNumberOfRecordsInBatch: %d%n"
+            + "        maxBatchSizeInBytes: %d%n"
+            + "        batchLingerMs: %d%n"
+            + "        adaptiveBatching: %b%n"
+            + "        batchGrouping: %s%n"
+            + "        maxNumberOfRecordsInReplicaBatch: %d%n"
+            + "        asyncPut: %b%n"
+            + "        batchingShards: %d%n"
+            + "        statementQueueCapacity: %d%n"
+            + "        statementQueueWaitStrategy: %s%n"
+            + "        coalesceWrites: %b%n"
+            + "        aggregateCounters: %b%n"
+            + "        splitFailedBatches: %b%n"
+            + "        splitRetryDelayMs: %d%n"
+            + "        spillDirectory: %s%n"
+            + "        spillMaxSizeInBytes: %d%n"
+            + "        spillAdmissionTimeoutMs: %d%n"
+            + "        spillDrainRate: %d%n"
+            + "        completionThreads: %d%n"
             + "        jmx: %b%n"
             + "SSL configuration:%n%s%n"
             + "Authentication configuration:%n%s%n"
@@ -621,7 +1016,29 @@ public class CassandraSinkConfig {
         getContactPoints(),
         getPortToString(),
         getMaxConcurrentRequests(),
+        getConcurrencyLimiter(),
+        getMaxConcurrencyLimit(),
+        getMaxConcurrentRequestsPerTable(),
+        getMaxConcurrentRequestsPerNode(),
         getMaxNumberOfRecordsInBatch(),
+        getMaxBatchSizeInBytes(),
+        getBatchLingerMs(),
+        isAdaptiveBatching(),
+        getBatchGrouping(),
+        getMaxNumberOfRecordsInReplicaBatch(),
+        isAsyncPut(),
+        getBatchingShards(),
+        getStatementQueueCapacity(),
+        getStatementQueueWaitStrategy(),
+        isCoalesceWrites(),
+        isAggregateCounters(),
+        isSplitFailedBatches(),
+        getSplitRetryDelayMs(),
+        getSpillDirectory(),
+        getSpillMaxSizeInBytes(),
+        getSpillAdmissionTimeoutMs(),
+        getSpillDrainRate(),
+        getCompletionThreads(),
         getJmx(),
         getSslConfigToString(),
         Splitter.on("\n")
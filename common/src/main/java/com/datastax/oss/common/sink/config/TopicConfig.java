@@ -16,6 +16,7 @@
 package com.datastax.oss.common.sink.config;
 
 import com.datastax.oss.common.sink.ConfigException;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
 import com.datastax.oss.driver.internal.core.type.codec.registry.DefaultCodecRegistry;
 import com.datastax.oss.driver.shaded.guava.common.base.Splitter;
 import com.datastax.oss.dsbulk.codecs.api.ConversionContext;
@@ -28,6 +29,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -50,6 +52,8 @@ public class TopicConfig extends AbstractConfig {
 
   private final String topicName;
   private final Collection<TableConfig> tableConfigs;
+  private final Set<String> mappedKeyFields;
+  private final Set<String> mappedValueFields;
 
   static String getTopicSettingPath(String topicName, String setting) {
     return String.format("topic.%s.%s", topicName, setting);
@@ -95,6 +99,18 @@ public class TopicConfig extends AbstractConfig {
             .map(TableConfig.Builder::build)
             .collect(Collectors.toList());
     this.topicName = topicName;
+    mappedKeyFields = mappedFields(tableConfigs, "key.");
+    mappedValueFields = mappedFields(tableConfigs, "value.");
+  }
+
+  private static Set<String> mappedFields(Collection<TableConfig> tableConfigs, String prefix) {
+    return tableConfigs
+        .stream()
+        .flatMap(tableConfig -> tableConfig.getMapping().values().stream())
+        .map(CqlIdentifier::asInternal)
+        .filter(field -> field.startsWith(prefix))
+        .map(field -> field.substring(prefix.length()))
+        .collect(Collectors.toSet());
   }
 
   @NonNull
@@ -107,6 +123,18 @@ public class TopicConfig extends AbstractConfig {
     return tableConfigs;
   }
 
+  /** @return the top-level fields of record keys that the mappings of this topic read. */
+  @NonNull
+  public Set<String> getMappedKeyFields() {
+    return mappedKeyFields;
+  }
+
+  /** @return the top-level fields of record values that the mappings of this topic read. */
+  @NonNull
+  public Set<String> getMappedValueFields() {
+    return mappedValueFields;
+  }
+
   @Override
   @NonNull
   public String toString() {
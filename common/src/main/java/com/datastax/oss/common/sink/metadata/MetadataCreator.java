@@ -17,9 +17,12 @@ package com.datastax.oss.common.sink.metadata;
 
 import static com.fasterxml.jackson.databind.DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS;
 
+import com.datastax.oss.common.sink.AbstractSchema;
 import com.datastax.oss.common.sink.AbstractStruct;
 import com.datastax.oss.common.sink.record.JsonData;
 import com.datastax.oss.common.sink.record.KeyOrValue;
+import com.datastax.oss.common.sink.record.MapData;
+import com.datastax.oss.common.sink.record.ProjectedJsonData;
 import com.datastax.oss.common.sink.record.RawData;
 import com.datastax.oss.common.sink.record.RecordMetadata;
 import com.datastax.oss.common.sink.record.StructData;
@@ -30,8 +33,15 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.umd.cs.findbugs.annotations.Nullable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 public class MetadataCreator {
   private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
@@ -40,13 +50,29 @@ public class MetadataCreator {
   private static final RecordMetadata JSON_RECORD_METADATA =
       (field, cqlType) ->
           field.equals(RawData.FIELD_NAME) ? GenericType.STRING : GenericType.of(JsonNode.class);
+  private static final RecordMetadata JSON_BYTES_RECORD_METADATA =
+      (field, cqlType) ->
+          field.equals(RawData.FIELD_NAME)
+              ? GenericType.BYTE_BUFFER
+              : GenericType.of(JsonNode.class);
   private static final RawData NULL_DATA = new RawData(null);
 
+  // Schemas are compared by identity; those of structs that are gone can be collected, and the
+  // size is bounded in case new instances of the same schemas keep coming.
+  private static final int MAX_STRUCT_SCHEMAS = 1000;
+  private static final Cache<AbstractSchema, StructDataMetadata> STRUCT_METADATA =
+      Caffeine.newBuilder().weakKeys().maximumSize(MAX_STRUCT_SCHEMAS).build();
+
   static {
     // Configure the json object mapper
     OBJECT_MAPPER.configure(USE_BIG_DECIMAL_FOR_FLOATS, true);
   }
 
+  private static final ObjectReader OBJECT_READER = OBJECT_MAPPER.reader();
+  // For fields only written to float or double columns, BigDecimals would be converted anyway.
+  private static final ObjectReader DOUBLE_OBJECT_READER =
+      OBJECT_MAPPER.reader().without(USE_BIG_DECIMAL_FOR_FLOATS);
+
   /**
    * Create a metadata object describing the structure of the given key or value (extracted from a
    * {@link AbstractStruct} and a data object that homogenizes interactions with the given key/value
@@ -58,15 +84,45 @@ public class MetadataCreator {
    *     unclear if this exception can ever trigger in the context of this Connector.
    */
   public static InnerDataAndMetadata makeMeta(Object keyOrValue) throws IOException {
+    return makeMeta(keyOrValue, null, Collections.emptySet());
+  }
+
+  /**
+   * Same as {@link #makeMeta(Object)}, but only the given top-level fields of a JSON key or value
+   * are parsed: the values of the others are null.
+   *
+   * <p>A key or value made of bytes ({@code byte[]} or {@link ByteBuffer}) is also parsed, from its
+   * UTF-8 bytes, if it is a JSON object and fields other than {@link RawData#FIELD_NAME} are read;
+   * it is still a blob for {@link RawData#FIELD_NAME}.
+   *
+   * @param keyOrValue the key or value
+   * @param projection the top-level fields of a JSON key or value to parse, or null to parse all of
+   *     them
+   * @param doubleFields the projected fields whose floating-point numbers may be decoded as doubles
+   *     instead of BigDecimals, because they're only written to float or double columns
+   * @return a pair of (RecordMetadata, KeyOrValue)
+   * @throws IOException if keyOrValue is a String and JSON parsing fails in some unknown way.
+   */
+  public static InnerDataAndMetadata makeMeta(
+      Object keyOrValue, @Nullable Set<String> projection, Set<String> doubleFields)
+      throws IOException {
     if (keyOrValue instanceof AbstractStruct) {
       AbstractStruct innerRecordStruct = (AbstractStruct) keyOrValue;
-      // TODO: PERF: Consider caching these metadata objects, keyed on schema.
-      return new InnerDataAndMetadata(
-          new StructData(innerRecordStruct), new StructDataMetadata(innerRecordStruct.schema()));
+      StructDataMetadata metadata =
+          STRUCT_METADATA.get(innerRecordStruct.schema(), StructDataMetadata::new);
+      assert metadata != null;
+      return new InnerDataAndMetadata(new StructData(innerRecordStruct, metadata), metadata);
     } else if (keyOrValue instanceof String) {
-      return handleJsonRecord(keyOrValue, (k) -> (String) k);
+      return handleJsonRecord(keyOrValue, (k) -> (String) k, projection, doubleFields);
+    } else if (keyOrValue instanceof Map && !hasNullKey((Map<?, ?>) keyOrValue)) {
+      MapData mapData = new MapData(OBJECT_MAPPER, (Map<?, ?>) keyOrValue);
+      return new InnerDataAndMetadata(mapData, mapData);
     } else if (keyOrValue instanceof Map) {
-      return handleJsonRecord(keyOrValue, OBJECT_MAPPER::writeValueAsString);
+      // JSON objects can't have null keys: let serialization fail as usual.
+      return handleJsonRecord(
+          keyOrValue, OBJECT_MAPPER::writeValueAsString, projection, doubleFields);
+    } else if (projection != null && isJsonObjectBytes(keyOrValue, projection)) {
+      return handleJsonBytes(keyOrValue, projection, doubleFields);
     } else if (keyOrValue != null) {
       KeyOrValue innerData = new RawData(keyOrValue);
       return new InnerDataAndMetadata(innerData, (RecordMetadata) innerData);
@@ -76,11 +132,73 @@ public class MetadataCreator {
     }
   }
 
+  private static boolean hasNullKey(Map<?, ?> map) {
+    for (Object key : map.keySet()) {
+      if (key == null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return whether the key or value is made of bytes that look like a JSON object, whose fields
+   *     are read by the mappings. Otherwise it is a blob, as usual.
+   */
+  private static boolean isJsonObjectBytes(Object keyOrValue, Set<String> projection) {
+    if (projection.isEmpty()
+        || (projection.size() == 1 && projection.contains(RawData.FIELD_NAME))) {
+      return false;
+    }
+    ByteBuffer bytes;
+    if (keyOrValue instanceof byte[]) {
+      bytes = ByteBuffer.wrap((byte[]) keyOrValue);
+    } else if (keyOrValue instanceof ByteBuffer) {
+      bytes = (ByteBuffer) keyOrValue;
+    } else {
+      return false;
+    }
+    for (int i = bytes.position(); i < bytes.limit(); i++) {
+      byte b = bytes.get(i);
+      if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+        return b == '{';
+      }
+    }
+    return false;
+  }
+
+  private static InnerDataAndMetadata handleJsonBytes(
+      Object originalRecord, Set<String> projection, Set<String> doubleFields) throws IOException {
+    // The driver requires a ByteBuffer rather than byte[] when inserting a blob.
+    ByteBuffer json =
+        originalRecord instanceof byte[]
+            ? ByteBuffer.wrap((byte[]) originalRecord)
+            : (ByteBuffer) originalRecord;
+    try {
+      KeyOrValue innerData =
+          new ProjectedJsonData(
+              OBJECT_READER, DOUBLE_OBJECT_READER, json, projection, doubleFields);
+      return new InnerDataAndMetadata(innerData, JSON_BYTES_RECORD_METADATA);
+    } catch (RuntimeException e) {
+      // Json parsing failed. Treat as a blob.
+      RawData rawData = new RawData(originalRecord);
+      return new InnerDataAndMetadata(rawData, rawData);
+    }
+  }
+
   private static InnerDataAndMetadata handleJsonRecord(
-      Object originalRecord, CheckedFunction<Object, String> recordTransformer) throws IOException {
+      Object originalRecord,
+      CheckedFunction<Object, String> recordTransformer,
+      @Nullable Set<String> projection,
+      Set<String> doubleFields)
+      throws IOException {
     try {
+      String json = recordTransformer.apply(originalRecord);
       KeyOrValue innerData =
-          new JsonData(OBJECT_MAPPER, JSON_NODE_MAP_TYPE, recordTransformer.apply(originalRecord));
+          projection == null
+              ? new JsonData(OBJECT_MAPPER, JSON_NODE_MAP_TYPE, json)
+              : new ProjectedJsonData(
+                  OBJECT_READER, DOUBLE_OBJECT_READER, json, projection, doubleFields);
       return new InnerDataAndMetadata(innerData, JSON_RECORD_METADATA);
     } catch (RuntimeException e) {
       // Json parsing failed. Treat as raw string.
@@ -15,15 +15,25 @@
  */
 package com.datastax.oss.common.sink.metrics;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GlobalSinkMetrics {
   private static final String FAILED_RECORDS_WITH_UNKNOWN_TOPIC = "failedRecordsWithUnknownTopic";
+  private static final String STATEMENT_QUEUE_OCCUPANCY = "statementQueueOccupancy";
   private final Meter failedRecordsWithUnknownTopicCounter;
+  private final StatementQueueOccupancy statementQueueOccupancy;
 
   public GlobalSinkMetrics(MetricRegistry metricRegistry) {
     failedRecordsWithUnknownTopicCounter = metricRegistry.meter(FAILED_RECORDS_WITH_UNKNOWN_TOPIC);
+    // The registry may be shared with a previous instance: reuse its gauge.
+    statementQueueOccupancy =
+        (StatementQueueOccupancy)
+            metricRegistry.gauge(STATEMENT_QUEUE_OCCUPANCY, StatementQueueOccupancy::new);
   }
 
   // VisibleForTesting
@@ -34,4 +44,30 @@ public class GlobalSinkMetrics {
   public void incrementFailedWithUnknownTopicCounter() {
     failedRecordsWithUnknownTopicCounter.mark();
   }
+
+  /**
+   * Include the given queue in the statement queue occupancy metric: the number of statements
+   * waiting to be grouped into batches, across all tasks.
+   */
+  public void registerStatementQueue(Queue<?> queue) {
+    statementQueueOccupancy.queues.add(queue);
+  }
+
+  public void unregisterStatementQueue(Queue<?> queue) {
+    statementQueueOccupancy.queues.remove(queue);
+  }
+
+  // VisibleForTesting
+  public int getStatementQueueOccupancy() {
+    return statementQueueOccupancy.getValue();
+  }
+
+  private static class StatementQueueOccupancy implements Gauge<Integer> {
+    private final Set<Queue<?>> queues = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public Integer getValue() {
+      return queues.stream().mapToInt(Queue::size).sum();
+    }
+  }
 }
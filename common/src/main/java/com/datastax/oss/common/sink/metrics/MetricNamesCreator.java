@@ -35,6 +35,58 @@ public class MetricNamesCreator {
     return topicKeyspacePrefix(tableConfig, "failedRecordCount");
   }
 
+  public static String createSplitBatchCountMetricName(TableConfig tableConfig) {
+    return topicKeyspacePrefix(tableConfig, "splitBatchCount");
+  }
+
+  public static String createRecoveredRecordCountMetricName(TableConfig tableConfig) {
+    return topicKeyspacePrefix(tableConfig, "recoveredRecordCount");
+  }
+
+  public static String createAdaptiveBatchSizeMetricName(TableConfig tableConfig) {
+    return topicKeyspacePrefix(tableConfig, "adaptiveBatchSize");
+  }
+
+  public static String createAdaptiveBatchFanOutMetricName(TableConfig tableConfig) {
+    return topicKeyspacePrefix(tableConfig, "adaptiveBatchFanOut");
+  }
+
+  public static String createConcurrencyLimitMetricName() {
+    return "admission/concurrencyLimit";
+  }
+
+  public static String createInFlightRequestsMetricName() {
+    return "admission/inFlightRequests";
+  }
+
+  public static String createConcurrencyLimitWaitMetricName() {
+    return "admission/concurrencyLimitWait";
+  }
+
+  public static String createTablePermitsHeldMetricName(String keyspaceAndTable) {
+    return String.format("admission/table/%s/permitsHeld", keyspaceAndTable);
+  }
+
+  public static String createNodePermitsHeldMetricName(String node) {
+    return String.format("admission/node/%s/permitsHeld", node);
+  }
+
+  public static String createSpilledStatementsMetricName() {
+    return "spill/spilledStatements";
+  }
+
+  public static String createSpillSizeInBytesMetricName() {
+    return "spill/sizeInBytes";
+  }
+
+  public static String createReplayedStatementsMetricName() {
+    return "spill/replayedStatements";
+  }
+
+  public static String createFailedReplaysMetricName() {
+    return "spill/failedReplays";
+  }
+
   private static String topicKeyspacePrefix(TableConfig tableConfig, String metricName) {
     return String.format(
         "%s/%s/%s/%s",
@@ -57,9 +57,13 @@ public class MetricsJmxReporter {
       if (metricName.contains("batchSize")
           || metricName.contains("batchSizeInBytes")
           || metricName.contains("failedRecordCount")
-          || metricName.contains("recordCount")) {
-        // special-case batchSize, batchSizeInBytes, failedRecordCount, recordCount metrics
-        // and expose them per topic, ks and table
+          || metricName.contains("recordCount")
+          || metricName.contains("splitBatchCount")
+          || metricName.contains("recoveredRecordCount")
+          || metricName.contains("adaptiveBatch")) {
+        // special-case batchSize, batchSizeInBytes, failedRecordCount, recordCount,
+        // splitBatchCount, recoveredRecordCount and adaptiveBatch metrics and expose them per
+        // topic, ks and table
         sb.append("topic=")
             .append(JMXUtil.quoteJMXIfNecessary(tokens.next()))
             .append(",keyspace=")
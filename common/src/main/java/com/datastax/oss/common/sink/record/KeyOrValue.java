@@ -16,6 +16,7 @@
 package com.datastax.oss.common.sink.record;
 
 import com.datastax.oss.common.sink.AbstractSinkRecord;
+import edu.umd.cs.findbugs.annotations.Nullable;
 import java.util.Set;
 
 /** The key or value part of a Kafka {@link AbstractSinkRecord}. */
@@ -23,4 +24,31 @@ public interface KeyOrValue {
   Set<String> fields();
 
   Object getFieldValue(String field);
+
+  /**
+   * @return an object shared by all the keys or values with the same fields, to compare by
+   *     identity, e.g. the metadata of the schema of a struct; null if the fields of each key or
+   *     value are its own.
+   */
+  @Nullable
+  default Object shape() {
+    return null;
+  }
+
+  /**
+   * @return the index of the field in the keys or values of the same {@link #shape()}, to read it
+   *     with {@link #getFieldValue(int)} without looking its name up; -1 if it is read by name.
+   */
+  default int indexOf(String field) {
+    return -1;
+  }
+
+  /**
+   * @param index the index of a field, as returned by {@link #indexOf(String)} for a key or value
+   *     of the same shape
+   * @return the value of the field
+   */
+  default Object getFieldValue(int index) {
+    throw new UnsupportedOperationException(getClass().getName() + " has no indexed fields");
+  }
 }
@@ -17,20 +17,35 @@ package com.datastax.oss.common.sink.record;
 
 import com.datastax.oss.common.sink.AbstractSinkRecord;
 import com.datastax.oss.common.sink.AbstractSinkRecordHeader;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * The fully parsed {@link AbstractSinkRecord} in a form where we can apply mappings of fields to
  * columns.
  */
 public class KeyValueRecord implements Record {
+  // Records of the same shape share the qualified names of their fields, rather than building them
+  // again. Keys and values are of the same shape when they share their shape object, e.g. the
+  // metadata of the schema of their structs; header names are compared by value. The fields of
+  // other keys and values, e.g. JSON documents, are their own, and so are their qualified names.
+  private static final int MAX_RECORD_SHAPES = 1000;
+  private static final Cache<Shape, QualifiedFields> QUALIFIED_FIELDS =
+      Caffeine.newBuilder().maximumSize(MAX_RECORD_SHAPES).build();
+  // The shape of absent keys and values.
+  private static final Object NO_SHAPE = new Object();
+
   @Nullable private final KeyOrValue key;
   @Nullable private final KeyOrValue value;
-  @NonNull private final Set<String> fields;
+  @NonNull private final QualifiedFields fields;
   @Nullable private final Long timestamp;
   @Nullable private final Iterable<AbstractSinkRecordHeader> headers;
 
@@ -42,15 +57,25 @@ public class KeyValueRecord implements Record {
     this.key = key;
     this.value = value;
     this.headers = headers;
-    fields = new HashSet<>();
-    if (key != null) {
-      fields.addAll(key.fields().stream().map(f -> "key." + f).collect(Collectors.toList()));
-    }
-    if (value != null) {
-      fields.addAll(value.fields().stream().map(f -> "value." + f).collect(Collectors.toList()));
+    Set<String> keyFields = key != null ? key.fields() : Collections.emptySet();
+    Set<String> valueFields = value != null ? value.fields() : Collections.emptySet();
+    List<String> headerFields;
+    if (headers == null) {
+      headerFields = Collections.emptyList();
+    } else {
+      headerFields = new ArrayList<>();
+      headers.forEach(h -> headerFields.add(h.key()));
     }
-    if (headers != null) {
-      headers.forEach(h -> fields.add("header." + h.key()));
+    Object keyShape = key != null ? key.shape() : NO_SHAPE;
+    Object valueShape = value != null ? value.shape() : NO_SHAPE;
+    if (keyShape == null || valueShape == null) {
+      fields = new QualifiedFields(false, null, null, keyFields, valueFields, headerFields);
+    } else {
+      fields =
+          QUALIFIED_FIELDS.get(
+              new Shape(keyShape, valueShape, headerFields),
+              shape -> new QualifiedFields(true, key, value, keyFields, valueFields, headerFields));
+      assert fields != null;
     }
     this.timestamp = timestamp;
   }
@@ -58,24 +83,61 @@ public class KeyValueRecord implements Record {
   @Override
   @NonNull
   public Set<String> fields() {
-    return fields;
+    return fields.names;
+  }
+
+  /**
+   * @return the qualified names of the fields if they are shared by all the records of the same
+   *     shape, null otherwise.
+   */
+  @Override
+  @Nullable
+  public Object shape() {
+    return fields.shared ? fields : null;
+  }
+
+  @Override
+  public int indexOf(@NonNull String field) {
+    FieldRef ref = fields.refs.get(field);
+    return fields.shared && ref != null ? ref.index : -1;
+  }
+
+  @Override
+  @Nullable
+  public Object getFieldValue(int index) {
+    return getFieldValue(fields.indexed.get(index));
   }
 
   @Override
   @Nullable
   public Object getFieldValue(@NonNull String field) {
-    if (field.startsWith("key.")) {
-      return key != null ? key.getFieldValue(field.substring(4)) : null;
-    } else if (field.startsWith("value.")) {
-      return value != null ? value.getFieldValue(field.substring(6)) : null;
-    } else if (field.startsWith("header.")) {
-      return headers != null ? findHeaderValue(field.substring(7), headers) : null;
-    } else {
-      throw new IllegalArgumentException(
-          "field name must start with 'key.', 'value.' or 'header.'.");
+    FieldRef ref = fields.refs.get(field);
+    if (ref == null) {
+      // Not a field of this record: read it anyway, the key or value may still know it.
+      ref = FieldRef.parse(field);
+    }
+    return getFieldValue(ref);
+  }
+
+  @Nullable
+  private Object getFieldValue(FieldRef ref) {
+    switch (ref.source) {
+      case KEY:
+        return key != null ? getFieldValue(key, ref) : null;
+      case VALUE:
+        return value != null ? getFieldValue(value, ref) : null;
+      default:
+        return headers != null ? findHeaderValue(ref.name, headers) : null;
     }
   }
 
+  @Nullable
+  private static Object getFieldValue(KeyOrValue keyOrValue, FieldRef ref) {
+    return ref.position < 0
+        ? keyOrValue.getFieldValue(ref.name)
+        : keyOrValue.getFieldValue(ref.position);
+  }
+
   @Nullable
   private Object findHeaderValue(
       @NonNull String field, @NonNull Iterable<AbstractSinkRecordHeader> headers) {
@@ -92,4 +154,110 @@ public class KeyValueRecord implements Record {
   public Long getTimestamp() {
     return timestamp;
   }
+
+  /** The qualified names of the fields of the records of a shape. */
+  private static final class QualifiedFields {
+    private final Set<String> names;
+    private final Map<String, FieldRef> refs = new HashMap<>();
+    private final List<FieldRef> indexed = new ArrayList<>();
+    /** Whether the records of the same shape share these names, and the indices of their fields. */
+    private final boolean shared;
+
+    /**
+     * @param shared whether the records of the same shape share these names
+     * @param key a key of the shape, to resolve the indices of its fields; null if the names are
+     *     not shared, or the records have no key
+     * @param value same as key, for values
+     */
+    private QualifiedFields(
+        boolean shared,
+        @Nullable KeyOrValue key,
+        @Nullable KeyOrValue value,
+        Set<String> keyFields,
+        Set<String> valueFields,
+        List<String> headerFields) {
+      this.shared = shared;
+      keyFields.forEach(f -> add("key." + f, Source.KEY, f, key));
+      valueFields.forEach(f -> add("value." + f, Source.VALUE, f, value));
+      headerFields.forEach(h -> add("header." + h, Source.HEADER, h, null));
+      names = Collections.unmodifiableSet(refs.keySet());
+    }
+
+    private void add(String name, Source source, String field, @Nullable KeyOrValue keyOrValue) {
+      int position = keyOrValue != null ? keyOrValue.indexOf(field) : -1;
+      FieldRef ref = new FieldRef(source, field, position, indexed.size());
+      if (refs.putIfAbsent(name, ref) == null) {
+        indexed.add(ref);
+      }
+    }
+  }
+
+  private enum Source {
+    KEY,
+    VALUE,
+    HEADER
+  }
+
+  /** Where to read a field from, and its unqualified name there. */
+  private static final class FieldRef {
+    private final Source source;
+    private final String name;
+    /** The index of the field in the key or value, or -1 to read it by name. */
+    private final int position;
+    /** The index of the field in the record. */
+    private final int index;
+
+    private FieldRef(Source source, String name, int position, int index) {
+      this.source = source;
+      this.name = name;
+      this.position = position;
+      this.index = index;
+    }
+
+    private static FieldRef parse(String field) {
+      if (field.startsWith("key.")) {
+        return new FieldRef(Source.KEY, field.substring(4), -1, -1);
+      } else if (field.startsWith("value.")) {
+        return new FieldRef(Source.VALUE, field.substring(6), -1, -1);
+      } else if (field.startsWith("header.")) {
+        return new FieldRef(Source.HEADER, field.substring(7), -1, -1);
+      } else {
+        throw new IllegalArgumentException(
+            "field name must start with 'key.', 'value.' or 'header.'.");
+      }
+    }
+  }
+
+  /** The shapes of a key and a value, compared by identity, and header names. */
+  private static final class Shape {
+    private final Object keyShape;
+    private final Object valueShape;
+    private final List<String> headerFields;
+
+    private Shape(Object keyShape, Object valueShape, List<String> headerFields) {
+      this.keyShape = keyShape;
+      this.valueShape = valueShape;
+      this.headerFields = headerFields;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Shape)) {
+        return false;
+      }
+      Shape that = (Shape) o;
+      return keyShape == that.keyShape
+          && valueShape == that.valueShape
+          && headerFields.equals(that.headerFields);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * System.identityHashCode(keyShape) + System.identityHashCode(valueShape))
+          + headerFields.hashCode();
+    }
+  }
 }
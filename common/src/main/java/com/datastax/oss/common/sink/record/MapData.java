@@ -0,0 +1,215 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.record;
+
+import static com.fasterxml.jackson.databind.DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS;
+
+import com.datastax.oss.common.sink.AbstractSinkRecord;
+import com.datastax.oss.driver.api.core.type.DataType;
+import com.datastax.oss.driver.api.core.type.reflect.GenericType;
+import com.datastax.oss.driver.shaded.guava.common.collect.Iterators;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The key or value of a {@link AbstractSinkRecord} when it is a {@link Map}, read without
+ * serializing it to JSON and parsing it back.
+ *
+ * <p>String values are given as is to the codecs, which convert them the same way they convert JSON
+ * strings. The other values are converted to the {@link JsonNode}s that the JSON round trip would
+ * produce, since the codecs of Java numbers and booleans don't convert them the same way as those
+ * of JSON nodes (e.g. to temporal, blob or inet columns): numbers, booleans, nested maps and
+ * collections directly, other values through {@link ObjectMapper#valueToTree}. Conversions happen
+ * on first access.
+ */
+public class MapData implements KeyOrValue, RecordMetadata {
+  private static final GenericType<JsonNode> JSON_NODE = GenericType.of(JsonNode.class);
+
+  private final ObjectMapper objectMapper;
+  private final Map<?, ?> map;
+  // The map itself if its keys are strings, as they mostly are; otherwise, a copy keyed by their
+  // string representations, like JSON objects.
+  private final Map<String, ?> values;
+  private final Set<String> fields;
+  @Nullable private Map<String, JsonNode> converted;
+
+  /**
+   * @param objectMapper the mapper that JSON values are parsed with
+   * @param map the key or value; it must not have null keys, which JSON can't represent
+   */
+  @SuppressWarnings("unchecked")
+  public MapData(ObjectMapper objectMapper, Map<?, ?> map) {
+    this.objectMapper = objectMapper;
+    this.map = map;
+    if (hasStringKeys(map)) {
+      values = (Map<String, ?>) map;
+    } else {
+      Map<String, Object> copy = new HashMap<>(map.size());
+      map.forEach((k, v) -> copy.put(k.toString(), v));
+      values = copy;
+    }
+    fields =
+        values.containsKey(RawData.FIELD_NAME) ? values.keySet() : new FieldNames(values.keySet());
+  }
+
+  @Override
+  public Set<String> fields() {
+    return fields;
+  }
+
+  @Override
+  public GenericType<?> getFieldType(@NonNull String field, @NonNull DataType cqlType) {
+    if (field.equals(RawData.FIELD_NAME) || values.get(field) instanceof String) {
+      return GenericType.STRING;
+    }
+    return JSON_NODE;
+  }
+
+  @Override
+  public Object getFieldValue(String field) {
+    if (field.equals(RawData.FIELD_NAME)) {
+      try {
+        return objectMapper.writeValueAsString(map);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    Object value = values.get(field);
+    if (value instanceof String || (value == null && !values.containsKey(field))) {
+      return value;
+    }
+    if (converted == null) {
+      converted = new HashMap<>();
+    }
+    return converted.computeIfAbsent(field, f -> toJsonNode(value));
+  }
+
+  private static boolean hasStringKeys(Map<?, ?> map) {
+    for (Object key : map.keySet()) {
+      if (!(key instanceof String)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return the node that parsing the value written as JSON would give. */
+  private JsonNode toJsonNode(@Nullable Object value) {
+    JsonNodeFactory nodeFactory = objectMapper.getNodeFactory();
+    if (value == null) {
+      return NullNode.getInstance();
+    } else if (value instanceof Boolean) {
+      return BooleanNode.valueOf((Boolean) value);
+    } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return nodeFactory.numberNode(((Number) value).intValue());
+    } else if (value instanceof Long) {
+      return integerNode(nodeFactory, BigInteger.valueOf((Long) value));
+    } else if (value instanceof BigInteger) {
+      return integerNode(nodeFactory, (BigInteger) value);
+    } else if (value instanceof Double || value instanceof Float) {
+      double d = ((Number) value).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        // Written as strings.
+        return TextNode.valueOf(value.toString());
+      }
+      return floatNode(nodeFactory, value.toString());
+    } else if (value instanceof BigDecimal) {
+      BigDecimal decimal = (BigDecimal) value;
+      // Written without a decimal point nor an exponent if the scale is 0: that's an integer.
+      return decimal.scale() == 0
+          ? integerNode(nodeFactory, decimal.toBigInteger())
+          : floatNode(nodeFactory, decimal.toString());
+    } else if (value instanceof String) {
+      return TextNode.valueOf((String) value);
+    } else if (value instanceof Map) {
+      ObjectNode node = nodeFactory.objectNode();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (entry.getKey() == null) {
+          // Fails the same way serializing it does.
+          return objectMapper.valueToTree(value);
+        }
+        node.set(entry.getKey().toString(), toJsonNode(entry.getValue()));
+      }
+      return node;
+    } else if (value instanceof Collection) {
+      ArrayNode node = nodeFactory.arrayNode(((Collection<?>) value).size());
+      for (Object element : (Collection<?>) value) {
+        node.add(toJsonNode(element));
+      }
+      return node;
+    }
+    // POJOs, arrays...
+    return objectMapper.valueToTree(value);
+  }
+
+  private static JsonNode integerNode(JsonNodeFactory nodeFactory, BigInteger value) {
+    if (value.bitLength() < Integer.SIZE) {
+      return nodeFactory.numberNode(value.intValue());
+    } else if (value.bitLength() < Long.SIZE) {
+      return nodeFactory.numberNode(value.longValue());
+    }
+    return nodeFactory.numberNode(value);
+  }
+
+  private JsonNode floatNode(JsonNodeFactory nodeFactory, String text) {
+    return objectMapper.isEnabled(USE_BIG_DECIMAL_FOR_FLOATS)
+        ? nodeFactory.numberNode(new BigDecimal(text))
+        : nodeFactory.numberNode(Double.parseDouble(text));
+  }
+
+  /** The names of the fields of a map that has no {@link RawData#FIELD_NAME} key. */
+  private static class FieldNames extends AbstractSet<String> {
+    private final Set<String> keys;
+
+    private FieldNames(Set<String> keys) {
+      this.keys = keys;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return RawData.FIELD_NAME.equals(o) || keys.contains(o);
+    }
+
+    @Override
+    @NonNull
+    public Iterator<String> iterator() {
+      return Iterators.concat(keys.iterator(), Iterators.singletonIterator(RawData.FIELD_NAME));
+    }
+
+    @Override
+    public int size() {
+      return keys.size() + 1;
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.record;
+
+import com.datastax.oss.common.sink.AbstractSinkRecord;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The key or value of a {@link AbstractSinkRecord} when it is a JSON string, of which only some
+ * fields are read.
+ *
+ * <p>Unlike {@link JsonData}, the document is streamed: only the top-level fields in the projection
+ * are materialized, the others are skipped without being parsed into nodes. The names of all the
+ * top-level fields are still reported by {@link #fields()}, so that missing and extraneous fields
+ * are detected as usual; the value of a field outside the projection is null.
+ *
+ * <p>Floating-point numbers are decoded as the reader is configured to, usually as exact {@link
+ * java.math.BigDecimal}s; those of the fields only written to floating-point columns can be decoded
+ * with a cheaper reader instead, as doubles.
+ */
+public class ProjectedJsonData implements KeyOrValue {
+  private final Map<String, JsonNode> data = new HashMap<>();
+  private final Object json;
+  private final Set<String> fields = new HashSet<>();
+
+  /**
+   * @param reader the reader to parse field values with
+   * @param doubleReader the reader to parse the values of {@code doubleFields} with
+   * @param json the JSON document
+   * @param projection the top-level fields whose values are needed
+   * @param doubleFields the top-level fields whose floating-point numbers may be decoded as doubles
+   * @throws IOException if reading the document fails in some unknown way
+   * @throws IllegalArgumentException if the document is not a valid JSON object
+   */
+  public ProjectedJsonData(
+      ObjectReader reader,
+      ObjectReader doubleReader,
+      String json,
+      Set<String> projection,
+      Set<String> doubleFields)
+      throws IOException {
+    this.json = json;
+    if (json != null) {
+      try (JsonParser parser = reader.getFactory().createParser(json)) {
+        read(parser, reader, doubleReader, projection, doubleFields, null, 0, 0);
+      }
+    }
+    fields.add(RawData.FIELD_NAME);
+  }
+
+  /**
+   * Same as {@link #ProjectedJsonData(ObjectReader, ObjectReader, String, Set, Set)}, but the
+   * document is parsed from its UTF-8 bytes, without decoding it to a string first. The values of
+   * the top-level string fields are {@link Utf8TextNode}s when their bytes can be written as is,
+   * and the document itself, as a {@link ByteBuffer}, is the value of {@link RawData#FIELD_NAME}.
+   *
+   * @param json the JSON document, encoded in UTF-8; it must not be modified afterwards
+   */
+  public ProjectedJsonData(
+      ObjectReader reader,
+      ObjectReader doubleReader,
+      ByteBuffer json,
+      Set<String> projection,
+      Set<String> doubleFields)
+      throws IOException {
+    this.json = json;
+    byte[] bytes;
+    int offset;
+    if (json.hasArray()) {
+      bytes = json.array();
+      offset = json.arrayOffset() + json.position();
+    } else {
+      bytes = new byte[json.remaining()];
+      json.duplicate().get(bytes);
+      offset = 0;
+    }
+    try (JsonParser parser = reader.getFactory().createParser(bytes, offset, json.remaining())) {
+      read(
+          parser,
+          reader,
+          doubleReader,
+          projection,
+          doubleFields,
+          bytes,
+          offset,
+          offset + json.remaining());
+    }
+    fields.add(RawData.FIELD_NAME);
+  }
+
+  private void read(
+      JsonParser parser,
+      ObjectReader reader,
+      ObjectReader doubleReader,
+      Set<String> projection,
+      Set<String> doubleFields,
+      @Nullable byte[] bytes,
+      int offset,
+      int end)
+      throws IOException {
+    try {
+      JsonToken token = parser.nextToken();
+      if (token == null) {
+        return;
+      }
+      if (token != JsonToken.START_OBJECT) {
+        throw new IllegalArgumentException("Not a JSON object: " + token);
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        fields.add(field);
+        token = parser.nextToken();
+        if (!projection.contains(field)) {
+          parser.skipChildren();
+        } else if (bytes != null && token == JsonToken.VALUE_STRING) {
+          data.put(field, readString(parser, bytes, offset, end));
+        } else {
+          JsonNode value = (doubleFields.contains(field) ? doubleReader : reader).readTree(parser);
+          data.put(field, value == null ? NullNode.getInstance() : value);
+        }
+      }
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException("Invalid JSON: " + e.getOriginalMessage(), e);
+    }
+  }
+
+  /**
+   * Reads a string without decoding it, unless it has escape sequences: the parser skips it when it
+   * moves to the next token.
+   */
+  private static JsonNode readString(JsonParser parser, byte[] bytes, int offset, int end)
+      throws IOException {
+    // Byte offsets are relative to the start of the document; skip the opening quote. The closing
+    // quote is the first one, as long as there are no escape sequences: in UTF-8, the bytes of
+    // ASCII characters are never part of other characters.
+    int start = offset + (int) parser.getTokenLocation().getByteOffset() + 1;
+    for (int i = start; i < end; i++) {
+      if (bytes[i] == '"') {
+        return new Utf8TextNode(ByteBuffer.wrap(bytes, start, i - start).slice());
+      }
+      if (bytes[i] == '\\') {
+        // Escape sequences: the bytes are not those of the string.
+        break;
+      }
+    }
+    // Also reports unterminated strings.
+    return TextNode.valueOf(parser.getText());
+  }
+
+  @Override
+  public Set<String> fields() {
+    return fields;
+  }
+
+  @Override
+  public Object getFieldValue(String field) {
+    if (field.equals(RawData.FIELD_NAME)) {
+      return json;
+    }
+    return data.get(field);
+  }
+}
@@ -58,4 +58,9 @@ public class RawData implements KeyOrValue, RecordMetadata {
   public Object getFieldValue(String field) {
     return value;
   }
+
+  @Override
+  public Object shape() {
+    return FIELDS;
+  }
 }
@@ -23,6 +23,8 @@ public class RecordAndStatement {
   private final AbstractSinkRecord record;
   private final String keyspaceAndTable;
   private final BoundStatement statement;
+  // The data size of the statement, once computed.
+  private long dataSize = -1;
 
   public RecordAndStatement(
       AbstractSinkRecord record, String keyspaceAndTable, BoundStatement statement) {
@@ -42,4 +44,13 @@ public class RecordAndStatement {
   public BoundStatement getStatement() {
     return statement;
   }
+
+  /** @return the data size of the statement, or -1 if it was not computed yet. */
+  public long getDataSize() {
+    return dataSize;
+  }
+
+  public void setDataSize(long dataSize) {
+    this.dataSize = dataSize;
+  }
 }
@@ -15,32 +15,46 @@
  */
 package com.datastax.oss.common.sink.record;
 
-import com.datastax.oss.common.sink.AbstractField;
 import com.datastax.oss.common.sink.AbstractSinkRecord;
 import com.datastax.oss.common.sink.AbstractStruct;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import java.nio.ByteBuffer;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /** The key or value of a {@link AbstractSinkRecord} when it is a {@link AbstractStruct}. */
 public class StructData implements KeyOrValue {
+  private static final Set<String> NULL_STRUCT_FIELDS = Collections.singleton(RawData.FIELD_NAME);
+  // Whether the structs of a class read their fields by position: the default get(int) looks the
+  // name of the field up and reads it by name, so such structs are read by name directly.
+  private static final ClassValue<Boolean> READS_BY_POSITION =
+      new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+          try {
+            return !type.getMethod("get", int.class).isDefault();
+          } catch (NoSuchMethodException e) {
+            return false;
+          }
+        }
+      };
 
   private final AbstractStruct struct;
+  @Nullable private final StructDataMetadata metadata;
   private final Set<String> fields;
 
   public StructData(@Nullable AbstractStruct struct) {
+    this(struct, struct == null ? null : new StructDataMetadata(struct.schema()));
+  }
+
+  /**
+   * @param struct the struct
+   * @param metadata the metadata of its schema, null if the struct is null
+   */
+  public StructData(@Nullable AbstractStruct struct, @Nullable StructDataMetadata metadata) {
     this.struct = struct;
-    if (struct == null) {
-      fields = Collections.singleton(RawData.FIELD_NAME);
-    } else {
-      fields = new HashSet<>();
-      fields.add(RawData.FIELD_NAME);
-      fields.addAll(
-          struct.schema().fields().stream().map(AbstractField::name).collect(Collectors.toSet()));
-    }
+    this.metadata = metadata;
+    fields = struct == null || metadata == null ? NULL_STRUCT_FIELDS : metadata.fields();
   }
 
   @Override
@@ -48,6 +62,22 @@ public class StructData implements KeyOrValue {
     return fields;
   }
 
+  @Override
+  public Object shape() {
+    return struct == null || metadata == null ? NULL_STRUCT_FIELDS : metadata;
+  }
+
+  @Override
+  public int indexOf(String field) {
+    if (struct == null
+        || metadata == null
+        || field.equals(RawData.FIELD_NAME)
+        || !READS_BY_POSITION.get(struct.getClass())) {
+      return -1;
+    }
+    return metadata.position(field);
+  }
+
   @Override
   public Object getFieldValue(String field) {
     if (field.equals(RawData.FIELD_NAME)) {
@@ -58,7 +88,16 @@ public class StructData implements KeyOrValue {
       return null;
     }
 
-    Object value = struct.get(field);
+    int position = indexOf(field);
+    return toDriverValue(position < 0 ? struct.get(field) : struct.get(position));
+  }
+
+  @Override
+  public Object getFieldValue(int index) {
+    return struct == null ? null : toDriverValue(struct.get(index));
+  }
+
+  private static Object toDriverValue(Object value) {
     if (value instanceof byte[]) {
       // The driver requires a ByteBuffer rather than byte[] when inserting a blob.
       return ByteBuffer.wrap((byte[]) value);
@@ -23,20 +23,61 @@ import com.datastax.oss.common.sink.AbstractStruct;
 import com.datastax.oss.driver.api.core.type.DataType;
 import com.datastax.oss.driver.api.core.type.reflect.GenericType;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-/** Metadata associated with a {@link StructData}. */
+/**
+ * Metadata associated with a {@link StructData}. It only depends on the schema of the struct, so it
+ * can be shared by all the structs of a schema: the types and positions of the fields are only
+ * resolved once.
+ */
 public class StructDataMetadata implements RecordMetadata {
+  private static final GenericType<AbstractStruct> STRUCT_TYPE =
+      GenericType.of(AbstractStruct.class);
+
   private final AbstractSchema schema;
+  private final Set<String> fields;
+  private final Map<String, Integer> positions = new HashMap<>();
+  private final ConcurrentMap<String, GenericType<?>> fieldTypes = new ConcurrentHashMap<>();
 
   public StructDataMetadata(@NonNull AbstractSchema schema) {
     this.schema = schema;
+    List<? extends AbstractField> schemaFields = schema.fields();
+    for (int i = 0; i < schemaFields.size(); i++) {
+      positions.putIfAbsent(schemaFields.get(i).name(), i);
+    }
+    Set<String> fields = new HashSet<>(positions.keySet());
+    fields.add(RawData.FIELD_NAME);
+    this.fields = Collections.unmodifiableSet(fields);
+  }
+
+  /** @return the position of the field in the fields of the schema, or -1 if it is not there. */
+  public int position(@NonNull String field) {
+    Integer position = positions.get(field);
+    return position == null ? -1 : position;
+  }
+
+  /** @return the fields of the structs of the schema, including {@link RawData#FIELD_NAME}. */
+  @NonNull
+  public Set<String> fields() {
+    return fields;
   }
 
   @Override
   public GenericType<?> getFieldType(@NonNull String field, @NonNull DataType cqlType) {
     if (field.equals(RawData.FIELD_NAME)) {
-      return GenericType.of(AbstractStruct.class);
+      return STRUCT_TYPE;
     }
+    return fieldTypes.computeIfAbsent(field, this::resolveFieldType);
+  }
+
+  private GenericType<?> resolveFieldType(String field) {
     AbstractField fieldMetadata = schema.field(field);
     if (fieldMetadata == null) {
       throw new RuntimeException("Field " + field + " is not defined in schema");
@@ -41,9 +41,7 @@ public class StructDataMetadataSupport {
     if (result != null) {
       return result;
     }
-    // This is a complex type.
-    // TODO: PERF: Consider caching these results and check the cache before creating
-    // new entries.
+    // This is a complex type. Structs cache the types of their fields, see StructDataMetadata.
 
     switch (fieldType.type()) {
       case ARRAY:
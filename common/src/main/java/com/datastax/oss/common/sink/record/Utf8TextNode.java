@@ -0,0 +1,138 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.record;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.NumberInput;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.fasterxml.jackson.databind.node.ValueNode;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A JSON string read from UTF-8 bytes, which keeps those bytes so that they can be written to text
+ * columns as they are, instead of encoding the string again.
+ *
+ * <p>The string is only decoded when it is first needed, e.g. when it is written to a column of
+ * another type; this is why it is not a {@link com.fasterxml.jackson.databind.node.TextNode}, whose
+ * string is decoded before it is built.
+ */
+public class Utf8TextNode extends ValueNode {
+  private static final long serialVersionUID = 1L;
+
+  private final ByteBuffer utf8Bytes;
+  // Decoded on first use; decoding it twice in a race is harmless.
+  private transient String value;
+
+  /**
+   * @param utf8Bytes a string encoded in UTF-8, without escape sequences; it must not be modified
+   *     afterwards
+   */
+  public Utf8TextNode(ByteBuffer utf8Bytes) {
+    this.utf8Bytes = utf8Bytes;
+  }
+
+  /**
+   * @param value the string
+   * @param utf8Bytes the string encoded in UTF-8; it must not be modified afterwards
+   */
+  public Utf8TextNode(String value, ByteBuffer utf8Bytes) {
+    this.utf8Bytes = utf8Bytes;
+    this.value = value;
+  }
+
+  /** @return the string encoded in UTF-8. */
+  public ByteBuffer utf8Bytes() {
+    return utf8Bytes.duplicate();
+  }
+
+  @Override
+  public JsonNodeType getNodeType() {
+    return JsonNodeType.STRING;
+  }
+
+  @Override
+  public JsonToken asToken() {
+    return JsonToken.VALUE_STRING;
+  }
+
+  @Override
+  public String textValue() {
+    String value = this.value;
+    if (value == null) {
+      value = this.value = StandardCharsets.UTF_8.decode(utf8Bytes.duplicate()).toString();
+    }
+    return value;
+  }
+
+  @Override
+  public String asText() {
+    return textValue();
+  }
+
+  @Override
+  public String asText(String defaultValue) {
+    return textValue();
+  }
+
+  @Override
+  public boolean asBoolean(boolean defaultValue) {
+    String value = textValue().trim();
+    if ("true".equals(value)) {
+      return true;
+    }
+    if ("false".equals(value)) {
+      return false;
+    }
+    return defaultValue;
+  }
+
+  @Override
+  public int asInt(int defaultValue) {
+    return NumberInput.parseAsInt(textValue(), defaultValue);
+  }
+
+  @Override
+  public long asLong(long defaultValue) {
+    return NumberInput.parseAsLong(textValue(), defaultValue);
+  }
+
+  @Override
+  public double asDouble(double defaultValue) {
+    return NumberInput.parseAsDouble(textValue(), defaultValue);
+  }
+
+  @Override
+  public void serialize(JsonGenerator g, SerializerProvider provider) throws IOException {
+    g.writeString(textValue());
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    return o instanceof Utf8TextNode && utf8Bytes.equals(((Utf8TextNode) o).utf8Bytes);
+  }
+
+  @Override
+  public int hashCode() {
+    return utf8Bytes.hashCode();
+  }
+}
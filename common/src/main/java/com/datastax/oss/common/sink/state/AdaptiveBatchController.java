@@ -0,0 +1,160 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.function.LongSupplier;
+
+/**
+ * Adjusts, for one topic and table, the number of records sent in a batch request, and whether
+ * groups of records are sent as one UNLOGGED batch or as concurrent single statements ("fan-out").
+ *
+ * <p>Requests are observed in windows of {@link #WINDOW_SIZE} completions. At the end of each
+ * window, its throughput (records written per second) is compared with the previous window: the
+ * batch size keeps moving in the same direction while it improves, and reverses otherwise (hill
+ * climbing). Throughput rather than latency is compared because single statements are sent
+ * concurrently: each one may take longer per record than a batch, and still write more records per
+ * second. A request failing because the cluster is overloaded (see {@link
+ * ConcurrencyLimiter#isOverload}) halves the batch size; other failures, e.g. invalid records, say
+ * nothing about the batch size and are ignored. The throughput of each mode is tracked as well, and
+ * the fastest mode is used, the other one being tried again every {@link #EXPLORE_INTERVAL} windows
+ * so that its estimate stays current.
+ */
+public class AdaptiveBatchController {
+  @VisibleForTesting static final int WINDOW_SIZE = 50;
+  @VisibleForTesting static final int EXPLORE_INTERVAL = 10;
+  // A window must be this much slower than the previous one for the direction to reverse.
+  private static final double TOLERANCE = 0.05;
+  // Weight of the last window in the per-mode throughput estimates.
+  private static final double ALPHA = 0.3;
+
+  private final int maxBatchSize;
+  private final LongSupplier nanoTime;
+  private volatile int batchSize;
+  private volatile boolean fanOut;
+
+  // Guarded by this.
+  private int direction = -1;
+  private int windowRequests;
+  private long windowRecords;
+  private long windowStartNanos;
+  private boolean windowStarted;
+  private double previousThroughput;
+  private double batchThroughput;
+  private double fanOutThroughput;
+  private long windows;
+  private boolean exploring;
+
+  AdaptiveBatchController(int maxBatchSize) {
+    this(maxBatchSize, System::nanoTime);
+  }
+
+  @VisibleForTesting
+  AdaptiveBatchController(int maxBatchSize, LongSupplier nanoTime) {
+    this.maxBatchSize = maxBatchSize;
+    this.nanoTime = nanoTime;
+    this.batchSize = maxBatchSize;
+  }
+
+  /** @return the current maximum number of records in a batch request. */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /** @return whether records should currently be sent as concurrent single statements. */
+  public boolean isFanOut() {
+    return fanOut;
+  }
+
+  /**
+   * Report a completed request.
+   *
+   * @param records the number of records in the request
+   * @param error the error the request failed with, or null if it succeeded
+   */
+  public synchronized void onRequestCompleted(int records, @Nullable Throwable error) {
+    long now = nanoTime.getAsLong();
+    if (error != null) {
+      if (ConcurrencyLimiter.isOverload(error)) {
+        // The cluster is overloaded: back off right away.
+        batchSize = Math.max(1, batchSize / 2);
+        direction = -1;
+        previousThroughput = 0;
+        resetWindow(now);
+      }
+      return;
+    }
+    if (!windowStarted) {
+      // The first request of all: only the ones after it are timed.
+      resetWindow(now);
+      return;
+    }
+    windowRequests++;
+    windowRecords += records;
+    if (windowRequests < WINDOW_SIZE) {
+      return;
+    }
+    double throughput = windowRecords * 1e9 / Math.max(1, now - windowStartNanos);
+    if (fanOut) {
+      fanOutThroughput = average(fanOutThroughput, throughput);
+    } else {
+      batchThroughput = average(batchThroughput, throughput);
+      adjustBatchSize(throughput);
+    }
+    resetWindow(now);
+    chooseMode();
+  }
+
+  private void adjustBatchSize(double throughput) {
+    if (previousThroughput > 0 && throughput < previousThroughput * (1 - TOLERANCE)) {
+      direction = -direction;
+    }
+    previousThroughput = throughput;
+    int step = Math.max(1, batchSize / 4);
+    int next = batchSize + direction * step;
+    if (next < 1 || next > maxBatchSize) {
+      direction = -direction;
+      next = Math.max(1, Math.min(maxBatchSize, next));
+    }
+    batchSize = next;
+  }
+
+  private void chooseMode() {
+    windows++;
+    boolean preferFanOut = fanOutThroughput > batchThroughput;
+    if (exploring) {
+      exploring = false;
+      fanOut = preferFanOut;
+    } else if (windows % EXPLORE_INTERVAL == 0) {
+      exploring = true;
+      fanOut = !preferFanOut;
+    } else {
+      fanOut = preferFanOut;
+    }
+  }
+
+  private static double average(double current, double sample) {
+    return current == 0 ? sample : current + ALPHA * (sample - current);
+  }
+
+  private void resetWindow(long now) {
+    windowStarted = true;
+    windowStartNanos = now;
+    windowRequests = 0;
+    windowRecords = 0;
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.common.sink.metrics.MetricNamesCreator;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits requests at three levels: a per-table cap, a per-replica-node cap and the global {@link
+ * ConcurrencyLimiter}. A request takes a permit of its table, then of each replica of its
+ * partition, then a global one; so requests held back by a saturated table or node don't hold
+ * global permits, and one hotspot cannot take every permit.
+ *
+ * <p>Requests can also be admitted asynchronously, see {@link #acquireAsync}: those that can't be
+ * admitted right away wait in line, without holding a thread, and are admitted as permits are
+ * released. A waiting request only holds back the ones for the same table and replicas, so that
+ * requests for the same partition are admitted in order, while others go ahead.
+ *
+ * <p>A per-table or per-node cap of 0 disables that level.
+ */
+public class AdmissionController {
+  // Nodes are always acquired in the same order, so that requests can't deadlock each other.
+  private static final Comparator<Node> NODE_ORDER =
+      Comparator.comparing(AdmissionController::nodeName);
+
+  private final ConcurrencyLimiter globalLimiter;
+  private final int maxConcurrentRequestsPerTable;
+  private final int maxConcurrentRequestsPerNode;
+  private final MetricRegistry metricRegistry;
+  private final ConcurrentMap<String, Semaphore> tablePermits = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Node, Semaphore> nodePermits = new ConcurrentHashMap<>();
+  // The requests waiting to be admitted asynchronously, in arrival order; modified under its lock.
+  private final ConcurrentLinkedDeque<Waiter> waiters = new ConcurrentLinkedDeque<>();
+
+  AdmissionController(
+      ConcurrencyLimiter globalLimiter,
+      int maxConcurrentRequestsPerTable,
+      int maxConcurrentRequestsPerNode,
+      MetricRegistry metricRegistry) {
+    this.globalLimiter = globalLimiter;
+    this.maxConcurrentRequestsPerTable = maxConcurrentRequestsPerTable;
+    this.maxConcurrentRequestsPerNode = maxConcurrentRequestsPerNode;
+    this.metricRegistry = metricRegistry;
+  }
+
+  @NonNull
+  public ConcurrencyLimiter getGlobalLimiter() {
+    return globalLimiter;
+  }
+
+  /** @return whether requests are limited per replica node, and thus need their replicas. */
+  public boolean isNodeLimited() {
+    return maxConcurrentRequestsPerNode > 0;
+  }
+
+  /**
+   * Wait, uninterruptibly, until a request may be sent.
+   *
+   * @param keyspaceAndTable the table the request writes to
+   * @param replicas the replicas of the partition the request writes to, if known
+   * @return the permit to release once the request completes
+   */
+  @NonNull
+  public Permit acquire(String keyspaceAndTable, @Nullable Collection<Node> replicas) {
+    Semaphore table = null;
+    if (maxConcurrentRequestsPerTable > 0) {
+      table = tablePermits.computeIfAbsent(keyspaceAndTable, this::newTablePermits);
+      table.acquireUninterruptibly();
+    }
+    List<Semaphore> nodes = Collections.emptyList();
+    if (isNodeLimited() && replicas != null && !replicas.isEmpty()) {
+      List<Node> sorted = new ArrayList<>(replicas);
+      sorted.sort(NODE_ORDER);
+      nodes = new ArrayList<>(sorted.size());
+      for (Node node : sorted) {
+        Semaphore permits = nodePermits.computeIfAbsent(node, this::newNodePermits);
+        permits.acquireUninterruptibly();
+        nodes.add(permits);
+      }
+    }
+    globalLimiter.acquire();
+    return new Permit(table, nodes);
+  }
+
+  /**
+   * Wait until a request may be sent, for at most the given time.
+   *
+   * @param keyspaceAndTable the table the request writes to
+   * @param replicas the replicas of the partition the request writes to, if known
+   * @param timeoutNanos how long to wait for, at most
+   * @return the permit to release once the request completes, or null if the timeout expired or the
+   *     thread was interrupted, in which case its interrupt status is set.
+   */
+  @Nullable
+  public Permit tryAcquire(
+      String keyspaceAndTable, @Nullable Collection<Node> replicas, long timeoutNanos) {
+    long deadline = System.nanoTime() + timeoutNanos;
+    Semaphore table = null;
+    List<Semaphore> nodes = new ArrayList<>();
+    try {
+      if (maxConcurrentRequestsPerTable > 0) {
+        Semaphore permits = tablePermits.computeIfAbsent(keyspaceAndTable, this::newTablePermits);
+        if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+          return null;
+        }
+        table = permits;
+      }
+      if (isNodeLimited() && replicas != null && !replicas.isEmpty()) {
+        List<Node> sorted = new ArrayList<>(replicas);
+        sorted.sort(NODE_ORDER);
+        for (Node node : sorted) {
+          Semaphore permits = nodePermits.computeIfAbsent(node, this::newNodePermits);
+          if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            releaseAll(table, nodes);
+            return null;
+          }
+          nodes.add(permits);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      releaseAll(table, nodes);
+      return null;
+    }
+    if (!globalLimiter.tryAcquire(deadline - System.nanoTime())) {
+      releaseAll(table, nodes);
+      return null;
+    }
+    return new Permit(table, nodes);
+  }
+
+  /**
+   * Admit a request without waiting: if it can't be admitted right away, it waits in line, after
+   * the requests for the same table and replicas, and is admitted once permits are released.
+   *
+   * @param keyspaceAndTable the table the request writes to
+   * @param replicas the replicas of the partition the request writes to, if known
+   * @return a future completing with the permit to release once the request completes; cancel it to
+   *     stop waiting.
+   */
+  @NonNull
+  public CompletableFuture<Permit> acquireAsync(
+      String keyspaceAndTable, @Nullable Collection<Node> replicas) {
+    if (waiters.isEmpty()) {
+      Permit permit = tryAcquireNow(keyspaceAndTable, replicas);
+      if (permit != null) {
+        return CompletableFuture.completedFuture(permit);
+      }
+    }
+    Waiter waiter = new Waiter(keyspaceAndTable, replicas);
+    synchronized (waiters) {
+      waiters.add(waiter);
+    }
+    // Permits may have been released since they were last tried.
+    admitWaiters();
+    return waiter.future;
+  }
+
+  /** Admit the waiting requests that can be, in order; called whenever permits are released. */
+  private void admitWaiters() {
+    if (waiters.isEmpty()) {
+      return;
+    }
+    List<Waiter> admitted = new ArrayList<>();
+    synchronized (waiters) {
+      Set<List<Object>> blocked = new HashSet<>();
+      for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+        Waiter waiter = it.next();
+        if (waiter.future.isDone()) {
+          // Given up.
+          it.remove();
+          continue;
+        }
+        if (blocked.contains(waiter.key)) {
+          continue;
+        }
+        if (!globalLimiter.tryAcquireNow()) {
+          // No request can be admitted.
+          break;
+        }
+        waiter.permit = tryAcquireLocal(waiter.keyspaceAndTable, waiter.replicas);
+        if (waiter.permit == null) {
+          globalLimiter.releaseUnused();
+          // The requests for the same table and replicas wait after this one.
+          blocked.add(waiter.key);
+          continue;
+        }
+        admitted.add(waiter);
+        it.remove();
+      }
+    }
+    for (Waiter waiter : admitted) {
+      globalLimiter.recordWait(System.nanoTime() - waiter.startNanos);
+      if (!waiter.future.complete(waiter.permit)) {
+        // Given up in the meantime.
+        waiter.permit.discard();
+      }
+    }
+  }
+
+  @Nullable
+  private Permit tryAcquireNow(String keyspaceAndTable, @Nullable Collection<Node> replicas) {
+    Permit permit = tryAcquireLocal(keyspaceAndTable, replicas);
+    if (permit != null && !globalLimiter.tryAcquireNow()) {
+      releaseAll(permit.table, permit.nodes);
+      return null;
+    }
+    return permit;
+  }
+
+  /** Acquire the permits of the table and of the replicas, without waiting, but no global one. */
+  @Nullable
+  private Permit tryAcquireLocal(String keyspaceAndTable, @Nullable Collection<Node> replicas) {
+    Semaphore table = null;
+    if (maxConcurrentRequestsPerTable > 0) {
+      table = tablePermits.computeIfAbsent(keyspaceAndTable, this::newTablePermits);
+      if (!table.tryAcquire()) {
+        return null;
+      }
+    }
+    List<Semaphore> nodes = Collections.emptyList();
+    if (isNodeLimited() && replicas != null && !replicas.isEmpty()) {
+      nodes = new ArrayList<>(replicas.size());
+      for (Node node : replicas) {
+        Semaphore permits = nodePermits.computeIfAbsent(node, this::newNodePermits);
+        if (!permits.tryAcquire()) {
+          releaseAll(table, nodes);
+          return null;
+        }
+        nodes.add(permits);
+      }
+    }
+    return new Permit(table, nodes);
+  }
+
+  private static void releaseAll(@Nullable Semaphore table, List<Semaphore> nodes) {
+    nodes.forEach(Semaphore::release);
+    if (table != null) {
+      table.release();
+    }
+  }
+
+  private Semaphore newTablePermits(String keyspaceAndTable) {
+    Semaphore permits = new Semaphore(maxConcurrentRequestsPerTable);
+    registerPermitsHeld(
+        MetricNamesCreator.createTablePermitsHeldMetricName(keyspaceAndTable),
+        permits,
+        maxConcurrentRequestsPerTable);
+    return permits;
+  }
+
+  private Semaphore newNodePermits(Node node) {
+    Semaphore permits = new Semaphore(maxConcurrentRequestsPerNode);
+    registerPermitsHeld(
+        MetricNamesCreator.createNodePermitsHeldMetricName(nodeName(node)),
+        permits,
+        maxConcurrentRequestsPerNode);
+    return permits;
+  }
+
+  private void registerPermitsHeld(String name, Semaphore permits, int max) {
+    // The registry may be shared with a previous instance: replace its gauge.
+    metricRegistry.remove(name);
+    metricRegistry.register(name, (Gauge<Integer>) () -> max - permits.availablePermits());
+  }
+
+  private static String nodeName(Node node) {
+    return node.getEndPoint().asMetricPrefix();
+  }
+
+  /** The permits taken by one request. */
+  public class Permit {
+    @Nullable private final Semaphore table;
+    private final List<Semaphore> nodes;
+
+    private Permit(@Nullable Semaphore table, List<Semaphore> nodes) {
+      this.table = table;
+      this.nodes = nodes;
+    }
+
+    /**
+     * Release the permits of the completed request.
+     *
+     * @param latencyNanos how long the request took
+     * @param error the error the request failed with, if any
+     * @see ConcurrencyLimiter#release(long, Throwable)
+     */
+    public void release(long latencyNanos, @Nullable Throwable error) {
+      globalLimiter.release(latencyNanos, error);
+      releaseAll(table, nodes);
+      admitWaiters();
+    }
+
+    /** Release the permits of a request that was not sent. */
+    public void discard() {
+      globalLimiter.releaseUnused();
+      releaseAll(table, nodes);
+      admitWaiters();
+    }
+  }
+
+  /** A request waiting to be admitted asynchronously. */
+  private static final class Waiter {
+    private final String keyspaceAndTable;
+    @Nullable private final Collection<Node> replicas;
+    /** The table and replicas: the requests for the same ones are admitted in order. */
+    private final List<Object> key;
+
+    private final long startNanos = System.nanoTime();
+    private final CompletableFuture<Permit> future = new CompletableFuture<>();
+    // Set when admitted, under the lock of the waiters.
+    @Nullable private Permit permit;
+
+    private Waiter(String keyspaceAndTable, @Nullable Collection<Node> replicas) {
+      this.keyspaceAndTable = keyspaceAndTable;
+      this.replicas = replicas;
+      key = Arrays.asList(keyspaceAndTable, replicas);
+    }
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.ConcurrencyLimiterPolicy;
+import com.datastax.oss.common.sink.metrics.MetricNamesCreator;
+import com.datastax.oss.driver.api.core.AllNodesFailedException;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.RequestThrottlingException;
+import com.datastax.oss.driver.api.core.connection.BusyConnectionException;
+import com.datastax.oss.driver.api.core.servererrors.OverloadedException;
+import com.datastax.oss.driver.api.core.servererrors.ReadTimeoutException;
+import com.datastax.oss.driver.api.core.servererrors.WriteTimeoutException;
+import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent requests sent to the cluster. The limit is adjusted after each
+ * request by a {@link LimitAlgorithm}, from the request's round-trip time and whether it failed
+ * because the cluster was overloaded (timeouts, overloaded nodes, busy connections).
+ *
+ * <p>Callers {@link #acquire()} a permit before sending a request, waiting for the number of
+ * requests in flight to drop below the current limit, and {@link #release(long, Throwable)} it once
+ * the request completes.
+ */
+public class ConcurrencyLimiter {
+  private final LimitAlgorithm algorithm;
+  private final int maxLimit;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition permitReleased = lock.newCondition();
+  private volatile Timer waitTimer;
+
+  // Guarded by lock; read without it by the metrics.
+  private volatile double limit;
+  private volatile int inFlight;
+
+  /**
+   * @param policy the policy adjusting the limit; the limit is fixed if null
+   * @param initialLimit the limit to start with; the fixed policy keeps it forever
+   * @param maxLimit the upper bound of the limit
+   */
+  public static ConcurrencyLimiter create(
+      @Nullable ConcurrencyLimiterPolicy policy, int initialLimit, int maxLimit) {
+    switch (policy == null ? ConcurrencyLimiterPolicy.FIXED : policy) {
+      case AIMD:
+        return new ConcurrencyLimiter(new Aimd(), initialLimit, maxLimit);
+      case GRADIENT:
+        return new ConcurrencyLimiter(new Gradient(), initialLimit, maxLimit);
+      case VEGAS:
+        return new ConcurrencyLimiter(new Vegas(), initialLimit, maxLimit);
+      default:
+        return new ConcurrencyLimiter(
+            (limit, inFlight, rttNanos, dropped) -> limit, initialLimit, initialLimit);
+    }
+  }
+
+  @VisibleForTesting
+  ConcurrencyLimiter(LimitAlgorithm algorithm, int initialLimit, int maxLimit) {
+    this.algorithm = algorithm;
+    this.maxLimit = Math.max(1, maxLimit);
+    this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+  }
+
+  void initializeMetrics(MetricRegistry metricRegistry) {
+    // The registry may be shared with a previous instance: replace its gauges.
+    String limitName = MetricNamesCreator.createConcurrencyLimitMetricName();
+    metricRegistry.remove(limitName);
+    metricRegistry.register(limitName, (Gauge<Integer>) this::getLimit);
+    String inFlightName = MetricNamesCreator.createInFlightRequestsMetricName();
+    metricRegistry.remove(inFlightName);
+    metricRegistry.register(inFlightName, (Gauge<Integer>) this::getInFlight);
+    waitTimer = metricRegistry.timer(MetricNamesCreator.createConcurrencyLimitWaitMetricName());
+  }
+
+  /** @return the current maximum number of requests in flight. */
+  public int getLimit() {
+    return (int) limit;
+  }
+
+  /** @return the number of requests in flight. */
+  public int getInFlight() {
+    return inFlight;
+  }
+
+  /** Wait until a request may be sent, uninterruptibly. */
+  public void acquire() {
+    long start = System.nanoTime();
+    lock.lock();
+    try {
+      while (inFlight >= (int) limit) {
+        permitReleased.awaitUninterruptibly();
+      }
+      inFlight++;
+    } finally {
+      lock.unlock();
+    }
+    Timer timer = waitTimer;
+    if (timer != null) {
+      timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Wait until a request may be sent, for at most the given time.
+   *
+   * @param timeoutNanos how long to wait for
+   * @return whether a permit was acquired; false if the timeout expired or the thread was
+   *     interrupted, in which case its interrupt status is set.
+   */
+  public boolean tryAcquire(long timeoutNanos) {
+    long start = System.nanoTime();
+    long remainingNanos = timeoutNanos;
+    lock.lock();
+    try {
+      while (inFlight >= (int) limit) {
+        if (remainingNanos <= 0) {
+          return false;
+        }
+        remainingNanos = permitReleased.awaitNanos(remainingNanos);
+      }
+      inFlight++;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      lock.unlock();
+    }
+    Timer timer = waitTimer;
+    if (timer != null) {
+      timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+    return true;
+  }
+
+  /** @return whether a permit was acquired, without waiting for one. */
+  boolean tryAcquireNow() {
+    lock.lock();
+    try {
+      if (inFlight >= (int) limit) {
+        return false;
+      }
+      inFlight++;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Record how long a request acquired with {@link #tryAcquireNow()} waited to be admitted. */
+  void recordWait(long waitNanos) {
+    Timer timer = waitTimer;
+    if (timer != null) {
+      timer.update(waitNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /** Release a permit that was not used to send a request, leaving the limit as it is. */
+  void releaseUnused() {
+    lock.lock();
+    try {
+      inFlight--;
+      permitReleased.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Release the permit of a completed request, and adjust the limit.
+   *
+   * @param rttNanos how long the request took
+   * @param error the error the request failed with, if any
+   */
+  public void release(long rttNanos, @Nullable Throwable error) {
+    lock.lock();
+    try {
+      int previous = (int) limit;
+      // Only overload-related errors say something about the limit; other failures still
+      // provide a round-trip time.
+      limit =
+          Math.max(
+              1,
+              Math.min(maxLimit, algorithm.update(limit, inFlight, rttNanos, isOverload(error))));
+      inFlight--;
+      if ((int) limit > previous) {
+        permitReleased.signalAll();
+      } else {
+        permitReleased.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @VisibleForTesting
+  static boolean isOverload(@Nullable Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null) {
+      error = error.getCause();
+    }
+    if (error instanceof AllNodesFailedException) {
+      for (List<Throwable> errors : ((AllNodesFailedException) error).getAllErrors().values()) {
+        for (Throwable nodeError : errors) {
+          if (isOverload(nodeError)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+    return error instanceof DriverTimeoutException
+        || error instanceof ReadTimeoutException
+        || error instanceof WriteTimeoutException
+        || error instanceof OverloadedException
+        || error instanceof BusyConnectionException
+        || error instanceof RequestThrottlingException;
+  }
+
+  /**
+   * Computes the next concurrency limit after each request. Only called by one thread at a time.
+   */
+  @FunctionalInterface
+  interface LimitAlgorithm {
+    /**
+     * @param limit the current limit
+     * @param inFlight the number of requests in flight, including the completed one
+     * @param rttNanos the round-trip time of the completed request
+     * @param dropped whether the request failed because the cluster is overloaded
+     * @return the new limit
+     */
+    double update(double limit, int inFlight, long rttNanos, boolean dropped);
+  }
+
+  /**
+   * Additive increase, multiplicative decrease: the limit grows by one for each request that
+   * completes while it is at least half used, and shrinks by 10% for each dropped request.
+   */
+  @VisibleForTesting
+  static class Aimd implements LimitAlgorithm {
+    private static final double BACKOFF_RATIO = 0.9;
+
+    @Override
+    public double update(double limit, int inFlight, long rttNanos, boolean dropped) {
+      if (dropped) {
+        return limit * BACKOFF_RATIO;
+      }
+      // Don't grow a limit that is not reached.
+      return inFlight * 2 >= limit ? limit + 1 : limit;
+    }
+  }
+
+  /**
+   * Compares a short-term average of the round-trip time with a long-term one: the limit shrinks
+   * when latency goes up (requests are queueing somewhere) and grows, by a queue allowance of the
+   * square root of the limit, while it stays flat.
+   */
+  @VisibleForTesting
+  static class Gradient implements LimitAlgorithm {
+    private static final double SHORT_ALPHA = 0.5;
+    private static final double LONG_ALPHA = 0.01;
+    private static final double SMOOTHING = 0.2;
+    // Latency spikes beyond this ratio of the long-term average don't shrink the limit faster.
+    private static final double MIN_GRADIENT = 0.5;
+
+    private double shortRtt;
+    private double longRtt;
+
+    @Override
+    public double update(double limit, int inFlight, long rttNanos, boolean dropped) {
+      if (shortRtt == 0) {
+        shortRtt = longRtt = rttNanos;
+      } else {
+        shortRtt += SHORT_ALPHA * (rttNanos - shortRtt);
+        longRtt += LONG_ALPHA * (rttNanos - longRtt);
+      }
+      // After an overload, latency goes back to normal long before the long-term average does:
+      // don't let the latter hold the limit down.
+      if (longRtt / shortRtt > 2) {
+        longRtt = shortRtt * 2;
+      }
+      double gradient =
+          dropped ? MIN_GRADIENT : Math.max(MIN_GRADIENT, Math.min(1.0, longRtt / shortRtt));
+      if (gradient == 1.0 && inFlight * 2 < limit) {
+        // The limit is not reached, latency says nothing about it.
+        return limit;
+      }
+      double next = limit * gradient + Math.sqrt(limit);
+      return limit * (1 - SMOOTHING) + next * SMOOTHING;
+    }
+  }
+
+  /**
+   * Estimates the number of queued requests from the ratio of the round-trip time to the smallest
+   * one seen (the latency without load): the limit grows while fewer than {@code 3 * log10(limit)}
+   * requests are queued, and shrinks when more than {@code 6 * log10(limit)} are, or when a request
+   * is dropped. The smallest round-trip time is measured again from time to time, as the cluster
+   * may have become slower.
+   */
+  @VisibleForTesting
+  static class Vegas implements LimitAlgorithm {
+    @VisibleForTesting static final int PROBE_INTERVAL = 1000;
+
+    private long minRttNanos;
+    private int samples;
+
+    @Override
+    public double update(double limit, int inFlight, long rttNanos, boolean dropped) {
+      if (++samples >= PROBE_INTERVAL) {
+        samples = 0;
+        minRttNanos = 0;
+      }
+      if (minRttNanos == 0 || rttNanos < minRttNanos) {
+        minRttNanos = rttNanos;
+      }
+      double log = Math.max(1, Math.log10(limit));
+      if (dropped) {
+        return limit - log;
+      }
+      if (inFlight * 2 < limit) {
+        return limit;
+      }
+      double queued = limit * (1 - (double) minRttNanos / Math.max(1, rttNanos));
+      if (queued < 3 * log) {
+        return limit + log;
+      }
+      if (queued > 6 * log) {
+        return limit - log;
+      }
+      return limit;
+    }
+  }
+}
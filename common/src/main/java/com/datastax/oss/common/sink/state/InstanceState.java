@@ -22,6 +22,8 @@ import com.datastax.oss.common.sink.AbstractSinkTask;
 import com.datastax.oss.common.sink.ConfigException;
 import com.datastax.oss.common.sink.RecordMapper;
 import com.datastax.oss.common.sink.config.CassandraSinkConfig;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.BatchGrouping;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.QueueWaitStrategy;
 import com.datastax.oss.common.sink.config.TableConfig;
 import com.datastax.oss.common.sink.config.TopicConfig;
 import com.datastax.oss.common.sink.metrics.GlobalSinkMetrics;
@@ -34,11 +36,17 @@ import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting
 import com.datastax.oss.driver.shaded.guava.common.collect.Sets;
 import com.datastax.oss.driver.shaded.guava.common.util.concurrent.ThreadFactoryBuilder;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
@@ -51,11 +59,15 @@ public class InstanceState {
   private final CassandraSinkConfig config;
   private final Map<String, TopicState> topicStates;
 
-  /** Semaphore to limit the number of concurrent requests. */
-  private final Semaphore requestBarrier;
+  /** Limits the number of concurrent requests, globally and per table and node. */
+  private final AdmissionController admissionController;
 
   private final Set<AbstractSinkTask> tasks;
   private final Executor mappingExecutor;
+  private final ExecutorService completionExecutor;
+  private final ScheduledExecutorService retryScheduler;
+  @Nullable private final SpillLog spillLog;
+  @Nullable private final ExecutorService spillDrainerExecutor;
   private final JmxReporter reporter;
   private final GlobalSinkMetrics globalSinkMetrics;
 
@@ -67,7 +79,18 @@ public class InstanceState {
     this.session = session;
     this.config = config;
     this.topicStates = topicStates;
-    this.requestBarrier = new Semaphore(getConfig().getMaxConcurrentRequests());
+    ConcurrencyLimiter concurrencyLimiter =
+        ConcurrencyLimiter.create(
+            config.getConcurrencyLimiter(),
+            config.getMaxConcurrentRequests(),
+            config.getMaxConcurrencyLimit());
+    concurrencyLimiter.initializeMetrics(metricRegistry);
+    this.admissionController =
+        new AdmissionController(
+            concurrencyLimiter,
+            config.getMaxConcurrentRequestsPerTable(),
+            config.getMaxConcurrentRequestsPerNode(),
+            metricRegistry);
     tasks = Sets.newConcurrentHashSet();
     mappingExecutor =
         new ThreadPoolExecutor(
@@ -78,6 +101,17 @@ public class InstanceState {
             new LinkedBlockingQueue<>(1024),
             new ThreadFactoryBuilder().setNameFormat("mapping-%d").build(),
             new ThreadPoolExecutor.CallerRunsPolicy());
+    // Unbounded, so that completions never run on the driver's I/O threads: they are bounded by
+    // the number of in-flight requests anyway.
+    completionExecutor =
+        Executors.newFixedThreadPool(
+            config.getCompletionThreads(),
+            new ThreadFactoryBuilder().setNameFormat("completion-%d").setDaemon(true).build());
+    retryScheduler =
+        config.isSplitFailedBatches()
+            ? Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("split-retry-%d").setDaemon(true).build())
+            : null;
     // Add driver metrics to our registry.
     session
         .getMetrics()
@@ -91,7 +125,38 @@ public class InstanceState {
                                 MetricNamesCreator.createDriverMetricName(name), metric)));
 
     topicStates.values().forEach(ts -> ts.initializeMetrics(metricRegistry));
+    if (config.isAdaptiveBatching()) {
+      topicStates
+          .values()
+          .forEach(
+              ts ->
+                  ts.initializeAdaptiveBatching(
+                      metricRegistry, config.getMaxNumberOfRecordsInBatch()));
+    }
     globalSinkMetrics = new GlobalSinkMetrics(metricRegistry);
+    Path spillDirectory = config.getSpillDirectory();
+    if (spillDirectory != null) {
+      try {
+        spillLog =
+            new SpillLog(
+                spillDirectory,
+                config.getSpillMaxSizeInBytes(),
+                SpillLog.DEFAULT_SEGMENT_SIZE,
+                metricRegistry);
+      } catch (IOException e) {
+        throw new ConfigException(
+            "Failed to open spill directory " + spillDirectory + ": " + e.getMessage(), e);
+      }
+      spillDrainerExecutor =
+          Executors.newSingleThreadExecutor(
+              new ThreadFactoryBuilder().setNameFormat("spill-drainer-%d").setDaemon(true).build());
+      spillDrainerExecutor.execute(
+          new SpillDrainer(
+              spillLog, session, admissionController, config.getSpillDrainRate(), metricRegistry));
+    } else {
+      spillLog = null;
+      spillDrainerExecutor = null;
+    }
     reporter =
         MetricsJmxReporter.createJmxReporter(
             config.getInstanceName(), config.getJmxConnectorDomain(), metricRegistry);
@@ -118,6 +183,20 @@ public class InstanceState {
     tasks.remove(task);
     if (tasks.isEmpty()) {
       log.debug("last task unregister close");
+      if (retryScheduler != null) {
+        retryScheduler.shutdownNow();
+      }
+      // Let the outcome of completed requests be reported.
+      completionExecutor.shutdown();
+      if (spillDrainerExecutor != null) {
+        spillDrainerExecutor.shutdownNow();
+        try {
+          spillDrainerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        closeQuietly(spillLog);
+      }
       closeQuietly(session);
       reporter.stop();
       // Indicate to the caller that this is the last task in the InstanceState.
@@ -139,14 +218,64 @@ public class InstanceState {
   }
 
   @NonNull
-  public Semaphore getRequestBarrier() {
-    return requestBarrier;
+  public AdmissionController getAdmissionController() {
+    return admissionController;
   }
 
   public int getMaxNumberOfRecordsInBatch() {
     return config.getMaxNumberOfRecordsInBatch();
   }
 
+  public int getMaxBatchSizeInBytes() {
+    return config.getMaxBatchSizeInBytes();
+  }
+
+  public int getBatchLingerMs() {
+    return config.getBatchLingerMs();
+  }
+
+  @NonNull
+  public BatchGrouping getBatchGrouping() {
+    return config.getBatchGrouping();
+  }
+
+  public int getMaxNumberOfRecordsInReplicaBatch() {
+    return config.getMaxNumberOfRecordsInReplicaBatch();
+  }
+
+  public boolean isAsyncPut() {
+    return config.isAsyncPut();
+  }
+
+  public int getBatchingShards() {
+    return config.getBatchingShards();
+  }
+
+  public int getStatementQueueCapacity() {
+    return config.getStatementQueueCapacity();
+  }
+
+  @NonNull
+  public QueueWaitStrategy getStatementQueueWaitStrategy() {
+    return config.getStatementQueueWaitStrategy();
+  }
+
+  public boolean isCoalesceWrites() {
+    return config.isCoalesceWrites();
+  }
+
+  public boolean isAggregateCounters() {
+    return config.isAggregateCounters();
+  }
+
+  public boolean isSplitFailedBatches() {
+    return config.isSplitFailedBatches();
+  }
+
+  public int getSplitRetryDelayMs() {
+    return config.getSplitRetryDelayMs();
+  }
+
   @NonNull
   public TopicConfig getTopicConfig(String topicName) {
     TopicConfig topicConfig = this.config.getTopicConfigs().get(topicName);
@@ -212,11 +341,64 @@ public class InstanceState {
     return mappingExecutor;
   }
 
+  /** @return the executor reporting the outcome of queries, off the driver's I/O threads. */
+  @NonNull
+  public Executor getCompletionExecutor() {
+    return completionExecutor;
+  }
+
+  /**
+   * @return the executor sending the halves of failed batches after a delay, or null if failed
+   *     batches are not split.
+   */
+  @Nullable
+  public ScheduledExecutorService getRetryScheduler() {
+    return retryScheduler;
+  }
+
+  /** @return the log where statements are spilled, or null if they are not. */
+  @Nullable
+  public SpillLog getSpillLog() {
+    return spillLog;
+  }
+
+  public int getSpillAdmissionTimeoutMs() {
+    return config.getSpillAdmissionTimeoutMs();
+  }
+
   @NonNull
   public RecordMapper getRecordMapper(TableConfig tableConfig) {
     return getTopicState(tableConfig.getTopicName()).getRecordMapper(tableConfig);
   }
 
+  /**
+   * @return the top-level fields of the JSON keys of the given topic whose floating-point numbers
+   *     may be decoded as doubles, because they're only written to float or double columns.
+   */
+  @NonNull
+  public Set<String> getDoubleKeyFields(String topicName) {
+    return getTopicState(topicName).getDoubleKeyFields();
+  }
+
+  /**
+   * @return the top-level fields of the JSON values of the given topic whose floating-point numbers
+   *     may be decoded as doubles, because they're only written to float or double columns.
+   */
+  @NonNull
+  public Set<String> getDoubleValueFields(String topicName) {
+    return getTopicState(topicName).getDoubleValueFields();
+  }
+
+  /**
+   * @return the controller adjusting batches for the given topic and table, or null if adaptive
+   *     batching is disabled.
+   */
+  @Nullable
+  public AdaptiveBatchController getAdaptiveBatchController(
+      String topicName, String keyspaceAndTable) {
+    return getTopicState(topicName).getAdaptiveBatchController(keyspaceAndTable);
+  }
+
   public void incrementRecordCounter(String topicName, String keyspaceAndTable, int incrementBy) {
     getTopicState(topicName).incrementRecordCount(keyspaceAndTable, incrementBy);
   }
@@ -225,6 +407,15 @@ public class InstanceState {
     getTopicState(topicName).incrementFailedCounter(keyspaceAndTable);
   }
 
+  public void incrementSplitBatchCounter(String topicName, String keyspaceAndTable) {
+    getTopicState(topicName).incrementSplitBatchCounter(keyspaceAndTable);
+  }
+
+  public void incrementRecoveredRecordCounter(
+      String topicName, String keyspaceAndTable, int incrementBy) {
+    getTopicState(topicName).incrementRecoveredRecordCounter(keyspaceAndTable, incrementBy);
+  }
+
   @VisibleForTesting
   public long getRecordCounter(String topicName, String keyspaceAndTable) {
     return getTopicState(topicName).getRecordCountMeter(keyspaceAndTable).getCount();
@@ -235,6 +426,29 @@ public class InstanceState {
     return getTopicState(topicName).getFailedRecordCounter(keyspaceAndTable).getCount();
   }
 
+  @VisibleForTesting
+  public long getSplitBatchCounter(String topicName, String keyspaceAndTable) {
+    return getTopicState(topicName).getSplitBatchCounter(keyspaceAndTable).getCount();
+  }
+
+  @VisibleForTesting
+  public long getRecoveredRecordCounter(String topicName, String keyspaceAndTable) {
+    return getTopicState(topicName).getRecoveredRecordCounter(keyspaceAndTable).getCount();
+  }
+
+  public void registerStatementQueue(Queue<?> queue) {
+    globalSinkMetrics.registerStatementQueue(queue);
+  }
+
+  public void unregisterStatementQueue(Queue<?> queue) {
+    globalSinkMetrics.unregisterStatementQueue(queue);
+  }
+
+  @VisibleForTesting
+  public int getStatementQueueOccupancy() {
+    return globalSinkMetrics.getStatementQueueOccupancy();
+  }
+
   public void incrementFailedWithUnknownTopicCounter() {
     globalSinkMetrics.incrementFailedWithUnknownTopicCounter();
   }
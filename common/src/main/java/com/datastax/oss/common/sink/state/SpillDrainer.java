@@ -0,0 +1,130 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.common.sink.metrics.MetricNamesCreator;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays the statements of a {@link SpillLog}, oldest first and one at a time, at most at a given
+ * rate; they take admission permits like any other request.
+ *
+ * <p>While the cluster can't be written to, the same statement is retried, with an exponential
+ * backoff. A statement failing for another reason is dropped and logged: its record was already
+ * acknowledged when it was spilled.
+ */
+public class SpillDrainer implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(SpillDrainer.class);
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  private final SpillLog spillLog;
+  private final CqlSession session;
+  private final AdmissionController admissionController;
+  private final long intervalNanos;
+  private final Meter replayedStatements;
+  private final Meter failedReplays;
+  private final Map<String, PreparedStatement> preparedStatements = new HashMap<>();
+  private long backoffNanos;
+
+  /** @param maxStatementsPerSecond how many statements may be replayed per second, at most */
+  SpillDrainer(
+      SpillLog spillLog,
+      CqlSession session,
+      AdmissionController admissionController,
+      int maxStatementsPerSecond,
+      MetricRegistry metricRegistry) {
+    this.spillLog = spillLog;
+    this.session = session;
+    this.admissionController = admissionController;
+    this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / maxStatementsPerSecond;
+    replayedStatements =
+        metricRegistry.meter(MetricNamesCreator.createReplayedStatementsMetricName());
+    failedReplays = metricRegistry.meter(MetricNamesCreator.createFailedReplaysMetricName());
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        TimeUnit.NANOSECONDS.sleep(replayNext());
+      }
+    } catch (InterruptedException e) {
+      // Stopped; the statements not replayed yet stay in the log.
+    }
+  }
+
+  /**
+   * Replay the oldest statement of the log, if any.
+   *
+   * @return how long to wait before replaying the next one.
+   */
+  @VisibleForTesting
+  long replayNext() throws InterruptedException {
+    SpilledStatement statement = spillLog.peek();
+    if (statement == null) {
+      return IDLE_NANOS;
+    }
+    long start = System.nanoTime();
+    Throwable error = null;
+    try {
+      PreparedStatement prepared =
+          preparedStatements.computeIfAbsent(statement.getQuery(), session::prepare);
+      AdmissionController.Permit permit =
+          admissionController.acquire(statement.getKeyspaceAndTable(), null);
+      try {
+        session.executeAsync(statement.bind(prepared)).toCompletableFuture().get();
+      } catch (ExecutionException e) {
+        error = e.getCause();
+      } finally {
+        permit.release(System.nanoTime() - start, error);
+      }
+    } catch (RuntimeException e) {
+      // Failed to prepare the query.
+      error = e;
+    }
+    if (error != null && SpillLog.isTransient(error)) {
+      backoffNanos =
+          backoffNanos == 0 ? MIN_BACKOFF_NANOS : Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+      log.debug("Failed to replay spilled statement, retrying in {} ns", backoffNanos, error);
+      return backoffNanos;
+    }
+    backoffNanos = 0;
+    spillLog.remove();
+    if (error == null) {
+      replayedStatements.mark();
+    } else {
+      failedReplays.mark();
+      log.error(
+          "Failed to replay spilled statement {} on {}, dropping it",
+          statement.getQuery(),
+          statement.getKeyspaceAndTable(),
+          error);
+    }
+    return Math.max(0, start + intervalNanos - System.nanoTime());
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.common.sink.metrics.MetricNamesCreator;
+import com.datastax.oss.driver.api.core.AllNodesFailedException;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.servererrors.UnavailableException;
+import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, append-only log of statements on local disk, where statements that can't be sent to
+ * the cluster for now are set aside until the {@link SpillDrainer} replays them.
+ *
+ * <p>The log is a sequence of fixed-size segment files, memory-mapped, each holding entries
+ * prefixed by their length; a length of 0 marks the end of the written entries. The segments are
+ * deleted once replayed, and the log never takes more than its maximum size. Segments left by a
+ * previous run are replayed from their start, but never written to again: statements may be written
+ * twice, which is why only idempotent ones are spilled. Entries that can't be read back are
+ * skipped.
+ */
+public class SpillLog implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(SpillLog.class);
+  static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final String SEGMENT_SUFFIX = ".spill";
+
+  private final Path directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final Meter spilledStatements;
+
+  // Guarded by this, oldest first: entries are read from the first one, written to the last one.
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  // Guarded by this: the segment created by this instance that entries are written to, if any.
+  @Nullable private Segment writeSegment;
+  private long nextSequence;
+  // The length of the entry returned by peek(), if any.
+  private int peekedLength = -1;
+  // The size of the entries not replayed yet; read without lock by the metrics.
+  private volatile long sizeInBytes;
+
+  /**
+   * Open the log in the given directory, with the segments it holds if any.
+   *
+   * @param maxSizeInBytes the size that the segments may take on disk, at most
+   * @param segmentSize the size of each segment; smaller if the maximum size is smaller
+   */
+  SpillLog(Path directory, long maxSizeInBytes, int segmentSize, MetricRegistry metricRegistry)
+      throws IOException {
+    this.directory = directory;
+    this.segmentSize = (int) Math.min(segmentSize, maxSizeInBytes);
+    this.maxSegments = (int) Math.max(1, maxSizeInBytes / this.segmentSize);
+    Files.createDirectories(directory);
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+      stream.forEach(files::add);
+    }
+    // Sequences are zero-padded: the names sort in order.
+    files.sort(null);
+    for (Path file : files) {
+      Segment segment = Segment.open(file, (int) Files.size(file));
+      segments.add(segment);
+      sizeInBytes += segment.writePosition;
+      nextSequence = Math.max(nextSequence, sequence(file) + 1);
+    }
+    if (!segments.isEmpty()) {
+      log.info("Replaying {} bytes of statements spilled to {}", sizeInBytes, directory);
+    }
+    spilledStatements =
+        metricRegistry.meter(MetricNamesCreator.createSpilledStatementsMetricName());
+    // The registry may be shared with a previous instance: replace its gauge.
+    String sizeName = MetricNamesCreator.createSpillSizeInBytesMetricName();
+    metricRegistry.remove(sizeName);
+    metricRegistry.register(sizeName, (Gauge<Long>) () -> sizeInBytes);
+  }
+
+  /**
+   * @return whether the given error may not happen if the request is sent again later: the cluster
+   *     or the replicas were unreachable or overloaded.
+   */
+  public static boolean isTransient(@Nullable Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null) {
+      error = error.getCause();
+    }
+    return error instanceof AllNodesFailedException
+        || error instanceof UnavailableException
+        || ConcurrencyLimiter.isOverload(error);
+  }
+
+  private static long sequence(Path file) {
+    String name = file.getFileName().toString();
+    try {
+      return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Write the given statements to the log, all or none of them.
+   *
+   * @param statements the statements to write; they must be idempotent, and carry the explicit
+   *     query timestamp they were first sent with, which they are replayed with
+   * @param keyspaceAndTable the table they write to
+   * @return whether they were written; false if the log is full.
+   */
+  public boolean append(List<BoundStatement> statements, String keyspaceAndTable) {
+    List<ByteBuffer> entries = new ArrayList<>(statements.size());
+    for (BoundStatement statement : statements) {
+      entries.add(SpilledStatement.encode(statement, keyspaceAndTable));
+    }
+    try {
+      if (!appendEntries(entries)) {
+        return false;
+      }
+    } catch (IOException e) {
+      log.warn("Failed to spill statements to " + directory, e);
+      return false;
+    }
+    spilledStatements.mark(statements.size());
+    return true;
+  }
+
+  private synchronized boolean appendEntries(List<ByteBuffer> entries) throws IOException {
+    // Check that all the entries fit before writing any of them.
+    int position = writeSegment == null ? segmentSize : writeSegment.writePosition;
+    int newSegments = 0;
+    for (ByteBuffer entry : entries) {
+      int length = 4 + entry.remaining();
+      if (length > segmentSize) {
+        return false;
+      }
+      if (position + length > segmentSize) {
+        newSegments++;
+        position = 0;
+      }
+      position += length;
+    }
+    if (segments.size() + newSegments > maxSegments) {
+      return false;
+    }
+    List<Segment> written = new ArrayList<>();
+    for (ByteBuffer entry : entries) {
+      if (writeSegment == null
+          || writeSegment.writePosition + 4 + entry.remaining() > segmentSize) {
+        writeSegment = Segment.create(directory.resolve(segmentName(nextSequence++)), segmentSize);
+        segments.add(writeSegment);
+      }
+      writeSegment.write(entry);
+      sizeInBytes += 4 + entry.remaining();
+      if (!written.contains(writeSegment)) {
+        written.add(writeSegment);
+      }
+    }
+    for (Segment segment : written) {
+      segment.buffer.force();
+    }
+    return true;
+  }
+
+  private static String segmentName(long sequence) {
+    return String.format("%020d%s", sequence, SEGMENT_SUFFIX);
+  }
+
+  /**
+   * @return the oldest statement of the log, or null if it is empty; it is returned again until
+   *     {@link #remove()} is called.
+   */
+  @Nullable
+  synchronized SpilledStatement peek() {
+    while (true) {
+      Segment first = segments.peekFirst();
+      if (first == null) {
+        return null;
+      }
+      if (first.readPosition < first.writePosition) {
+        ByteBuffer entry = first.read();
+        int length = 4 + entry.remaining();
+        try {
+          SpilledStatement statement = SpilledStatement.decode(entry);
+          peekedLength = length;
+          return statement;
+        } catch (RuntimeException e) {
+          log.warn("Skipping corrupt statement spilled to " + first.file, e);
+          first.readPosition += length;
+          sizeInBytes -= length;
+          continue;
+        }
+      }
+      // Fully replayed: delete it; when it's the last one, the next statement starts a new one.
+      segments.removeFirst();
+      first.delete();
+      if (first == writeSegment) {
+        writeSegment = null;
+      }
+    }
+  }
+
+  /** Forget the statement returned by {@link #peek()}, once replayed. */
+  synchronized void remove() {
+    if (peekedLength < 0) {
+      throw new IllegalStateException("No statement to remove");
+    }
+    segments.getFirst().readPosition += peekedLength;
+    sizeInBytes -= peekedLength;
+    peekedLength = -1;
+  }
+
+  /** @return the size of the statements not replayed yet. */
+  public long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  @VisibleForTesting
+  synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  @Override
+  public synchronized void close() {
+    for (Segment segment : segments) {
+      segment.buffer.force();
+      segment.close();
+    }
+    segments.clear();
+    writeSegment = null;
+  }
+
+  private static final class Segment {
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    private int readPosition;
+
+    private Segment(Path file, FileChannel channel, MappedByteBuffer buffer) {
+      this.file = file;
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+
+    static Segment create(Path file, int size) throws IOException {
+      FileChannel channel =
+          FileChannel.open(
+              file,
+              StandardOpenOption.CREATE_NEW,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      return new Segment(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    static Segment open(Path file, int size) throws IOException {
+      FileChannel channel =
+          FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      Segment segment =
+          new Segment(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+      // The written entries end at the first zero length, or at a truncated entry.
+      int position = 0;
+      while (position + 4 <= size) {
+        int length = segment.buffer.getInt(position);
+        if (length <= 0 || position + 4 + length > size) {
+          break;
+        }
+        position += 4 + length;
+      }
+      segment.writePosition = position;
+      return segment;
+    }
+
+    void write(ByteBuffer entry) {
+      int length = entry.remaining();
+      ByteBuffer target = buffer.duplicate();
+      target.position(writePosition + 4);
+      target.put(entry.duplicate());
+      // The length comes last: a partially written entry is never read.
+      buffer.putInt(writePosition, length);
+      writePosition += 4 + length;
+    }
+
+    ByteBuffer read() {
+      int length = buffer.getInt(readPosition);
+      ByteBuffer entry = buffer.duplicate();
+      entry.position(readPosition + 4);
+      entry.limit(readPosition + 4 + length);
+      return entry.slice();
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Failed to close " + file, e);
+      }
+    }
+
+    void delete() {
+      close();
+      try {
+        // The mapping itself is released when the buffer is garbage-collected.
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        log.warn("Failed to delete replayed segment " + file, e);
+      }
+    }
+  }
+}
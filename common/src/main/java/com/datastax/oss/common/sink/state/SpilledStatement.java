@@ -0,0 +1,176 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.DefaultConsistencyLevel;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A bound statement as written to the {@link SpillLog}: its query, the serialized values of its
+ * variables, its consistency level and its write timestamp.
+ *
+ * <p>The timestamp is the one the statement was first sent with, so that replaying it later does
+ * not overwrite writes of the same cells received after it.
+ */
+final class SpilledStatement {
+  private static final int NULL = -1;
+  private static final int UNSET = -2;
+
+  private final String keyspaceAndTable;
+  private final String query;
+  @Nullable private final ConsistencyLevel consistencyLevel;
+  private final long timestamp;
+  // Null elements are null values, unless unset.
+  private final ByteBuffer[] values;
+  private final boolean[] unset;
+
+  private SpilledStatement(
+      String keyspaceAndTable,
+      String query,
+      @Nullable ConsistencyLevel consistencyLevel,
+      long timestamp,
+      ByteBuffer[] values,
+      boolean[] unset) {
+    this.keyspaceAndTable = keyspaceAndTable;
+    this.query = query;
+    this.consistencyLevel = consistencyLevel;
+    this.timestamp = timestamp;
+    this.values = values;
+    this.unset = unset;
+  }
+
+  /**
+   * @param statement the statement to write, with its explicit query timestamp
+   * @param keyspaceAndTable the table it writes to
+   * @return the bytes of the statement.
+   */
+  @NonNull
+  static ByteBuffer encode(BoundStatement statement, String keyspaceAndTable) {
+    byte[] table = keyspaceAndTable.getBytes(StandardCharsets.UTF_8);
+    byte[] query = statement.getPreparedStatement().getQuery().getBytes(StandardCharsets.UTF_8);
+    int size = 4 + table.length + 4 + query.length + 4 + 8 + 4;
+    for (int i = 0; i < statement.size(); i++) {
+      ByteBuffer value = statement.isSet(i) ? statement.getBytesUnsafe(i) : null;
+      size += 4 + (value == null ? 0 : value.remaining());
+    }
+    ByteBuffer bytes = ByteBuffer.allocate(size);
+    bytes.putInt(table.length).put(table);
+    bytes.putInt(query.length).put(query);
+    ConsistencyLevel consistencyLevel = statement.getConsistencyLevel();
+    bytes.putInt(consistencyLevel == null ? NULL : consistencyLevel.getProtocolCode());
+    bytes.putLong(statement.getQueryTimestamp());
+    bytes.putInt(statement.size());
+    for (int i = 0; i < statement.size(); i++) {
+      if (!statement.isSet(i)) {
+        bytes.putInt(UNSET);
+        continue;
+      }
+      ByteBuffer value = statement.getBytesUnsafe(i);
+      if (value == null) {
+        bytes.putInt(NULL);
+      } else {
+        bytes.putInt(value.remaining()).put(value.duplicate());
+      }
+    }
+    bytes.flip();
+    return bytes;
+  }
+
+  /**
+   * @return the statement read from the given bytes, as written by {@link #encode}.
+   * @throws RuntimeException if the bytes are corrupt.
+   */
+  @NonNull
+  static SpilledStatement decode(ByteBuffer bytes) {
+    String keyspaceAndTable = readString(bytes);
+    String query = readString(bytes);
+    int consistencyCode = bytes.getInt();
+    long timestamp = bytes.getLong();
+    // At least 4 bytes per value.
+    int size = checkLength(bytes, bytes.getInt(), 4);
+    ByteBuffer[] values = new ByteBuffer[size];
+    boolean[] unset = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      int length = bytes.getInt();
+      if (length == UNSET) {
+        unset[i] = true;
+      } else if (length != NULL) {
+        byte[] value = new byte[checkLength(bytes, length, 1)];
+        bytes.get(value);
+        values[i] = ByteBuffer.wrap(value);
+      }
+    }
+    return new SpilledStatement(
+        keyspaceAndTable,
+        query,
+        consistencyCode == NULL ? null : DefaultConsistencyLevel.fromCode(consistencyCode),
+        timestamp,
+        values,
+        unset);
+  }
+
+  private static String readString(ByteBuffer bytes) {
+    byte[] string = new byte[checkLength(bytes, bytes.getInt(), 1)];
+    bytes.get(string);
+    return new String(string, StandardCharsets.UTF_8);
+  }
+
+  private static int checkLength(ByteBuffer bytes, int length, int unitSize) {
+    if (length < 0 || length > bytes.remaining() / unitSize) {
+      throw new IllegalArgumentException("Corrupt spilled statement: invalid length " + length);
+    }
+    return length;
+  }
+
+  @NonNull
+  String getKeyspaceAndTable() {
+    return keyspaceAndTable;
+  }
+
+  @NonNull
+  String getQuery() {
+    return query;
+  }
+
+  /**
+   * @param prepared the prepared statement of {@link #getQuery()}
+   * @return the statement to replay; it is idempotent, since only such statements are spilled.
+   */
+  @NonNull
+  BoundStatement bind(PreparedStatement prepared) {
+    BoundStatementBuilder builder = prepared.boundStatementBuilder();
+    for (int i = 0; i < values.length; i++) {
+      if (!unset[i]) {
+        builder = builder.setBytesUnsafe(i, values[i]);
+      }
+    }
+    if (consistencyLevel != null) {
+      builder = builder.setConsistencyLevel(consistencyLevel);
+    }
+    if (timestamp != Statement.NO_DEFAULT_TIMESTAMP) {
+      builder = builder.setQueryTimestamp(timestamp);
+    }
+    return builder.setIdempotence(true).build();
+  }
+}
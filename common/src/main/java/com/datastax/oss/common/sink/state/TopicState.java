@@ -15,6 +15,7 @@
  */
 package com.datastax.oss.common.sink.state;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
@@ -23,12 +24,20 @@ import com.datastax.oss.common.sink.RecordMapper;
 import com.datastax.oss.common.sink.config.TableConfig;
 import com.datastax.oss.common.sink.metrics.MetricNamesCreator;
 import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.type.DataType;
+import com.datastax.oss.driver.api.core.type.DataTypes;
 import com.datastax.oss.driver.shaded.guava.common.annotations.VisibleForTesting;
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableSet;
 import com.datastax.oss.dsbulk.codecs.api.ConvertingCodecFactory;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -38,23 +47,39 @@ import java.util.stream.Collectors;
  * statement, etc.)
  */
 class TopicState {
+  private static final Set<DataType> DOUBLE_TYPES =
+      ImmutableSet.of(DataTypes.FLOAT, DataTypes.DOUBLE);
+
   private final ConvertingCodecFactory codecFactory;
   private final Map<TableConfig, RecordMapper> recordMappers;
   private Map<String, Histogram> batchSizeHistograms;
   private Map<String, Meter> recordCounters;
   private Map<String, Meter> failedRecordCounters;
+  private Map<String, Meter> splitBatchCounters;
+  private Map<String, Meter> recoveredRecordCounters;
   private Map<String, Histogram> batchSizeInBytesHistograms;
+  private Map<String, AdaptiveBatchController> adaptiveBatchControllers;
+
+  // Whether the floating-point numbers of each mapped field (e.g. "value.f1") may be decoded as
+  // doubles rather than BigDecimals: this is the case if it's only written to float or double
+  // columns. Guarded by this.
+  private final Map<String, Boolean> doubleFields = new HashMap<>();
+  private volatile Set<String> doubleKeyFields = Collections.emptySet();
+  private volatile Set<String> doubleValueFields = Collections.emptySet();
 
   TopicState(ConvertingCodecFactory codecFactory) {
     this.codecFactory = codecFactory;
     recordMappers = new ConcurrentHashMap<>();
   }
 
-  void createRecordMapper(
+  synchronized void createRecordMapper(
       TableConfig tableConfig,
       List<CqlIdentifier> primaryKey,
       PreparedStatement insertUpdateStatement,
       PreparedStatement deleteStatement) {
+    if (insertUpdateStatement != null) {
+      recordFieldTypes(tableConfig, insertUpdateStatement.getVariableDefinitions());
+    }
     recordMappers.putIfAbsent(
         tableConfig,
         new RecordMapper(
@@ -67,6 +92,47 @@ class TopicState {
             tableConfig));
   }
 
+  private void recordFieldTypes(TableConfig tableConfig, ColumnDefinitions variables) {
+    tableConfig
+        .getMapping()
+        .forEach(
+            (column, field) -> {
+              boolean isDouble =
+                  variables.contains(column)
+                      && DOUBLE_TYPES.contains(variables.get(column).getType());
+              doubleFields.merge(field.asInternal(), isDouble, Boolean::logicalAnd);
+            });
+    doubleKeyFields = doubleFields("key.");
+    doubleValueFields = doubleFields("value.");
+  }
+
+  private Set<String> doubleFields(String prefix) {
+    return doubleFields
+        .entrySet()
+        .stream()
+        .filter(e -> e.getValue() && e.getKey().startsWith(prefix))
+        .map(e -> e.getKey().substring(prefix.length()))
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * @return the top-level fields of JSON record keys whose floating-point numbers may be decoded as
+   *     doubles.
+   */
+  @NonNull
+  Set<String> getDoubleKeyFields() {
+    return doubleKeyFields;
+  }
+
+  /**
+   * @return the top-level fields of JSON record values whose floating-point numbers may be decoded
+   *     as doubles.
+   */
+  @NonNull
+  Set<String> getDoubleValueFields() {
+    return doubleValueFields;
+  }
+
   void initializeMetrics(MetricRegistry metricRegistry) {
     // Add batch size histograms for all topic-tables.
     batchSizeHistograms =
@@ -93,6 +159,37 @@ class TopicState {
             recordMappers,
             MetricNamesCreator::createFailedRecordCountMetricName,
             metricRegistry::meter);
+
+    // Add splitBatchCounters for all topic-tables.
+    splitBatchCounters =
+        constructMetrics(
+            recordMappers,
+            MetricNamesCreator::createSplitBatchCountMetricName,
+            metricRegistry::meter);
+
+    // Add recoveredRecordCounters for all topic-tables.
+    recoveredRecordCounters =
+        constructMetrics(
+            recordMappers,
+            MetricNamesCreator::createRecoveredRecordCountMetricName,
+            metricRegistry::meter);
+  }
+
+  void initializeAdaptiveBatching(MetricRegistry metricRegistry, int maxNumberOfRecordsInBatch) {
+    adaptiveBatchControllers = new ConcurrentHashMap<>();
+    for (TableConfig tableConfig : recordMappers.keySet()) {
+      AdaptiveBatchController controller =
+          adaptiveBatchControllers.computeIfAbsent(
+              tableConfig.getKeyspaceAndTable(),
+              t -> new AdaptiveBatchController(maxNumberOfRecordsInBatch));
+      // The registry may be shared with a previous instance: replace its gauges.
+      String batchSizeName = MetricNamesCreator.createAdaptiveBatchSizeMetricName(tableConfig);
+      metricRegistry.remove(batchSizeName);
+      metricRegistry.register(batchSizeName, (Gauge<Integer>) controller::getBatchSize);
+      String fanOutName = MetricNamesCreator.createAdaptiveBatchFanOutMetricName(tableConfig);
+      metricRegistry.remove(fanOutName);
+      metricRegistry.register(fanOutName, (Gauge<Boolean>) controller::isFanOut);
+    }
   }
 
   private <T> Map<String, T> constructMetrics(
@@ -119,6 +216,11 @@ class TopicState {
     return batchSizeInBytesHistograms.get(keyspaceAndTable);
   }
 
+  @Nullable
+  AdaptiveBatchController getAdaptiveBatchController(String keyspaceAndTable) {
+    return adaptiveBatchControllers == null ? null : adaptiveBatchControllers.get(keyspaceAndTable);
+  }
+
   void incrementRecordCount(String keyspaceAndTable, int incrementBy) {
     recordCounters.get(keyspaceAndTable).mark(incrementBy);
   }
@@ -127,6 +229,14 @@ class TopicState {
     failedRecordCounters.get(keyspaceAndTable).mark();
   }
 
+  void incrementSplitBatchCounter(String keyspaceAndTable) {
+    splitBatchCounters.get(keyspaceAndTable).mark();
+  }
+
+  void incrementRecoveredRecordCounter(String keyspaceAndTable, int incrementBy) {
+    recoveredRecordCounters.get(keyspaceAndTable).mark(incrementBy);
+  }
+
   @VisibleForTesting
   Meter getRecordCountMeter(String keyspaceAndTable) {
     return recordCounters.get(keyspaceAndTable);
@@ -137,6 +247,16 @@ class TopicState {
     return failedRecordCounters.get(keyspaceAndTable);
   }
 
+  @VisibleForTesting
+  Meter getSplitBatchCounter(String keyspaceAndTable) {
+    return splitBatchCounters.get(keyspaceAndTable);
+  }
+
+  @VisibleForTesting
+  Meter getRecoveredRecordCounter(String keyspaceAndTable) {
+    return recoveredRecordCounters.get(keyspaceAndTable);
+  }
+
   @NonNull
   RecordMapper getRecordMapper(TableConfig tableConfig) {
     return recordMappers.get(tableConfig);
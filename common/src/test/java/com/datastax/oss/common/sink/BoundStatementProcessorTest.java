@@ -16,29 +16,74 @@
 package com.datastax.oss.common.sink;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.RETURNS_SELF;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import com.codahale.metrics.Histogram;
+import com.datastax.oss.common.sink.BoundStatementProcessor.StatementGroup;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.BatchGrouping;
 import com.datastax.oss.common.sink.record.RecordAndStatement;
+import com.datastax.oss.common.sink.state.AdmissionController;
 import com.datastax.oss.common.sink.state.InstanceState;
+import com.datastax.oss.common.sink.state.SpillLog;
+import com.datastax.oss.common.sink.state.TestSpillLog;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.NoNodeAvailableException;
 import com.datastax.oss.driver.api.core.ProtocolVersion;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
 import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinition;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.metadata.Metadata;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.metadata.TokenMap;
+import com.datastax.oss.driver.api.core.servererrors.InvalidQueryException;
+import com.datastax.oss.driver.api.core.type.DataType;
+import com.datastax.oss.driver.api.core.type.DataTypes;
 import com.datastax.oss.driver.api.core.type.codec.registry.CodecRegistry;
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableList;
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableSet;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
 class BoundStatementProcessorTest {
+  private static final String INSERT = "INSERT INTO ks.mytable(pk,v) VALUES (:pk,:v)";
+
+  @TempDir Path spillDirectory;
 
   @Test
   void should_categorize_statement_in_statement_group() {
@@ -54,7 +99,7 @@ class BoundStatementProcessorTest {
         new SinkRecordImpl("yourtopic", 0, null, null, null, "value", 1234L);
     RecordAndStatement recordAndStatement2 = new RecordAndStatement(record2, "ks.mytable", bs1);
 
-    Map<String, Map<ByteBuffer, List<RecordAndStatement>>> statementGroups = new HashMap<>();
+    Map<String, Map<Object, StatementGroup>> statementGroups = new HashMap<>();
 
     // We don't care about the args to the constructor for this test.
     BoundStatementProcessor statementProcessor =
@@ -62,20 +107,19 @@ class BoundStatementProcessorTest {
 
     // Categorize the two statements. Although they refer to the same ks/table and have the
     // same routing key, they should be in different buckets.
-    List<RecordAndStatement> result1 =
+    StatementGroup result1 =
         statementProcessor.categorizeStatement(statementGroups, recordAndStatement1);
-    List<RecordAndStatement> result2 =
+    StatementGroup result2 =
         statementProcessor.categorizeStatement(statementGroups, recordAndStatement2);
 
     assertThat(result1.size()).isEqualTo(1);
-    assertThat(result1.get(0)).isSameAs(recordAndStatement1);
+    assertThat(result1.getStatements().get(0)).isSameAs(recordAndStatement1);
     assertThat(statementGroups.size()).isEqualTo(2);
     assertThat(statementGroups.containsKey("mytopic.ks.mytable")).isTrue();
-    Map<ByteBuffer, List<RecordAndStatement>> batchGroups =
-        statementGroups.get("mytopic.ks.mytable");
+    Map<Object, StatementGroup> batchGroups = statementGroups.get("mytopic.ks.mytable");
     assertThat(batchGroups.size()).isEqualTo(1);
     assertThat(batchGroups.containsKey(routingKey)).isTrue();
-    List<RecordAndStatement> batchGroup = batchGroups.get(routingKey);
+    StatementGroup batchGroup = batchGroups.get(routingKey);
     assertThat(batchGroup).isSameAs(result1);
 
     batchGroups = statementGroups.get("yourtopic.ks.mytable");
@@ -85,6 +129,274 @@ class BoundStatementProcessorTest {
     assertThat(batchGroup).isSameAs(result2);
   }
 
+  @Test
+  void should_categorize_statements_by_replica_set() {
+    CqlIdentifier keyspace = CqlIdentifier.fromInternal("ks");
+    ByteBuffer key1 = ByteBuffer.wrap(new byte[] {1});
+    ByteBuffer key2 = ByteBuffer.wrap(new byte[] {2});
+    ByteBuffer key3 = ByteBuffer.wrap(new byte[] {3});
+    Node node1 = mock(Node.class);
+    Node node2 = mock(Node.class);
+    TokenMap tokenMap = mock(TokenMap.class);
+    when(tokenMap.getReplicas(keyspace, key1)).thenReturn(ImmutableSet.of(node1));
+    when(tokenMap.getReplicas(keyspace, key2)).thenReturn(ImmutableSet.of(node1));
+    when(tokenMap.getReplicas(keyspace, key3)).thenReturn(ImmutableSet.of(node2));
+    AbstractSinkTask task = mockCassandraSinkTask();
+    InstanceState instanceState = task.getInstanceState();
+    when(instanceState.getBatchGrouping()).thenReturn(BatchGrouping.REPLICA_SET);
+    when(instanceState.getMaxNumberOfRecordsInReplicaBatch()).thenReturn(2);
+    CqlSession session = mock(CqlSession.class);
+    Metadata metadata = mock(Metadata.class);
+    when(instanceState.getSession()).thenReturn(session);
+    when(session.getMetadata()).thenReturn(metadata);
+    when(metadata.getTokenMap()).thenReturn(Optional.of(tokenMap));
+
+    BoundStatementProcessor statementProcessor = new BoundStatementProcessor(task, null, null, 32);
+    Map<String, Map<Object, StatementGroup>> statementGroups = new HashMap<>();
+
+    StatementGroup group1 =
+        statementProcessor.categorizeStatement(
+            statementGroups, replicaRecordAndStatement(keyspace, key1));
+    assertThat(group1.isFull()).isFalse();
+    StatementGroup group2 =
+        statementProcessor.categorizeStatement(
+            statementGroups, replicaRecordAndStatement(keyspace, key2));
+    StatementGroup group3 =
+        statementProcessor.categorizeStatement(
+            statementGroups, replicaRecordAndStatement(keyspace, key3));
+
+    // Different partitions, same replicas: same group, capped by maxNumberOfRecordsInReplicaBatch.
+    assertThat(group2).isSameAs(group1);
+    assertThat(group1.size()).isEqualTo(2);
+    assertThat(group1.isFull()).isTrue();
+    assertThat(group3).isNotSameAs(group1);
+    assertThat(statementGroups.get("mytopic.ks.mytable"))
+        .containsOnlyKeys(ImmutableSet.of(node1), ImmutableSet.of(node2));
+  }
+
+  private static RecordAndStatement replicaRecordAndStatement(
+      CqlIdentifier keyspace, ByteBuffer routingKey) {
+    BoundStatement statement = mock(BoundStatement.class);
+    when(statement.getRoutingKey()).thenReturn(routingKey);
+    when(statement.getRoutingKeyspace()).thenReturn(keyspace);
+    AbstractSinkRecord record = new SinkRecordImpl("mytopic", 0, null, null, null, "value", 1234L);
+    return new RecordAndStatement(record, "ks.mytable", statement);
+  }
+
+  @Test
+  void should_split_batches_on_data_size() throws InterruptedException {
+    // given
+    AbstractSinkTask task = mockCassandraSinkTask();
+    when(task.getInstanceState().getMaxBatchSizeInBytes()).thenReturn(100);
+    BlockingQueue<RecordAndStatement> recordAndStatements = new LinkedBlockingQueue<>();
+    BoundStatementProcessor statementProcessor =
+        new BoundStatementProcessor(task, recordAndStatements, new ArrayList<>(), 32);
+    List<List<RecordAndStatement>> actualBatches = new ArrayList<>();
+    Consumer<List<RecordAndStatement>> mockConsumer = e -> actualBatches.add(new ArrayList<>(e));
+
+    // when
+    for (int dataSize : new int[] {40, 40, 40, 150, 10}) {
+      recordAndStatements.add(sizedRecordAndStatement(dataSize));
+    }
+    statementProcessor.stop();
+    statementProcessor.runLoop(mockConsumer);
+
+    // then
+    // the third statement would overflow the first batch; the oversized one is sent alone
+    assertThat(actualBatches.stream().mapToInt(List::size)).containsExactly(2, 1, 1, 1);
+    assertThat(actualBatches.get(2).get(0).getStatement().getBytesUnsafe(0).remaining())
+        .isEqualTo(150);
+  }
+
+  @Test
+  void should_only_split_failed_batches_that_can_be_retried() {
+    List<RecordAndStatement> inserts =
+        ImmutableList.of(typedRecordAndStatement(DataTypes.TEXT), typedRecordAndStatement(null));
+    List<RecordAndStatement> counterUpdates =
+        ImmutableList.of(
+            typedRecordAndStatement(DataTypes.COUNTER), typedRecordAndStatement(DataTypes.COUNTER));
+    Throwable timeout = new CompletionException(new DriverTimeoutException("timeout"));
+    Throwable invalid = new InvalidQueryException(mock(Node.class), "invalid");
+
+    assertThat(BoundStatementProcessor.canSplit(inserts, timeout)).isTrue();
+    assertThat(BoundStatementProcessor.canSplit(inserts, invalid)).isTrue();
+    assertThat(BoundStatementProcessor.canSplit(inserts.subList(0, 1), invalid)).isFalse();
+    assertThat(BoundStatementProcessor.canSplit(inserts, new NoNodeAvailableException())).isFalse();
+    // Counter updates may have been applied: only retried if they were rejected.
+    assertThat(BoundStatementProcessor.canSplit(counterUpdates, timeout)).isFalse();
+    assertThat(BoundStatementProcessor.canSplit(counterUpdates, invalid)).isTrue();
+    // Statements not flagged as idempotent, such as those of user-provided queries, may have been
+    // applied too.
+    when(inserts.get(1).getStatement().isIdempotent()).thenReturn(null);
+    assertThat(BoundStatementProcessor.canSplit(inserts, timeout)).isFalse();
+    assertThat(BoundStatementProcessor.canSplit(inserts, invalid)).isTrue();
+    when(inserts.get(1).getStatement().isIdempotent()).thenReturn(false);
+    assertThat(BoundStatementProcessor.canSplit(inserts, timeout)).isFalse();
+  }
+
+  @Test
+  void should_only_spill_statements_that_can_be_replayed() {
+    List<RecordAndStatement> inserts =
+        ImmutableList.of(typedRecordAndStatement(DataTypes.TEXT), typedRecordAndStatement(null));
+    Throwable overloaded = new CompletionException(new NoNodeAvailableException());
+    Throwable invalid = new InvalidQueryException(mock(Node.class), "invalid");
+
+    assertThat(BoundStatementProcessor.canSpill(inserts, overloaded)).isTrue();
+    assertThat(BoundStatementProcessor.canSpill(inserts, invalid)).isFalse();
+    assertThat(
+            BoundStatementProcessor.canSpill(
+                ImmutableList.of(typedRecordAndStatement(DataTypes.COUNTER)), overloaded))
+        .isFalse();
+    // Such as the statements of user-provided queries.
+    when(inserts.get(1).getStatement().isIdempotent()).thenReturn(null);
+    assertThat(BoundStatementProcessor.canSpill(inserts, overloaded)).isFalse();
+  }
+
+  @Test
+  void should_not_overwrite_newer_writes_when_replaying_spilled_statements()
+      throws IOException, InterruptedException {
+    AbstractSinkTask task = mockCassandraSinkTask();
+    InstanceState instanceState = task.getInstanceState();
+    SpillLog spillLog = TestSpillLog.open(spillDirectory);
+    when(instanceState.getSpillLog()).thenReturn(spillLog);
+    AdmissionController admissionController = mock(AdmissionController.class);
+    when(admissionController.acquireAsync(any(), any()))
+        .thenAnswer(i -> CompletableFuture.completedFuture(mock(AdmissionController.Permit.class)));
+    when(instanceState.getAdmissionController()).thenReturn(admissionController);
+    when(instanceState.getCompletionExecutor()).thenReturn(Runnable::run);
+    when(instanceState.getBatchSizeHistogram(any(), any())).thenReturn(mock(Histogram.class));
+    when(instanceState.getBatchSizeInBytesHistogram(any(), any()))
+        .thenReturn(mock(Histogram.class));
+    // A single row, last write wins; the driver stamps statements without a timestamp as sent.
+    long[] row = {-1, Long.MIN_VALUE};
+    CompletableFuture<AsyncResultSet> firstWrite = new CompletableFuture<>();
+    AtomicInteger writes = new AtomicInteger();
+    CqlSession session = mock(CqlSession.class);
+    when(instanceState.getSession()).thenReturn(session);
+    when(session.executeAsync(any(Statement.class)))
+        .thenAnswer(
+            i -> {
+              if (writes.getAndIncrement() == 0) {
+                // Times out once the cluster is unreachable.
+                return firstWrite;
+              }
+              BoundStatement statement = i.getArgument(0);
+              long timestamp = statement.getQueryTimestamp();
+              if (timestamp == Statement.NO_DEFAULT_TIMESTAMP) {
+                timestamp = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+              }
+              if (timestamp >= row[1]) {
+                row[0] = statement.getBytesUnsafe(1).get(0);
+                row[1] = timestamp;
+              }
+              return CompletableFuture.completedFuture(mock(AsyncResultSet.class));
+            });
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    when(session.prepare(INSERT)).thenReturn(prepared);
+    when(prepared.boundStatementBuilder()).thenAnswer(i -> replayBuilder());
+
+    BlockingQueue<RecordAndStatement> recordAndStatements = new LinkedBlockingQueue<>();
+    BoundStatementProcessor statementProcessor =
+        new BoundStatementProcessor(task, recordAndStatements, new ArrayList<>(), 32);
+    recordAndStatements.add(valueRecordAndStatement(1));
+    Future<?> unused = statementProcessor.flush();
+    recordAndStatements.add(valueRecordAndStatement(2));
+    statementProcessor.stop();
+    statementProcessor.call();
+    assertThat(row[0]).isEqualTo(2);
+
+    // The first write fails late, and is spilled.
+    firstWrite.completeExceptionally(new NoNodeAvailableException());
+    assertThat(spillLog.getSizeInBytes()).isPositive();
+    TestSpillLog.drain(spillLog, session);
+
+    assertThat(writes).hasValue(3);
+    assertThat(row[0]).isEqualTo(2);
+  }
+
+  /** An insert of the given value in the same row. */
+  private static RecordAndStatement valueRecordAndStatement(int value) {
+    AbstractSinkRecord record = new SinkRecordImpl("mytopic", 0, null, null, null, value, value);
+    return new RecordAndStatement(
+        record, "ks.mytable", valueStatement(value, Statement.NO_DEFAULT_TIMESTAMP));
+  }
+
+  private static BoundStatement valueStatement(int value, long timestamp) {
+    ColumnDefinitions variables = mock(ColumnDefinitions.class);
+    when(variables.iterator()).thenAnswer(i -> Collections.emptyIterator());
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    when(prepared.getQuery()).thenReturn(INSERT);
+    when(prepared.getVariableDefinitions()).thenReturn(variables);
+    BoundStatement statement = mock(BoundStatement.class);
+    when(statement.getPreparedStatement()).thenReturn(prepared);
+    when(statement.getRoutingKey()).thenReturn(ByteBuffer.wrap(new byte[] {1}));
+    when(statement.isIdempotent()).thenReturn(true);
+    when(statement.size()).thenReturn(2);
+    when(statement.isSet(anyInt())).thenReturn(true);
+    when(statement.getBytesUnsafe(0)).thenReturn(ByteBuffer.wrap(new byte[] {1}));
+    when(statement.getBytesUnsafe(1)).thenReturn(ByteBuffer.wrap(new byte[] {(byte) value}));
+    when(statement.getQueryTimestamp()).thenReturn(timestamp);
+    when(statement.setQueryTimestamp(anyLong()))
+        .thenAnswer(i -> valueStatement(value, i.getArgument(0)));
+    return statement;
+  }
+
+  /** A builder of the statements replayed by the spill drainer. */
+  private static BoundStatementBuilder replayBuilder() {
+    BoundStatementBuilder builder = mock(BoundStatementBuilder.class, RETURNS_SELF);
+    ByteBuffer[] value = new ByteBuffer[1];
+    long[] timestamp = {Statement.NO_DEFAULT_TIMESTAMP};
+    when(builder.setBytesUnsafe(anyInt(), any()))
+        .thenAnswer(
+            i -> {
+              if ((Integer) i.getArgument(0) == 1) {
+                value[0] = i.getArgument(1);
+              }
+              return builder;
+            });
+    when(builder.setQueryTimestamp(anyLong()))
+        .thenAnswer(
+            i -> {
+              timestamp[0] = i.getArgument(0);
+              return builder;
+            });
+    when(builder.build()).thenAnswer(i -> valueStatement(value[0].get(0), timestamp[0]));
+    return builder;
+  }
+
+  /** A statement with a variable of the given type, or none if it is null. */
+  private static RecordAndStatement typedRecordAndStatement(DataType type) {
+    List<ColumnDefinition> definitions = new ArrayList<>();
+    if (type != null) {
+      ColumnDefinition definition = mock(ColumnDefinition.class);
+      when(definition.getType()).thenReturn(type);
+      definitions.add(definition);
+    }
+    ColumnDefinitions variables = mock(ColumnDefinitions.class);
+    when(variables.iterator()).thenAnswer(i -> definitions.iterator());
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    when(prepared.getVariableDefinitions()).thenReturn(variables);
+    BoundStatement statement = mock(BoundStatement.class);
+    when(statement.getPreparedStatement()).thenReturn(prepared);
+    // As flagged by the record mapper.
+    when(statement.isIdempotent()).thenReturn(type == DataTypes.COUNTER ? null : true);
+    AbstractSinkRecord record = new SinkRecordImpl("mytopic", 0, null, null, null, "value", 1234L);
+    return new RecordAndStatement(record, "ks.mytable", statement);
+  }
+
+  private static RecordAndStatement sizedRecordAndStatement(int dataSize) {
+    ColumnDefinitions variables = mock(ColumnDefinitions.class);
+    when(variables.size()).thenReturn(1);
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    when(prepared.getVariableDefinitions()).thenReturn(variables);
+    BoundStatement statement = mock(BoundStatement.class);
+    when(statement.getPreparedStatement()).thenReturn(prepared);
+    when(statement.getBytesUnsafe(0)).thenReturn(ByteBuffer.allocate(dataSize));
+    when(statement.getRoutingKey()).thenReturn(ByteBuffer.wrap(new byte[] {1}));
+    AbstractSinkRecord record = new SinkRecordImpl("mytopic", 0, null, null, null, "value", 1234L);
+    return new RecordAndStatement(record, "ks.mytable", statement);
+  }
+
   @ParameterizedTest(
     name =
         "[{index}] totalNumberOfRecords={0}, maxNumberOfRecordsInBatch={1}, expectedBatchSizes={2}"
@@ -332,6 +644,93 @@ class BoundStatementProcessorTest {
     assertThat(actualBatches.get(1).size()).isEqualTo(1);
   }
 
+  @Test
+  void should_keep_groups_open_until_linger_time_expires() throws InterruptedException {
+    // given
+    BlockingQueue<RecordAndStatement> recordAndStatements = new LinkedBlockingQueue<>();
+    BoundStatementProcessor statementProcessor =
+        new BoundStatementProcessor(
+            mockCassandraSinkTask(), recordAndStatements, ConcurrentHashMap.newKeySet(), 3, 200);
+    List<List<RecordAndStatement>> actualBatches = new CopyOnWriteArrayList<>();
+    CountDownLatch batchSent = new CountDownLatch(1);
+    Consumer<List<RecordAndStatement>> mockConsumer =
+        e -> {
+          actualBatches.add(new ArrayList<>(e));
+          batchSent.countDown();
+        };
+    Thread consumer =
+        new Thread(
+            () -> {
+              try {
+                statementProcessor.runLoop(mockConsumer);
+              } catch (InterruptedException ignored) {
+              }
+            });
+    consumer.start();
+
+    // when
+    // two puts, each one with a single record for the same partition
+    addSinkRecord(
+        recordAndStatements, "topic1", "ks", "tb", 1, "v1", ByteBuffer.wrap(new byte[] {1}));
+    addSinkRecord(
+        recordAndStatements, "topic1", "ks", "tb", 2, "v2", ByteBuffer.wrap(new byte[] {1}));
+
+    // then
+    // the group is neither full nor expired yet
+    Thread.sleep(50);
+    assertThat(actualBatches).isEmpty();
+    // once expired, both statements go out in the same batch
+    assertThat(batchSent.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(actualBatches.get(0)).hasSize(2);
+
+    statementProcessor.stop();
+    consumer.join();
+    assertThat(actualBatches).hasSize(1);
+  }
+
+  @Test
+  void should_execute_lingering_groups_on_flush() throws Exception {
+    // given
+    BlockingQueue<RecordAndStatement> recordAndStatements = new LinkedBlockingQueue<>();
+    BoundStatementProcessor statementProcessor =
+        new BoundStatementProcessor(
+            mockCassandraSinkTask(),
+            recordAndStatements,
+            ConcurrentHashMap.newKeySet(),
+            3,
+            Duration.ofHours(1).toMillis());
+    List<List<RecordAndStatement>> actualBatches = new CopyOnWriteArrayList<>();
+    Consumer<List<RecordAndStatement>> mockConsumer = e -> actualBatches.add(new ArrayList<>(e));
+    Thread consumer =
+        new Thread(
+            () -> {
+              try {
+                statementProcessor.runLoop(mockConsumer);
+              } catch (InterruptedException ignored) {
+              }
+            });
+    consumer.start();
+
+    // when
+    for (int i = 0; i < 4; i++) {
+      addSinkRecord(
+          recordAndStatements, "topic1", "ks", "tb", i, "v", ByteBuffer.wrap(new byte[] {1}));
+    }
+    addSinkRecord(
+        recordAndStatements, "topic1", "ks", "tb", 5, "v", ByteBuffer.wrap(new byte[] {2}));
+    statementProcessor.flush().get(5, TimeUnit.SECONDS);
+
+    // then
+    // one full batch, then the remainder of both partitions on flush
+    assertThat(actualBatches).hasSize(3);
+    assertThat(actualBatches.get(0)).hasSize(3);
+    assertThat(actualBatches.stream().mapToInt(List::size).sum()).isEqualTo(5);
+
+    statementProcessor.stop();
+    consumer.join();
+    assertThat(actualBatches).hasSize(3);
+  }
+
   private void addSinkRecord(
       BlockingQueue<RecordAndStatement> recordAndStatements,
       String topic,
@@ -0,0 +1,116 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class FailureReporterTest {
+
+  @Test
+  void should_deliver_every_failure_without_concurrent_deliveries() throws Exception {
+    AtomicBoolean delivering = new AtomicBoolean();
+    AtomicBoolean overlapped = new AtomicBoolean();
+    AtomicInteger delivered = new AtomicInteger();
+    FailureReporter reporter =
+        new FailureReporter(
+            batch -> {
+              if (!delivering.compareAndSet(false, true)) {
+                overlapped.set(true);
+              }
+              delivered.addAndGet(batch.size());
+              delivering.set(false);
+            });
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<CompletableFuture<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(
+            CompletableFuture.runAsync(
+                () -> {
+                  for (int j = 0; j < 1000; j++) {
+                    reporter.report(Collections.singletonList(newFailure()));
+                  }
+                },
+                executor));
+      }
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(overlapped).isFalse();
+    assertThat(delivered).hasValue(8000);
+  }
+
+  @Test
+  void should_keep_handler_error_and_keep_delivering() {
+    List<RecordFailure> delivered = new ArrayList<>();
+    AtomicBoolean fail = new AtomicBoolean(true);
+    FailureReporter reporter =
+        new FailureReporter(
+            batch -> {
+              if (fail.getAndSet(false)) {
+                throw new IllegalStateException("boom");
+              }
+              delivered.addAll(batch);
+            });
+    // Not thrown to the delivering thread, but to the next caller of rethrowError(), once.
+    reporter.report(Collections.singletonList(newFailure()));
+    RecordFailure failure = newFailure();
+    reporter.report(Collections.singletonList(failure));
+    assertThat(delivered).containsExactly(failure);
+    assertThatThrownBy(reporter::rethrowError)
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessage("boom");
+    reporter.rethrowError();
+  }
+
+  @Test
+  void should_handle_every_failure_of_batch_despite_handler_error() {
+    AbstractSinkTask task = mock(AbstractSinkTask.class, CALLS_REAL_METHODS);
+    RecordFailure first = newFailure();
+    RecordFailure second = newFailure();
+    doThrow(new IllegalStateException("boom"))
+        .when(task)
+        .handleFailure(eq(first.getRecord()), any(), any(), any());
+
+    assertThatThrownBy(() -> task.handleFailures(ImmutableList.of(first, second)))
+        .isInstanceOf(IllegalStateException.class);
+    verify(task).handleFailure(eq(second.getRecord()), any(), any(), any());
+  }
+
+  private static RecordFailure newFailure() {
+    return new RecordFailure(
+        mock(AbstractSinkRecord.class), new RuntimeException(), null, () -> {});
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.QueueWaitStrategy;
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class MpscRingBufferTest {
+
+  @Test
+  void should_round_capacity_up_to_power_of_two() {
+    assertThat(new MpscRingBuffer<>(1, QueueWaitStrategy.PARK).capacity()).isEqualTo(1);
+    assertThat(new MpscRingBuffer<>(5, QueueWaitStrategy.PARK).capacity()).isEqualTo(8);
+    assertThat(new MpscRingBuffer<>(8, QueueWaitStrategy.PARK).capacity()).isEqualTo(8);
+    assertThatThrownBy(() -> new MpscRingBuffer<>(0, QueueWaitStrategy.PARK))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void should_be_bounded_and_fifo() throws InterruptedException {
+    MpscRingBuffer<Integer> queue = new MpscRingBuffer<>(4, QueueWaitStrategy.PARK);
+    for (int i = 0; i < 4; i++) {
+      assertThat(queue.offer(i)).isTrue();
+    }
+    assertThat(queue.offer(4)).isFalse();
+    assertThat(queue.offer(4, 10, TimeUnit.MILLISECONDS)).isFalse();
+    assertThat(queue.size()).isEqualTo(4);
+    assertThat(queue.remainingCapacity()).isEqualTo(0);
+
+    assertThat(queue.peek()).isEqualTo(0);
+    assertThat(queue.poll()).isEqualTo(0);
+    assertThat(queue.offer(4)).isTrue();
+    List<Integer> drained = new ArrayList<>();
+    assertThat(queue.drainTo(drained)).isEqualTo(4);
+    assertThat(drained).containsExactly(1, 2, 3, 4);
+    assertThat(queue.poll()).isNull();
+    assertThat(queue.poll(10, TimeUnit.MILLISECONDS)).isNull();
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  @ParameterizedTest
+  @EnumSource(QueueWaitStrategy.class)
+  void should_deliver_all_elements_from_concurrent_producers(QueueWaitStrategy waitStrategy)
+      throws InterruptedException {
+    int producers = 4;
+    int perProducer = 10_000;
+    MpscRingBuffer<long[]> queue = new MpscRingBuffer<>(16, waitStrategy);
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      long producer = p;
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  for (long i = 0; i < perProducer; i++) {
+                    queue.put(new long[] {producer, i});
+                  }
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+
+    // Each producer's elements must come out in the order they were put.
+    long[] next = new long[producers];
+    for (int i = 0; i < producers * perProducer; i++) {
+      long[] element = queue.poll(10, TimeUnit.SECONDS);
+      assertThat(element).isNotNull();
+      assertThat(element[1]).isEqualTo(next[(int) element[0]]++);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(next).containsOnly(perProducer);
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  @Test
+  void should_iterate_and_remove_elements_in_place() {
+    MpscRingBuffer<Integer> queue = new MpscRingBuffer<>(4, QueueWaitStrategy.PARK);
+    // Wrap around the end of the ring.
+    queue.offer(-1);
+    queue.offer(-2);
+    queue.poll();
+    queue.poll();
+    for (int i = 0; i < 4; i++) {
+      queue.offer(i);
+    }
+    assertThat(queue).containsExactly(0, 1, 2, 3);
+    assertThat(queue.toString()).isEqualTo("[0, 1, 2, 3]");
+    assertThat(queue.contains(2)).isTrue();
+    assertThat(queue.containsAll(ImmutableList.of(1, 3))).isTrue();
+
+    assertThat(queue.remove((Object) 0)).isTrue();
+    assertThat(queue.remove((Object) 2)).isTrue();
+    assertThat(queue.remove((Object) 2)).isFalse();
+    assertThat(queue).containsExactly(1, 3);
+    assertThat(queue.peek()).isEqualTo(1);
+    assertThat(queue.poll()).isEqualTo(1);
+    assertThat(queue.poll()).isEqualTo(3);
+    assertThat(queue.poll()).isNull();
+
+    // Consumed elements are not removed.
+    queue.offer(4);
+    Iterator<Integer> iterator = queue.iterator();
+    assertThat(iterator.next()).isEqualTo(4);
+    queue.poll();
+    iterator.remove();
+    assertThat(iterator.hasNext()).isFalse();
+    assertThatThrownBy(iterator::remove).isInstanceOf(IllegalStateException.class);
+    assertThat(queue.offer(5)).isTrue();
+    assertThat(queue.poll()).isEqualTo(5);
+  }
+}
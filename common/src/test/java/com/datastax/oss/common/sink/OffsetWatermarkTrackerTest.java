@@ -0,0 +1,205 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableMap;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class OffsetWatermarkTrackerTest {
+
+  @Test
+  void should_advance_watermark_only_when_lower_offsets_are_processed() {
+    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker();
+    AbstractSinkRecord record1 = record("mytopic", 0, 10);
+    AbstractSinkRecord record2 = record("mytopic", 0, 11);
+    AbstractSinkRecord record3 = record("mytopic", 1, 5);
+    tracker.register(record1, 1);
+    tracker.register(record2, 1);
+    tracker.register(record3, 1);
+    assertThat(tracker.getWatermarks()).isEmpty();
+
+    tracker.processed(record2);
+    tracker.processed(record3);
+    assertThat(tracker.getWatermarks())
+        .isEqualTo(ImmutableMap.of("mytopic", ImmutableMap.of(1, 5L)));
+
+    tracker.processed(record1);
+    assertThat(tracker.getWatermarks())
+        .isEqualTo(ImmutableMap.of("mytopic", ImmutableMap.of(0, 11L, 1, 5L)));
+  }
+
+  @Test
+  void should_wait_for_every_statement_of_a_record() {
+    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker();
+    AbstractSinkRecord record = record("mytopic", 0, 10);
+    tracker.register(record, 2);
+
+    tracker.processed(record);
+    assertThat(tracker.getWatermarks()).isEmpty();
+    tracker.processed(record);
+    assertThat(tracker.getWatermarks())
+        .isEqualTo(ImmutableMap.of("mytopic", ImmutableMap.of(0, 10L)));
+  }
+
+  @Test
+  void should_ignore_records_without_offset() {
+    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker();
+    AbstractSinkRecord record = new SinkRecordImpl("mytopic", 0, null, null, null, null, 1);
+    AbstractSinkRecord untracked = mockRecord("mytopic");
+    tracker.register(untracked, 1);
+    tracker.processed(untracked);
+    assertThat(tracker.getWatermarks()).isEmpty();
+
+    tracker.register(record, 1);
+    tracker.processed(record);
+    assertThat(tracker.getWatermarks())
+        .isEqualTo(ImmutableMap.of("mytopic", ImmutableMap.of(0, 1L)));
+  }
+
+  @Test
+  void should_await_only_requested_offsets() throws InterruptedException {
+    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker();
+    AbstractSinkRecord record1 = record("mytopic", 0, 10);
+    AbstractSinkRecord record2 = record("mytopic", 0, 11);
+    tracker.register(record1, 1);
+    tracker.register(record2, 1);
+
+    CountDownLatch done = new CountDownLatch(1);
+    Thread waiter =
+        new Thread(
+            () -> {
+              try {
+                tracker.awaitProcessed(
+                    Collections.singletonMap("mytopic", Collections.singletonMap(0, 10L)));
+                done.countDown();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    waiter.start();
+    assertThat(done.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    // record2 is still pending, but it is above the requested offset.
+    tracker.processed(record1);
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+    waiter.join();
+  }
+
+  @Test
+  void should_not_advance_past_failed_records_nor_wait_for_them() throws InterruptedException {
+    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker();
+    AbstractSinkRecord record1 = record("mytopic", 0, 10);
+    AbstractSinkRecord record2 = record("mytopic", 0, 11);
+    AbstractSinkRecord record3 = record("mytopic", 0, 12);
+    tracker.register(record1, 1);
+    tracker.register(record2, 1);
+    tracker.register(record3, 1);
+
+    tracker.processed(record1);
+    tracker.failed(record2);
+    tracker.processed(record3);
+    assertThat(tracker.getWatermarks())
+        .isEqualTo(ImmutableMap.of("mytopic", ImmutableMap.of(0, 10L)));
+    // Returns right away.
+    tracker.awaitProcessed(Collections.singletonMap("mytopic", Collections.singletonMap(0, 12L)));
+
+    // The failed record is delivered again.
+    tracker.register(record2, 1);
+    tracker.processed(record2);
+    assertThat(tracker.getWatermarks())
+        .isEqualTo(ImmutableMap.of("mytopic", ImmutableMap.of(0, 11L)));
+  }
+
+  @Test
+  void should_drop_removed_partitions_and_release_waiters() throws InterruptedException {
+    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker();
+    AbstractSinkRecord record1 = record("mytopic", 0, 10);
+    AbstractSinkRecord record2 = record("mytopic", 1, 5);
+    AbstractSinkRecord record3 = record("mytopic", 1, 6);
+    tracker.register(record1, 1);
+    tracker.register(record2, 1);
+    tracker.register(record3, 1);
+    tracker.processed(record1);
+    tracker.processed(record2);
+
+    CountDownLatch done = new CountDownLatch(1);
+    Thread waiter =
+        new Thread(
+            () -> {
+              try {
+                tracker.awaitProcessed(
+                    Collections.singletonMap("mytopic", Collections.singletonMap(1, 6L)));
+                done.countDown();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    waiter.start();
+    assertThat(done.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    tracker.remove(Collections.singletonMap("mytopic", Collections.singletonList(1)));
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+    waiter.join();
+    assertThat(tracker.getWatermarks())
+        .isEqualTo(ImmutableMap.of("mytopic", ImmutableMap.of(0, 10L)));
+
+    // Late completions of removed partitions are ignored.
+    tracker.processed(record3);
+    assertThat(tracker.getWatermarks())
+        .isEqualTo(ImmutableMap.of("mytopic", ImmutableMap.of(0, 10L)));
+
+    tracker.clear();
+    assertThat(tracker.getWatermarks()).isEmpty();
+  }
+
+  private static AbstractSinkRecord record(String topic, int partition, long offset) {
+    return new SinkRecordImpl(topic, partition, null, null, null, null, offset);
+  }
+
+  private static AbstractSinkRecord mockRecord(String topic) {
+    return new AbstractSinkRecord() {
+      @Override
+      public Iterable<AbstractSinkRecordHeader> headers() {
+        return Collections.emptyList();
+      }
+
+      @Override
+      public Object key() {
+        return null;
+      }
+
+      @Override
+      public Object value() {
+        return null;
+      }
+
+      @Override
+      public Long timestamp() {
+        return null;
+      }
+
+      @Override
+      public String topic() {
+        return topic;
+      }
+    };
+  }
+}
@@ -31,7 +31,9 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatCode;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -40,6 +42,7 @@ import static org.mockito.Mockito.when;
 import com.datastax.oss.common.sink.config.TableConfig;
 import com.datastax.oss.common.sink.record.Record;
 import com.datastax.oss.common.sink.record.RecordMetadata;
+import com.datastax.oss.common.sink.record.Utf8TextNode;
 import com.datastax.oss.common.sink.util.SinkUtil;
 import com.datastax.oss.driver.api.core.CqlIdentifier;
 import com.datastax.oss.driver.api.core.cql.BoundStatement;
@@ -68,11 +71,13 @@ import com.datastax.oss.dsbulk.codecs.text.string.StringToIntegerCodec;
 import com.datastax.oss.dsbulk.codecs.text.string.StringToLongCodec;
 import com.datastax.oss.protocol.internal.response.result.ColumnSpec;
 import com.datastax.oss.protocol.internal.response.result.RawType;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.NullNode;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import io.netty.util.concurrent.FastThreadLocal;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
@@ -124,7 +129,7 @@ class RecordMapperTest {
   private BoundStatement deleteBoundStatement;
 
   private ColumnDefinitions insertUpdateVariables;
-  private ArgumentCaptor<CqlIdentifier> variableCaptor;
+  private ArgumentCaptor<Integer> variableCaptor;
   private ArgumentCaptor<ByteBuffer> valueCaptor;
   private RecordMetadata recordMetadata;
   private final FastThreadLocal<NumberFormat> formatter =
@@ -139,7 +144,7 @@ class RecordMapperTest {
 
   @BeforeEach
   void setUp() {
-    variableCaptor = ArgumentCaptor.forClass(CqlIdentifier.class);
+    variableCaptor = ArgumentCaptor.forClass(Integer.class);
     valueCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
     recordMetadata =
@@ -172,6 +177,9 @@ class RecordMapperTest {
     when(insertUpdateVariables.get(C1)).thenReturn(c1Def);
     when(insertUpdateVariables.get(C2)).thenReturn(c2Def);
     when(insertUpdateVariables.get(C3)).thenReturn(c3Def);
+    when(insertUpdateVariables.allIndicesOf(C1)).thenReturn(ImmutableList.of(0));
+    when(insertUpdateVariables.allIndicesOf(C2)).thenReturn(ImmutableList.of(1));
+    when(insertUpdateVariables.allIndicesOf(C3)).thenReturn(ImmutableList.of(2));
 
     when(c1Def.getType()).thenReturn(DataTypes.INT);
     when(c2Def.getType()).thenReturn(DataTypes.BIGINT);
@@ -189,6 +197,7 @@ class RecordMapperTest {
     when(record.getFieldValue(F1)).thenReturn("42");
     when(record.getFieldValue(F2)).thenReturn("4242");
     when(record.getFieldValue(F3)).thenReturn("foo");
+    when(record.indexOf(anyString())).thenReturn(-1);
     when(record.getTimestamp()).thenReturn(null);
 
     when(mapping.fieldToColumns(F1_IDENT)).thenReturn(Collections.singleton(C1));
@@ -237,6 +246,9 @@ class RecordMapperTest {
     when(deleteVariables.contains(C3)).thenReturn(true);
     when(deleteVariables.get(C1)).thenReturn(c1Def);
     when(deleteVariables.get(C3)).thenReturn(c3Def);
+    // Same indices as in the insert statement, to check bound variables the same way.
+    when(deleteVariables.allIndicesOf(C1)).thenReturn(ImmutableList.of(0));
+    when(deleteVariables.allIndicesOf(C3)).thenReturn(ImmutableList.of(2));
 
     tableConfigNullToUnsetTrue = mock(TableConfig.class);
     when(tableConfigNullToUnsetTrue.isNullToUnset()).thenReturn(true);
@@ -275,6 +287,176 @@ class RecordMapperTest {
     assertParameter(0, C1, TypeCodecs.INT.encode(42, V4));
     assertParameter(1, C2, TypeCodecs.BIGINT.encode(4242L, V4));
     assertParameter(2, C3, TypeCodecs.TEXT.encode("foo", V4));
+    verify(insertUpdateBoundStatementBuilder).setIdempotence(true);
+  }
+
+  @Test
+  void should_not_flag_counter_updates_as_idempotent() {
+    when(record.fields()).thenReturn(set(F1, F2, F3));
+    ColumnDefinition counterDef = mock(ColumnDefinition.class);
+    when(counterDef.getType()).thenReturn(DataTypes.COUNTER);
+    when(counterDef.getName()).thenReturn(C2);
+    when(insertUpdateVariables.get(1)).thenReturn(counterDef);
+    RecordMapper mapper =
+        new RecordMapper(
+            insertUpdateStatement,
+            null,
+            primaryKeys,
+            mapping,
+            true,
+            false,
+            tableConfigNullToUnsetTrue);
+    mapper.map(recordMetadata, record);
+    verify(insertUpdateBoundStatementBuilder, never()).setIdempotence(true);
+  }
+
+  @Test
+  void should_resolve_bindings_once_per_record_shape() {
+    when(record.fields()).thenReturn(set(F1, F2, F3));
+    RecordMapper mapper =
+        new RecordMapper(
+            insertUpdateStatement,
+            null,
+            primaryKeys,
+            mapping,
+            true,
+            true,
+            tableConfigNullToUnsetTrue);
+    mapper.map(recordMetadata, record);
+    mapper.map(recordMetadata, record);
+    verify(mapping).fieldToColumns(F1_IDENT);
+    verify(mapping).codec(C1, DataTypes.INT, GenericType.STRING);
+    verify(insertUpdateBoundStatementBuilder, times(6))
+        .setBytesUnsafe(variableCaptor.capture(), valueCaptor.capture());
+    assertParameter(3, C1, TypeCodecs.INT.encode(42, V4));
+
+    // A field of another type needs another codec.
+    when(mapping.codec(C1, DataTypes.INT, GenericType.INTEGER)).thenReturn(TypeCodecs.INT);
+    when(record.getFieldValue(F1)).thenReturn(43);
+    mapper.map(
+        new TestRecordMetadata(
+            ImmutableMap.of(
+                F1, GenericType.INTEGER, F2, GenericType.STRING, F3, GenericType.STRING)),
+        record);
+    verify(mapping).fieldToColumns(F1_IDENT);
+    verify(mapping).codec(C1, DataTypes.INT, GenericType.INTEGER);
+    verify(insertUpdateBoundStatementBuilder).setBytesUnsafe(0, TypeCodecs.INT.encode(43, V4));
+
+    // Another set of fields is resolved again.
+    when(record.fields()).thenReturn(set(F1, F3));
+    when(record.getFieldValue(F1)).thenReturn("42");
+    mapper.map(recordMetadata, record);
+    verify(mapping, times(2)).fieldToColumns(F1_IDENT);
+  }
+
+  @Test
+  void should_look_shared_record_shapes_up_by_identity() {
+    when(record.fields()).thenReturn(set(F1, F2, F3));
+    when(record.shape()).thenReturn(new Object());
+    RecordMapper mapper =
+        new RecordMapper(
+            insertUpdateStatement,
+            null,
+            primaryKeys,
+            mapping,
+            true,
+            true,
+            tableConfigNullToUnsetTrue);
+    mapper.map(recordMetadata, record);
+    mapper.map(recordMetadata, record);
+    verify(mapping).fieldToColumns(F1_IDENT);
+    verify(record).fields();
+
+    // Another shape is resolved again, even with the same fields.
+    when(record.shape()).thenReturn(new Object());
+    mapper.map(recordMetadata, record);
+    verify(mapping, times(2)).fieldToColumns(F1_IDENT);
+  }
+
+  @Test
+  void should_read_fields_of_shared_record_shapes_by_index() {
+    when(record.fields()).thenReturn(set(F1, F2, F3));
+    when(record.shape()).thenReturn(new Object());
+    when(record.indexOf(F1)).thenReturn(0);
+    when(record.indexOf(F2)).thenReturn(1);
+    when(record.indexOf(F3)).thenReturn(2);
+    when(record.getFieldValue(0)).thenReturn("42");
+    when(record.getFieldValue(1)).thenReturn("4242");
+    when(record.getFieldValue(2)).thenReturn("foo");
+    RecordMapper mapper =
+        new RecordMapper(
+            insertUpdateStatement,
+            deleteStatement,
+            primaryKeys,
+            mapping,
+            true,
+            false,
+            tableConfigNullToUnsetTrue);
+    mapper.map(recordMetadata, record);
+    mapper.map(recordMetadata, record);
+    verify(record, never()).getFieldValue(anyString());
+    // Read to tell inserts from deletes, then to bind it.
+    verify(record, times(4)).getFieldValue(1);
+    verify(insertUpdateBoundStatementBuilder, times(6))
+        .setBytesUnsafe(variableCaptor.capture(), valueCaptor.capture());
+    assertParameter(0, C1, TypeCodecs.INT.encode(42, V4));
+    assertParameter(1, C2, TypeCodecs.BIGINT.encode(4242L, V4));
+    assertParameter(2, C3, TypeCodecs.TEXT.encode("foo", V4));
+  }
+
+  @Test
+  void should_validate_fields_once_per_record_shape() {
+    when(record.fields()).thenReturn(set(F1, F2, F3));
+    RecordMapper mapper =
+        new RecordMapper(
+            insertUpdateStatement,
+            null,
+            primaryKeys,
+            mapping,
+            true,
+            false,
+            tableConfigNullToUnsetTrue);
+    mapper.map(recordMetadata, record);
+    mapper.map(recordMetadata, record);
+    verify(mapping).columnToField(C1);
+
+    // Failures are not remembered: records missing fields are always rejected.
+    when(record.fields()).thenReturn(set(F1, F2));
+    for (int i = 0; i < 2; i++) {
+      assertThatThrownBy(() -> mapper.map(recordMetadata, record))
+          .isInstanceOf(ConfigException.class)
+          .hasMessageContaining("Required field 'field3'");
+    }
+  }
+
+  @Test
+  void should_bind_utf8_bytes_of_json_strings_to_text_columns() {
+    when(record.fields()).thenReturn(set(F1, F2, F3));
+    ByteBuffer utf8Bytes = ByteBuffer.wrap("foo".getBytes(StandardCharsets.UTF_8));
+    when(record.getFieldValue(F3)).thenReturn(new Utf8TextNode("foo", utf8Bytes));
+    RecordMapper mapper =
+        new RecordMapper(
+            insertUpdateStatement,
+            deleteStatement,
+            primaryKeys,
+            mapping,
+            true,
+            false,
+            tableConfigNullToUnsetTrue);
+    mapper.map(
+        new TestRecordMetadata(
+            ImmutableMap.of(
+                F1,
+                GenericType.STRING,
+                F2,
+                GenericType.STRING,
+                F3,
+                GenericType.of(JsonNode.class))),
+        record);
+    verify(mapping, never()).codec(C3, DataTypes.TEXT, GenericType.of(JsonNode.class));
+    verify(insertUpdateBoundStatementBuilder, times(3))
+        .setBytesUnsafe(variableCaptor.capture(), valueCaptor.capture());
+    assertParameter(2, C3, TypeCodecs.TEXT.encode("foo", V4));
   }
 
   @Test
@@ -374,7 +556,7 @@ class RecordMapperTest {
     Statement result = mapper.map(recordMetadata, record);
     assertThat(result).isSameAs(insertUpdateBoundStatement);
     verify(insertUpdateBoundStatementBuilder)
-        .setBytesUnsafe(C1, TypeCodecs.BIGINT.encode(-123456L, V4));
+        .setBytesUnsafe(0, TypeCodecs.BIGINT.encode(-123456L, V4));
   }
 
   @Test
@@ -410,7 +592,7 @@ class RecordMapperTest {
             tableConfigNullToUnsetTrue);
     Statement result = mapper.map(recordMetadata, record);
     assertThat(result).isSameAs(insertUpdateBoundStatement);
-    verify(insertUpdateBoundStatementBuilder).setBytesUnsafe(C1, TypeCodecs.BIGINT.encode(-1L, V4));
+    verify(insertUpdateBoundStatementBuilder).setBytesUnsafe(0, TypeCodecs.BIGINT.encode(-1L, V4));
   }
 
   @Test
@@ -446,7 +628,7 @@ class RecordMapperTest {
     assertThat(result).isSameAs(insertUpdateBoundStatement);
     verify(insertUpdateBoundStatementBuilder)
         .setBytesUnsafe(
-            C1, TypeCodecs.BIGINT.encode(Instant.parse("2017-01-02T00:00:02Z").toEpochMilli(), V4));
+            0, TypeCodecs.BIGINT.encode(Instant.parse("2017-01-02T00:00:02Z").toEpochMilli(), V4));
   }
 
   @Test
@@ -484,7 +666,7 @@ class RecordMapperTest {
     assertThat(result).isSameAs(insertUpdateBoundStatement);
     verify(insertUpdateBoundStatementBuilder)
         .setBytesUnsafe(
-            C1, TypeCodecs.BIGINT.encode(Instant.parse("2017-11-23T12:34:56Z").toEpochMilli(), V4));
+            0, TypeCodecs.BIGINT.encode(Instant.parse("2017-11-23T12:34:56Z").toEpochMilli(), V4));
   }
 
   @Test
@@ -599,6 +781,8 @@ class RecordMapperTest {
             insertUpdateStatement, null, primaryKeys, mapping, true, false, tableConfigCustomQuery);
 
     assertThatCode(() -> mapper.map(recordMetadata, record)).doesNotThrowAnyException();
+    // A user-provided query may not be idempotent.
+    verify(insertUpdateBoundStatementBuilder, never()).setIdempotence(true);
   }
 
   @Test
@@ -1157,7 +1341,8 @@ class RecordMapperTest {
 
   private void assertParameter(
       int index, CqlIdentifier expectedVariable, ByteBuffer expectedValue) {
-    assertThat(variableCaptor.getAllValues().get(index)).isEqualTo(expectedVariable);
+    assertThat(variableCaptor.getAllValues().get(index))
+        .isEqualTo(insertUpdateVariables.allIndicesOf(expectedVariable).get(0));
     assertThat(valueCaptor.getAllValues().get(index)).isEqualTo(expectedValue);
   }
 
@@ -0,0 +1,84 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.datastax.oss.common.sink.record.RecordAndStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.jupiter.api.Test;
+
+class ShardedBoundStatementProcessorTest {
+
+  @Test
+  void should_route_statements_with_same_routing_key_to_same_shard() {
+    List<BlockingQueue<RecordAndStatement>> queues = newQueues(4);
+    ShardedBoundStatementProcessor processor =
+        new ShardedBoundStatementProcessor(queues, queue -> mock(BoundStatementProcessor.class));
+    List<RecordAndStatement> statements = new ArrayList<>();
+    for (int i = 0; i < 64; i++) {
+      // Two statements per routing key, in order.
+      statements.add(recordAndStatement(i / 2, i));
+    }
+    statements.forEach(processor::offer);
+
+    for (int i = 0; i < statements.size(); i += 2) {
+      BlockingQueue<RecordAndStatement> queue = queues.get(processor.shardOf(statements.get(i)));
+      assertThat(processor.shardOf(statements.get(i + 1)))
+          .isEqualTo(processor.shardOf(statements.get(i)));
+      List<RecordAndStatement> drained = new ArrayList<>(queue);
+      assertThat(drained.indexOf(statements.get(i)))
+          .isLessThan(drained.indexOf(statements.get(i + 1)));
+    }
+    // Routing keys should be spread over more than one shard.
+    assertThat(queues.stream().filter(q -> !q.isEmpty()).count()).isGreaterThan(1);
+    assertThat(queues.stream().mapToInt(BlockingQueue::size).sum()).isEqualTo(64);
+  }
+
+  @Test
+  void should_use_single_shard() {
+    List<BlockingQueue<RecordAndStatement>> queues = newQueues(1);
+    ShardedBoundStatementProcessor processor =
+        new ShardedBoundStatementProcessor(queues, queue -> mock(BoundStatementProcessor.class));
+    for (int i = 0; i < 10; i++) {
+      processor.offer(recordAndStatement(i, i));
+    }
+    assertThat(queues).hasSize(1);
+    assertThat(queues.get(0)).hasSize(10);
+  }
+
+  private static List<BlockingQueue<RecordAndStatement>> newQueues(int shards) {
+    List<BlockingQueue<RecordAndStatement>> queues = new ArrayList<>();
+    for (int i = 0; i < shards; i++) {
+      queues.add(new LinkedBlockingQueue<>());
+    }
+    return queues;
+  }
+
+  private static RecordAndStatement recordAndStatement(int key, long offset) {
+    BoundStatement statement = mock(BoundStatement.class);
+    when(statement.getRoutingKey()).thenReturn(ByteBuffer.wrap(new byte[] {(byte) key}));
+    AbstractSinkRecord record = new SinkRecordImpl("mytopic", 0, null, null, null, key, offset);
+    return new RecordAndStatement(record, "ks.mytable", statement);
+  }
+}
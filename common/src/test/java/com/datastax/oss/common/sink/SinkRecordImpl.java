@@ -22,6 +22,8 @@ import java.util.List;
 public class SinkRecordImpl implements AbstractSinkRecord {
 
   private String topic;
+  private int partition;
+  private long offset;
   private Object key;
   private Object value;
   private List<AbstractSinkRecordHeader> headers = new ArrayList();
@@ -35,6 +37,8 @@ public class SinkRecordImpl implements AbstractSinkRecord {
       Object value,
       long kafkaOffset) {
     this.topic = topic;
+    this.partition = partition;
+    this.offset = kafkaOffset;
     this.key = key;
     this.value = value;
   }
@@ -63,4 +67,14 @@ public class SinkRecordImpl implements AbstractSinkRecord {
   public String topic() {
     return topic;
   }
+
+  @Override
+  public Integer partition() {
+    return partition;
+  }
+
+  @Override
+  public Long offset() {
+    return offset;
+  }
 }
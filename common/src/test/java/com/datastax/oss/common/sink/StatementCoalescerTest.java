@@ -0,0 +1,310 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.datastax.oss.common.sink.BoundStatementProcessor.StatementGroup;
+import com.datastax.oss.common.sink.record.RecordAndStatement;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinition;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.type.DataTypes;
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class StatementCoalescerTest {
+  private static final CqlIdentifier PK = CqlIdentifier.fromInternal("pk");
+  private static final String INSERT = "INSERT INTO ks.t(pk,v1,v2) VALUES (:pk,:v1,:v2)";
+  private static final String DELETE = "DELETE FROM ks.t WHERE pk = :pk";
+  private static final List<String> INSERT_VARIABLES = ImmutableList.of("pk", "v1", "v2");
+  private static final List<String> DELETE_VARIABLES = ImmutableList.of("pk");
+
+  private static final String UPDATE_COUNTER = "UPDATE ks.c SET c = c + :c WHERE pk = :pk";
+
+  // Deletes are told apart by the statement the record mapper binds them from.
+  private static final PreparedStatement DELETE_PREPARED = prepared(DELETE, DELETE_VARIABLES);
+
+  private final StatementCoalescer coalescer =
+      new StatementCoalescer(ImmutableList.of(PK), false, DELETE_PREPARED);
+
+  @Test
+  void should_keep_latest_write_to_same_row() {
+    StatementGroup group = newGroup();
+    RecordAndStatement first = insert(1, 10L, "v1", "v2");
+    RecordAndStatement second = insert(2, 20L, "v1", "v2");
+    RecordAndStatement third = insert(1, 30L, "v1", "v2");
+    group.add(first, 10);
+    group.add(second, 10);
+    group.add(third, 20);
+
+    assertThat(group.size()).isEqualTo(2);
+    assertThat(group.getSizeInBytes()).isEqualTo(30);
+    assertThat(group.getStatements().get(0).getStatement()).isSameAs(third.getStatement());
+    assertThat(group.getStatements().get(1)).isSameAs(second);
+    // Every record is still reported.
+    assertThat(StatementCoalescer.sources(group.getStatements()))
+        .containsExactlyInAnyOrder(first, second, third);
+  }
+
+  @Test
+  void should_account_for_net_size_of_replacing_writes() {
+    StatementGroup group =
+        new StatementGroup(32, 25, null, coalescer, RecordAndStatement::getDataSize);
+    assertThat(group.add(insert(1, 10L, "v1", "v2"), 10)).isTrue();
+    assertThat(group.add(insert(2, 20L, "v1", "v2"), 10)).isTrue();
+    // Replaces the first one: it fits even though the group could not take it as a new statement.
+    assertThat(group.add(insert(1, 30L, "v1", "v2"), 12)).isTrue();
+    assertThat(group.size()).isEqualTo(2);
+    assertThat(group.getSizeInBytes()).isEqualTo(22);
+    // A new row does not fit.
+    RecordAndStatement third = insert(3, 40L, "v1", "v2");
+    assertThat(group.add(third, 10)).isFalse();
+    assertThat(group.getStatements()).doesNotContain(third);
+    assertThat(group.getSizeInBytes()).isEqualTo(22);
+  }
+
+  @Test
+  void should_not_replace_writes_with_larger_ones_past_max_size() {
+    StatementGroup group =
+        new StatementGroup(32, 25, null, coalescer, RecordAndStatement::getDataSize);
+    RecordAndStatement first = insert(1, 10L, "v1", "v2");
+    assertThat(group.add(first, 10)).isTrue();
+    assertThat(group.add(insert(2, 20L, "v1", "v2"), 10)).isTrue();
+    // Replacing the first one would make the batch too large: it must be sent first.
+    assertThat(group.add(insert(1, 30L, "v1", "v2"), 20)).isFalse();
+    assertThat(group.getStatements()).contains(first);
+    assertThat(group.getSizeInBytes()).isEqualTo(20);
+  }
+
+  @Test
+  void should_size_summed_counter_updates() {
+    StatementGroup group = new StatementGroup(32, 25, null, counterCoalescer(), s -> 12);
+    assertThat(group.add(counterUpdate(1, 3L), 10)).isTrue();
+    assertThat(group.add(counterUpdate(2, 5L), 10)).isTrue();
+    // The sum is a new statement, setting the increment the second update of the row left unset.
+    assertThat(group.add(counterUpdate(1, null), 8)).isTrue();
+    assertThat(group.size()).isEqualTo(2);
+    assertThat(group.getSizeInBytes()).isEqualTo(22);
+
+    StatementGroup tight = new StatementGroup(32, 25, null, counterCoalescer(), s -> 16);
+    tight.add(counterUpdate(1, 3L), 10);
+    tight.add(counterUpdate(2, 5L), 10);
+    assertThat(tight.add(counterUpdate(1, null), 8)).isFalse();
+    assertThat(tight.getSizeInBytes()).isEqualTo(20);
+  }
+
+  @Test
+  void should_keep_newest_timestamp() {
+    StatementGroup group = newGroup();
+    RecordAndStatement newest = insert(1, 30L, "v1", "v2");
+    RecordAndStatement late = insert(1, 10L, "v1", "v2");
+    group.add(newest, 10);
+    group.add(late, 20);
+
+    assertThat(group.size()).isEqualTo(1);
+    assertThat(group.getStatements().get(0).getStatement()).isSameAs(newest.getStatement());
+    assertThat(group.getSizeInBytes()).isEqualTo(10);
+    assertThat(StatementCoalescer.sources(group.getStatements()))
+        .containsExactlyInAnyOrder(newest, late);
+  }
+
+  @Test
+  void should_not_drop_columns_not_overwritten() {
+    StatementGroup group = newGroup();
+    // v2 is unset in the second insert: the first one still has to write it.
+    group.add(insert(1, 10L, "v1", "v2"), 0);
+    group.add(insert(1, 20L, "v1"), 0);
+    assertThat(group.size()).isEqualTo(2);
+    // But the third one overwrites everything the second one writes.
+    group.add(insert(1, 30L, "v1"), 0);
+    assertThat(group.size()).isEqualTo(2);
+  }
+
+  @Test
+  void should_resolve_delete_insert_sequences_to_final_operation() {
+    StatementGroup group = newGroup();
+    RecordAndStatement insert = insert(1, 10L, "v1", "v2");
+    RecordAndStatement delete = delete(1, 20L);
+    group.add(insert, 0);
+    group.add(delete, 0);
+    assertThat(group.size()).isEqualTo(1);
+    assertThat(group.getStatements().get(0).getStatement()).isSameAs(delete.getStatement());
+
+    // An insert writing every column replaces the delete.
+    RecordAndStatement fullInsert = insert(1, 30L, "pk", "v1", "v2");
+    group.add(fullInsert, 0);
+    assertThat(group.size()).isEqualTo(1);
+    assertThat(group.getStatements().get(0).getStatement()).isSameAs(fullInsert.getStatement());
+    assertThat(StatementCoalescer.sources(group.getStatements()))
+        .containsExactlyInAnyOrder(insert, delete, fullInsert);
+
+    // A partial insert doesn't: the rest of the row must still be deleted.
+    StatementGroup other = newGroup();
+    other.add(delete(2, 10L), 0);
+    other.add(insert(2, 20L, "v1"), 0);
+    assertThat(other.size()).isEqualTo(2);
+  }
+
+  @Test
+  void should_use_arrival_order_without_timestamps() {
+    StatementGroup group = newGroup();
+    RecordAndStatement first = insert(1, null, "v1", "v2");
+    RecordAndStatement second = insert(1, null, "v1", "v2");
+    group.add(first, 0);
+    group.add(second, 0);
+    assertThat(group.size()).isEqualTo(1);
+    assertThat(group.getStatements().get(0).getStatement()).isSameAs(second.getStatement());
+  }
+
+  @Test
+  void should_return_same_list_when_nothing_coalesced() {
+    List<RecordAndStatement> statements = ImmutableList.of(insert(1, 10L, "v1"));
+    assertThat(StatementCoalescer.sources(statements)).isSameAs(statements);
+  }
+
+  @Test
+  void should_sum_counter_increments() {
+    StatementGroup group =
+        new StatementGroup(32, 0, null, counterCoalescer(), RecordAndStatement::getDataSize);
+    RecordAndStatement first = counterUpdate(1, 3L);
+    RecordAndStatement second = counterUpdate(2, 5L);
+    RecordAndStatement third = counterUpdate(1, 4L);
+    RecordAndStatement fourth = counterUpdate(1, null);
+    group.add(first, 0);
+    group.add(second, 0);
+    group.add(third, 0);
+    group.add(fourth, 0);
+
+    assertThat(group.size()).isEqualTo(2);
+    assertThat(group.getStatements().get(0).getStatement().getLong(0)).isEqualTo(7L);
+    assertThat(group.getStatements().get(0).getRecord()).isSameAs(fourth.getRecord());
+    assertThat(group.getStatements().get(1)).isSameAs(second);
+    assertThat(StatementCoalescer.sources(group.getStatements()))
+        .containsExactlyInAnyOrder(first, second, third, fourth);
+  }
+
+  @Test
+  void should_not_sum_null_counter_increments() {
+    StatementCoalescer counterCoalescer = counterCoalescer();
+    RecordAndStatement valid = counterUpdate(1, 3L);
+    RecordAndStatement invalid = counterUpdate(1, 0L);
+    when(invalid.getStatement().isNull(0)).thenReturn(true);
+    assertThat(counterCoalescer.coalesce(valid, invalid)).isNull();
+    assertThat(counterCoalescer.coalesce(invalid, valid)).isNull();
+  }
+
+  private static StatementCoalescer counterCoalescer() {
+    return new StatementCoalescer(ImmutableList.of(PK), true, null);
+  }
+
+  private static RecordAndStatement counterUpdate(int pk, Long increment) {
+    AbstractSinkRecord record = mock(AbstractSinkRecord.class);
+    when(record.topic()).thenReturn("mytopic");
+    return new RecordAndStatement(record, "ks.c", counterStatement(pk, increment));
+  }
+
+  /** An update of counter {@code c}, unset if the increment is null. */
+  private static BoundStatement counterStatement(int pk, Long increment) {
+    ColumnDefinitions definitions = mock(ColumnDefinitions.class);
+    when(definitions.size()).thenReturn(2);
+    when(definitions.contains(any(CqlIdentifier.class))).thenReturn(true);
+    ColumnDefinition c = mock(ColumnDefinition.class);
+    when(c.getType()).thenReturn(DataTypes.COUNTER);
+    ColumnDefinition pkDefinition = mock(ColumnDefinition.class);
+    when(pkDefinition.getType()).thenReturn(DataTypes.INT);
+    when(definitions.get(0)).thenReturn(c);
+    when(definitions.get(1)).thenReturn(pkDefinition);
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    when(prepared.getQuery()).thenReturn(UPDATE_COUNTER);
+    when(prepared.getVariableDefinitions()).thenReturn(definitions);
+
+    BoundStatement statement = mock(BoundStatement.class);
+    when(statement.getPreparedStatement()).thenReturn(prepared);
+    when(statement.isSet(PK)).thenReturn(true);
+    when(statement.getBytesUnsafe(PK)).thenReturn(ByteBuffer.wrap(new byte[] {(byte) pk}));
+    when(statement.isSet(0)).thenReturn(increment != null);
+    when(statement.getLong(0)).thenReturn(increment == null ? 0 : increment);
+    when(statement.setLong(eq(0), anyLong()))
+        .thenAnswer(i -> counterStatement(pk, i.getArgument(1)));
+    return statement;
+  }
+
+  private StatementGroup newGroup() {
+    return new StatementGroup(32, 0, null, coalescer, RecordAndStatement::getDataSize);
+  }
+
+  private static RecordAndStatement insert(int pk, Long timestamp, String... setColumns) {
+    return recordAndStatement(
+        prepared(INSERT, INSERT_VARIABLES), INSERT_VARIABLES, pk, timestamp, setColumns);
+  }
+
+  private static RecordAndStatement delete(int pk, Long timestamp) {
+    return recordAndStatement(DELETE_PREPARED, DELETE_VARIABLES, pk, timestamp);
+  }
+
+  private static PreparedStatement prepared(String query, List<String> variables) {
+    ColumnDefinitions definitions = mock(ColumnDefinitions.class);
+    when(definitions.size()).thenReturn(variables.size());
+    when(definitions.contains(any(CqlIdentifier.class)))
+        .thenAnswer(i -> variables.contains(((CqlIdentifier) i.getArgument(0)).asInternal()));
+    for (int i = 0; i < variables.size(); i++) {
+      ColumnDefinition definition = mock(ColumnDefinition.class);
+      when(definition.getName()).thenReturn(CqlIdentifier.fromInternal(variables.get(i)));
+      when(definitions.get(i)).thenReturn(definition);
+    }
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    when(prepared.getQuery()).thenReturn(query);
+    when(prepared.getVariableDefinitions()).thenReturn(definitions);
+    return prepared;
+  }
+
+  private static RecordAndStatement recordAndStatement(
+      PreparedStatement prepared,
+      List<String> variables,
+      int pk,
+      Long timestamp,
+      String... setColumns) {
+    Set<String> set = new HashSet<>(Arrays.asList(setColumns));
+    set.add("pk");
+
+    BoundStatement statement = mock(BoundStatement.class);
+    when(statement.getPreparedStatement()).thenReturn(prepared);
+    when(statement.isSet(any(CqlIdentifier.class)))
+        .thenAnswer(i -> set.contains(((CqlIdentifier) i.getArgument(0)).asInternal()));
+    when(statement.isSet(anyInt()))
+        .thenAnswer(i -> set.contains(variables.get((Integer) i.getArgument(0))));
+    when(statement.getBytesUnsafe(PK)).thenReturn(ByteBuffer.wrap(new byte[] {(byte) pk}));
+
+    AbstractSinkRecord record = mock(AbstractSinkRecord.class);
+    when(record.topic()).thenReturn("mytopic");
+    when(record.timestamp()).thenReturn(timestamp);
+    return new RecordAndStatement(record, "ks.t", statement);
+  }
+}
@@ -16,10 +16,20 @@
 package com.datastax.oss.common.sink.config;
 
 import static com.datastax.oss.common.sink.config.AuthenticatorConfig.KEYTAB_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.ADAPTIVE_BATCHING_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.AGGREGATE_COUNTERS_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.ASYNC_PUT_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.BATCHING_SHARDS_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.BATCH_GROUPING_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.BATCH_LINGER_MS_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.COALESCE_WRITES_OPT;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.COMPRESSION_DEFAULT;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.COMPRESSION_DRIVER_SETTING;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.COMPRESSION_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.CONCURRENCY_LIMITER_OPT;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.CONCURRENT_REQUESTS_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.CONCURRENT_REQUESTS_PER_NODE_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.CONCURRENT_REQUESTS_PER_TABLE_OPT;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.CONNECTION_POOL_LOCAL_SIZE;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.CONNECTION_POOL_LOCAL_SIZE_DEFAULT;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.CONNECTION_POOL_LOCAL_SIZE_DRIVER_SETTING;
@@ -28,6 +38,9 @@ import static com.datastax.oss.common.sink.config.CassandraSinkConfig.DC_OPT;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.IGNORE_ERRORS;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.JAVA_DRIVER_SETTINGS_LIST_TYPE;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.LOCAL_DC_DRIVER_SETTING;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.MAX_BATCH_SIZE_IN_BYTES_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.MAX_CONCURRENCY_LIMIT_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.MAX_NUMBER_OF_RECORDS_IN_REPLICA_BATCH_OPT;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.METRICS_HIGHEST_LATENCY_DEFAULT;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.METRICS_HIGHEST_LATENCY_DRIVER_SETTINGS;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.METRICS_HIGHEST_LATENCY_OPT;
@@ -39,6 +52,8 @@ import static com.datastax.oss.common.sink.config.CassandraSinkConfig.QUERY_EXEC
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.SECURE_CONNECT_BUNDLE_DRIVER_SETTING;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.SECURE_CONNECT_BUNDLE_OPT;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.SSL_OPT_PREFIX;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.STATEMENT_QUEUE_CAPACITY_OPT;
+import static com.datastax.oss.common.sink.config.CassandraSinkConfig.STATEMENT_QUEUE_WAIT_STRATEGY_OPT;
 import static com.datastax.oss.common.sink.config.CassandraSinkConfig.withDriverPrefix;
 import static com.datastax.oss.common.sink.config.SslConfig.KEYSTORE_PATH_OPT;
 import static com.datastax.oss.common.sink.config.SslConfig.OPENSSL_KEY_CERT_CHAIN_OPT;
@@ -57,7 +72,10 @@ import static org.assertj.core.api.Assertions.assertThatCode;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import com.datastax.oss.common.sink.ConfigException;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.BatchGrouping;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.ConcurrencyLimiterPolicy;
 import com.datastax.oss.common.sink.config.CassandraSinkConfig.IgnoreErrorsPolicy;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.QueueWaitStrategy;
 import com.datastax.oss.common.sink.util.SinkUtil;
 import com.datastax.oss.driver.api.core.CqlIdentifier;
 import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableList;
@@ -186,6 +204,62 @@ class CassandraSinkConfigTest {
         .hasMessageContaining("Value must be at least 1");
   }
 
+  @Test
+  void should_error_invalid_batchLingerMs() {
+    Map<String, String> props =
+        Maps.newHashMap(
+            ImmutableMap.<String, String>builder().put(BATCH_LINGER_MS_OPT, "foo").build());
+    assertThatThrownBy(() -> new CassandraSinkConfig(props))
+        .isInstanceOf(ConfigException.class)
+        .hasMessageContaining("Invalid value foo for configuration batchLingerMs");
+
+    props.put(BATCH_LINGER_MS_OPT, "-1");
+    assertThatThrownBy(() -> new CassandraSinkConfig(props))
+        .isInstanceOf(ConfigException.class)
+        .hasMessageContaining("Value must be at least 0");
+  }
+
+  @Test
+  void should_error_invalid_batchingShards() {
+    Map<String, String> props =
+        Maps.newHashMap(
+            ImmutableMap.<String, String>builder().put(BATCHING_SHARDS_OPT, "foo").build());
+    assertThatThrownBy(() -> new CassandraSinkConfig(props))
+        .isInstanceOf(ConfigException.class)
+        .hasMessageContaining("Invalid value foo for configuration batchingShards");
+
+    props.put(BATCHING_SHARDS_OPT, "0");
+    assertThatThrownBy(() -> new CassandraSinkConfig(props))
+        .isInstanceOf(ConfigException.class)
+        .hasMessageContaining("Value must be at least 1");
+  }
+
+  @Test
+  void should_error_invalid_statementQueueWaitStrategy() {
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder()
+            .put(STATEMENT_QUEUE_WAIT_STRATEGY_OPT, "foo")
+            .build();
+    assertThatThrownBy(() -> new CassandraSinkConfig(props))
+        .isInstanceOf(ConfigException.class)
+        .hasMessageContaining(
+            String.format(
+                "Invalid value foo for configuration %s: String must be one of (case insensitive): SPIN, YIELD, PARK",
+                STATEMENT_QUEUE_WAIT_STRATEGY_OPT));
+  }
+
+  @Test
+  void should_error_invalid_concurrencyLimiter() {
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder().put(CONCURRENCY_LIMITER_OPT, "foo").build();
+    assertThatThrownBy(() -> new CassandraSinkConfig(props))
+        .isInstanceOf(ConfigException.class)
+        .hasMessageContaining(
+            String.format(
+                "Invalid value foo for configuration %s: String must be one of (case insensitive): AIMD, VEGAS, FIXED, GRADIENT",
+                CONCURRENCY_LIMITER_OPT));
+  }
+
   @Test
   void should_error_invalid_compression_type() {
     Map<String, String> props =
@@ -265,6 +339,162 @@ class CassandraSinkConfigTest {
     assertThat(d.getMaxConcurrentRequests()).isEqualTo(129);
   }
 
+  @Test
+  void should_handle_maxBatchSizeInBytes() {
+    assertThat(new CassandraSinkConfig(new HashMap<>()).getMaxBatchSizeInBytes()).isEqualTo(0);
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder().put(MAX_BATCH_SIZE_IN_BYTES_OPT, "51200").build();
+    CassandraSinkConfig d = new CassandraSinkConfig(props);
+    assertThat(d.getMaxBatchSizeInBytes()).isEqualTo(51200);
+
+    Map<String, String> invalidProps =
+        ImmutableMap.<String, String>builder().put(MAX_BATCH_SIZE_IN_BYTES_OPT, "-1").build();
+    assertThatThrownBy(() -> new CassandraSinkConfig(invalidProps))
+        .isInstanceOf(ConfigException.class)
+        .hasMessageContaining("Value must be at least 0");
+  }
+
+  @Test
+  void should_handle_batchLingerMs() {
+    assertThat(new CassandraSinkConfig(new HashMap<>()).getBatchLingerMs()).isEqualTo(0);
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder().put(BATCH_LINGER_MS_OPT, "20").build();
+    CassandraSinkConfig d = new CassandraSinkConfig(props);
+    assertThat(d.getBatchLingerMs()).isEqualTo(20);
+  }
+
+  @Test
+  void should_handle_batchingShards() {
+    assertThat(new CassandraSinkConfig(new HashMap<>()).getBatchingShards()).isEqualTo(1);
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder().put(BATCHING_SHARDS_OPT, "4").build();
+    CassandraSinkConfig d = new CassandraSinkConfig(props);
+    assertThat(d.getBatchingShards()).isEqualTo(4);
+  }
+
+  @Test
+  void should_handle_statementQueue_settings() {
+    CassandraSinkConfig d = new CassandraSinkConfig(new HashMap<>());
+    assertThat(d.getStatementQueueCapacity()).isEqualTo(8192);
+    assertThat(d.getStatementQueueWaitStrategy()).isEqualTo(QueueWaitStrategy.PARK);
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder()
+            .put(STATEMENT_QUEUE_CAPACITY_OPT, "100")
+            .put(STATEMENT_QUEUE_WAIT_STRATEGY_OPT, "yield")
+            .build();
+    d = new CassandraSinkConfig(props);
+    assertThat(d.getStatementQueueCapacity()).isEqualTo(100);
+    assertThat(d.getStatementQueueWaitStrategy()).isEqualTo(QueueWaitStrategy.YIELD);
+  }
+
+  @Test
+  void should_handle_concurrencyLimiter() {
+    CassandraSinkConfig d = new CassandraSinkConfig(new HashMap<>());
+    assertThat(d.getConcurrencyLimiter()).isEqualTo(ConcurrencyLimiterPolicy.FIXED);
+    assertThat(d.getMaxConcurrencyLimit()).isEqualTo(2000);
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder()
+            .put(CONCURRENCY_LIMITER_OPT, "Vegas")
+            .put(MAX_CONCURRENCY_LIMIT_OPT, "1000")
+            .build();
+    d = new CassandraSinkConfig(props);
+    assertThat(d.getConcurrencyLimiter()).isEqualTo(ConcurrencyLimiterPolicy.VEGAS);
+    assertThat(d.getMaxConcurrencyLimit()).isEqualTo(1000);
+  }
+
+  @Test
+  void should_handle_per_table_and_node_concurrent_requests() {
+    CassandraSinkConfig d = new CassandraSinkConfig(new HashMap<>());
+    assertThat(d.getMaxConcurrentRequestsPerTable()).isEqualTo(0);
+    assertThat(d.getMaxConcurrentRequestsPerNode()).isEqualTo(0);
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder()
+            .put(CONCURRENT_REQUESTS_PER_TABLE_OPT, "100")
+            .put(CONCURRENT_REQUESTS_PER_NODE_OPT, "200")
+            .build();
+    d = new CassandraSinkConfig(props);
+    assertThat(d.getMaxConcurrentRequestsPerTable()).isEqualTo(100);
+    assertThat(d.getMaxConcurrentRequestsPerNode()).isEqualTo(200);
+  }
+
+  @Test
+  void should_error_invalid_per_node_concurrent_requests() {
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder().put(CONCURRENT_REQUESTS_PER_NODE_OPT, "-1").build();
+    assertThatThrownBy(() -> new CassandraSinkConfig(props))
+        .isInstanceOf(ConfigException.class)
+        .hasMessageContaining(
+            String.format(
+                "Invalid value -1 for configuration %s: Value must be at least 0",
+                CONCURRENT_REQUESTS_PER_NODE_OPT));
+  }
+
+  @Test
+  void should_handle_coalesceWrites() {
+    assertThat(new CassandraSinkConfig(new HashMap<>()).isCoalesceWrites()).isFalse();
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder().put(COALESCE_WRITES_OPT, "true").build();
+    assertThat(new CassandraSinkConfig(props).isCoalesceWrites()).isTrue();
+  }
+
+  @Test
+  void should_handle_aggregateCounters() {
+    assertThat(new CassandraSinkConfig(new HashMap<>()).isAggregateCounters()).isFalse();
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder().put(AGGREGATE_COUNTERS_OPT, "true").build();
+    assertThat(new CassandraSinkConfig(props).isAggregateCounters()).isTrue();
+  }
+
+  @Test
+  void should_handle_adaptiveBatching() {
+    assertThat(new CassandraSinkConfig(new HashMap<>()).isAdaptiveBatching()).isFalse();
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder().put(ADAPTIVE_BATCHING_OPT, "true").build();
+    CassandraSinkConfig d = new CassandraSinkConfig(props);
+    assertThat(d.isAdaptiveBatching()).isTrue();
+  }
+
+  @Test
+  void should_handle_batchGrouping() {
+    CassandraSinkConfig d = new CassandraSinkConfig(new HashMap<>());
+    assertThat(d.getBatchGrouping()).isEqualTo(BatchGrouping.PARTITION);
+    assertThat(d.getMaxNumberOfRecordsInReplicaBatch()).isEqualTo(8);
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder()
+            .put(BATCH_GROUPING_OPT, "replica_set")
+            .put(MAX_NUMBER_OF_RECORDS_IN_REPLICA_BATCH_OPT, "4")
+            .build();
+    d = new CassandraSinkConfig(props);
+    assertThat(d.getBatchGrouping()).isEqualTo(BatchGrouping.REPLICA_SET);
+    assertThat(d.getMaxNumberOfRecordsInReplicaBatch()).isEqualTo(4);
+
+    Map<String, String> invalidProps =
+        ImmutableMap.<String, String>builder().put(BATCH_GROUPING_OPT, "foo").build();
+    assertThatThrownBy(() -> new CassandraSinkConfig(invalidProps))
+        .isInstanceOf(ConfigException.class)
+        .hasMessageContaining("Invalid value foo for configuration batchGrouping");
+  }
+
+  @Test
+  void should_handle_asyncPut() {
+    assertThat(new CassandraSinkConfig(new HashMap<>()).isAsyncPut()).isFalse();
+
+    Map<String, String> props =
+        ImmutableMap.<String, String>builder().put(ASYNC_PUT_OPT, "true").build();
+    CassandraSinkConfig d = new CassandraSinkConfig(props);
+    assertThat(d.isAsyncPut()).isTrue();
+  }
+
   @Test
   void should_handle_instance_name() {
     Map<String, String> props =
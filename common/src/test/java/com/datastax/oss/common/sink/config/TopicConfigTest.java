@@ -78,6 +78,20 @@ class TopicConfigTest {
     assertThat(tableConfigs[1].getMappingString()).isEqualTo("c2=value.f2");
   }
 
+  @Test
+  void should_collect_mapped_fields_of_all_tables() {
+    Map<String, String> props = new LinkedHashMap<>();
+    props.put(
+        TableConfig.getTableSettingPath("mytopic", "ks", "table1", TableConfig.MAPPING_OPT),
+        "c1=key.k1, c2=value.f1, c3=header.h1, c4=now()");
+    props.put(
+        TableConfig.getTableSettingPath("mytopic", "ks2", "table2", TableConfig.MAPPING_OPT),
+        "c1=key.__self, c2=value.f1, c3=value.f2");
+    TopicConfig config = new TopicConfig("mytopic", props, false);
+    assertThat(config.getMappedKeyFields()).containsOnly("k1", "__self");
+    assertThat(config.getMappedValueFields()).containsOnly("f1", "f2");
+  }
+
   @ParameterizedTest
   @CsvSource({"ANY", "LOCAL_ONE", "ONE"})
   void should_log_info_when_cloud_and_cl_is_not_proper_and_set_LOCAL_QUORUM(
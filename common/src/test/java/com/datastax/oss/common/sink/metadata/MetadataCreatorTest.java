@@ -29,7 +29,10 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import org.junit.jupiter.api.Test;
@@ -64,6 +67,33 @@ class MetadataCreatorTest {
         .isEqualTo(GenericType.INTEGER);
   }
 
+  @Test
+  void shouldShareMetadataOfStructsOfSameSchema() throws IOException {
+    // given
+    AbstractSchema schema =
+        new SchemaImpl(
+            AbstractSchema.Type.STRUCT,
+            Collections.singletonList(new FieldImpl("name", SchemaImpl.STRING_SCHEMA)));
+    AbstractSchema equalSchema =
+        new SchemaImpl(
+            AbstractSchema.Type.STRUCT,
+            Collections.singletonList(new FieldImpl("name", SchemaImpl.STRING_SCHEMA)));
+
+    // when
+    InnerDataAndMetadata first = MetadataCreator.makeMeta(new StructImpl(schema).put("name", "a"));
+    InnerDataAndMetadata second = MetadataCreator.makeMeta(new StructImpl(schema).put("name", "b"));
+    InnerDataAndMetadata other =
+        MetadataCreator.makeMeta(new StructImpl(equalSchema).put("name", "c"));
+
+    // then
+    assertThat(second.getInnerMetadata()).isSameAs(first.getInnerMetadata());
+    assertThat(second.getInnerData().fields()).isSameAs(first.getInnerData().fields());
+    assertThat(second.getInnerData().getFieldValue("name")).isEqualTo("b");
+    // Schemas are compared by identity.
+    assertThat(other.getInnerMetadata()).isNotSameAs(first.getInnerMetadata());
+    assertThat(other.getInnerData().fields()).containsOnly("__self", "name");
+  }
+
   @Test
   void shouldMakeMetadataForJson() throws IOException {
     // given
@@ -99,6 +129,85 @@ class MetadataCreatorTest {
         .isEqualTo(JSON_NODE_GENERIC_TYPE);
   }
 
+  @Test
+  void shouldMakeMetadataForProjectedJson() throws IOException {
+    // given
+    String json = "{\"name\": \"Mike\", \"address\": {\"city\": \"Paris\"}}";
+
+    // when
+    InnerDataAndMetadata innerDataAndMetadata =
+        MetadataCreator.makeMeta(json, Collections.singleton("name"), Collections.emptySet());
+
+    // then
+    assertThat(innerDataAndMetadata.getInnerData().fields())
+        .containsOnly("__self", "name", "address");
+    assertThat(((TextNode) innerDataAndMetadata.getInnerData().getFieldValue("name")).textValue())
+        .isEqualTo("Mike");
+    assertThat(innerDataAndMetadata.getInnerData().getFieldValue("address")).isNull();
+    assertThat(innerDataAndMetadata.getInnerMetadata().getFieldType("name", CQL_TYPE))
+        .isEqualTo(JSON_NODE_GENERIC_TYPE);
+  }
+
+  @Test
+  void shouldMakeMetadataForJsonBytes() throws IOException {
+    // given
+    byte[] json = " {\"name\": \"Mike\"}".getBytes(StandardCharsets.UTF_8);
+
+    // when
+    InnerDataAndMetadata innerDataAndMetadata =
+        MetadataCreator.makeMeta(json, Collections.singleton("name"), Collections.emptySet());
+
+    // then
+    assertThat(innerDataAndMetadata.getInnerData().fields()).containsOnly("__self", "name");
+    assertThat(((JsonNode) innerDataAndMetadata.getInnerData().getFieldValue("name")).textValue())
+        .isEqualTo("Mike");
+    assertThat(innerDataAndMetadata.getInnerMetadata().getFieldType("name", CQL_TYPE))
+        .isEqualTo(JSON_NODE_GENERIC_TYPE);
+    // Still a blob as a whole.
+    assertThat(innerDataAndMetadata.getInnerData().getFieldValue("__self"))
+        .isEqualTo(ByteBuffer.wrap(json));
+    assertThat(innerDataAndMetadata.getInnerMetadata().getFieldType("__self", CQL_TYPE))
+        .isEqualTo(GenericType.BYTE_BUFFER);
+  }
+
+  @Test
+  void shouldTreatBytesAsBlobUnlessJsonFieldsAreRead() throws IOException {
+    byte[] json = "{\"name\": \"Mike\"}".getBytes(StandardCharsets.UTF_8);
+    byte[] invalidJson = "{name: Mike}".getBytes(StandardCharsets.UTF_8);
+    assertBlob(json, MetadataCreator.makeMeta(json));
+    assertBlob(
+        json,
+        MetadataCreator.makeMeta(json, Collections.singleton("__self"), Collections.emptySet()));
+    assertBlob(
+        invalidJson,
+        MetadataCreator.makeMeta(
+            invalidJson, Collections.singleton("name"), Collections.emptySet()));
+  }
+
+  private static void assertBlob(byte[] bytes, InnerDataAndMetadata innerDataAndMetadata) {
+    assertThat(innerDataAndMetadata.getInnerData().fields()).containsOnly("__self");
+    assertThat(innerDataAndMetadata.getInnerData().getFieldValue("__self"))
+        .isEqualTo(ByteBuffer.wrap(bytes));
+    assertThat(innerDataAndMetadata.getInnerMetadata().getFieldType("__self", CQL_TYPE))
+        .isEqualTo(GenericType.BYTE_BUFFER);
+  }
+
+  @Test
+  void shouldTreatStringLiterallyIfItIsIncorrectProjectedJSON() throws IOException {
+    // given
+    String incorrectJson = "{name: Mike}";
+
+    // when
+    InnerDataAndMetadata innerDataAndMetadata =
+        MetadataCreator.makeMeta(
+            incorrectJson, Collections.singleton("name"), Collections.emptySet());
+
+    // then
+    assertThat(innerDataAndMetadata.getInnerData().getFieldValue("name")).isEqualTo(incorrectJson);
+    assertThat(innerDataAndMetadata.getInnerMetadata().getFieldType("name", CQL_TYPE))
+        .isEqualTo(GenericType.STRING);
+  }
+
   @Test
   void shouldTreatStringLiterallyIfItIsIncorrectJSON() throws IOException {
     // given
@@ -124,11 +233,11 @@ class MetadataCreatorTest {
     InnerDataAndMetadata innerDataAndMetadata = MetadataCreator.makeMeta(fields);
 
     // then
-    assertThat(((TextNode) innerDataAndMetadata.getInnerData().getFieldValue("f_1")).textValue())
-        .isEqualTo("v_1");
+    // Strings are read as is.
+    assertThat(innerDataAndMetadata.getInnerData().getFieldValue("f_1")).isEqualTo("v_1");
     assertThat(innerDataAndMetadata.getInnerMetadata()).isNotNull();
     assertThat(innerDataAndMetadata.getInnerMetadata().getFieldType("f_1", CQL_TYPE))
-        .isEqualTo(JSON_NODE_GENERIC_TYPE);
+        .isEqualTo(GenericType.STRING);
   }
 
   @Test
@@ -95,6 +95,25 @@ class MetricsJmxReporterTest {
         .isEqualTo("domain:connector=instance-one,level1=first,level2=second,name=value");
   }
 
+  @Test
+  void should_create_admission_metrics() {
+    // given
+    String tableMetric = MetricNamesCreator.createTablePermitsHeldMetricName("ks.t");
+    String nodeMetric = MetricNamesCreator.createNodePermitsHeldMetricName("127_0_0_1:9042");
+
+    // when
+    ObjectName tableName = MetricsJmxReporter.getObjectName("instance-one", "domain", tableMetric);
+    ObjectName nodeName = MetricsJmxReporter.getObjectName("instance-one", "domain", nodeMetric);
+
+    // then
+    assertThat(tableName.getCanonicalName())
+        .isEqualTo(
+            "domain:connector=instance-one,level1=admission,level2=table,level3=\"ks.t\",name=permitsHeld");
+    assertThat(nodeName.getCanonicalName())
+        .isEqualTo(
+            "domain:connector=instance-one,level1=admission,level2=node,level3=\"127_0_0_1:9042\",name=permitsHeld");
+  }
+
   @Test
   void should_quote_illegal_characters_from_final_metric_name() {
     // given
@@ -122,6 +141,19 @@ class MetricsJmxReporterTest {
             "failedRecordCount"),
         Arguments.of(
             (Function<TableConfig, String>) MetricNamesCreator::createRecordCountMetricName,
-            "recordCount"));
+            "recordCount"),
+        Arguments.of(
+            (Function<TableConfig, String>) MetricNamesCreator::createSplitBatchCountMetricName,
+            "splitBatchCount"),
+        Arguments.of(
+            (Function<TableConfig, String>)
+                MetricNamesCreator::createRecoveredRecordCountMetricName,
+            "recoveredRecordCount"),
+        Arguments.of(
+            (Function<TableConfig, String>) MetricNamesCreator::createAdaptiveBatchSizeMetricName,
+            "adaptiveBatchSize"),
+        Arguments.of(
+            (Function<TableConfig, String>) MetricNamesCreator::createAdaptiveBatchFanOutMetricName,
+            "adaptiveBatchFanOut"));
   }
 }
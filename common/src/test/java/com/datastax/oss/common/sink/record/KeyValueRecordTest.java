@@ -23,6 +23,7 @@ import com.datastax.oss.common.sink.HeaderImpl;
 import com.datastax.oss.common.sink.SchemaImpl;
 import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableMap;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import org.junit.jupiter.api.BeforeEach;
@@ -55,6 +56,11 @@ class KeyValueRecordTest {
           public Object getFieldValue(String field) {
             return keyFields.get(field);
           }
+
+          @Override
+          public Object shape() {
+            return keyFields;
+          }
         };
 
     value =
@@ -68,6 +74,11 @@ class KeyValueRecordTest {
           public Object getFieldValue(String field) {
             return valueFields.get(field);
           }
+
+          @Override
+          public Object shape() {
+            return valueFields;
+          }
         };
   }
 
@@ -102,6 +113,43 @@ class KeyValueRecordTest {
     assertThat(record.fields()).containsOnly("header.h1", "header.h2");
   }
 
+  @Test
+  void should_share_field_names_of_records_of_same_shape() {
+    KeyValueRecord record = new KeyValueRecord(key, value, null, headers);
+    KeyValueRecord other = new KeyValueRecord(key, value, 42L, headers);
+    assertThat(other.fields()).isSameAs(record.fields());
+    KeyValueRecord withoutHeaders = new KeyValueRecord(key, value, null, null);
+    assertThat(withoutHeaders.fields())
+        .isNotSameAs(record.fields())
+        .containsOnly("key.kf1", "key.kf2", "value.vf1", "value.vf2");
+    assertThat(new KeyValueRecord(key, value, null, null).fields())
+        .isSameAs(withoutHeaders.fields());
+
+    assertThat(other.shape()).isNotNull().isSameAs(record.shape());
+  }
+
+  @Test
+  void should_not_share_field_names_of_keys_without_shape() {
+    Set<String> copy = new HashSet<>(keyFields.keySet());
+    KeyOrValue ownFieldsKey =
+        new KeyOrValue() {
+          @Override
+          public Set<String> fields() {
+            return copy;
+          }
+
+          @Override
+          public Object getFieldValue(String field) {
+            return keyFields.get(field);
+          }
+        };
+    KeyValueRecord record = new KeyValueRecord(ownFieldsKey, value, null, null);
+    KeyValueRecord other = new KeyValueRecord(ownFieldsKey, value, null, null);
+    assertThat(other.fields()).isNotSameAs(record.fields()).isEqualTo(record.fields());
+    assertThat(record.shape()).isNull();
+    assertThat(record.getFieldValue("key.kf2")).isEqualTo("kv2");
+  }
+
   @Test
   void should_get_field_values() {
     KeyValueRecord record = new KeyValueRecord(key, value, null, headers);
@@ -112,6 +160,44 @@ class KeyValueRecordTest {
     assertThat(record.getFieldValue("header.not_exists")).isNull();
   }
 
+  @Test
+  void should_get_field_values_by_index() {
+    Object[] positionalValues = {"kv1", "kv2"};
+    KeyOrValue positionalKey =
+        new KeyOrValue() {
+          @Override
+          public Set<String> fields() {
+            return keyFields.keySet();
+          }
+
+          @Override
+          public Object getFieldValue(String field) {
+            throw new AssertionError("Fields should be read by position");
+          }
+
+          @Override
+          public Object shape() {
+            return positionalValues;
+          }
+
+          @Override
+          public int indexOf(String field) {
+            return field.equals("kf1") ? 0 : 1;
+          }
+
+          @Override
+          public Object getFieldValue(int index) {
+            return positionalValues[index];
+          }
+        };
+    KeyValueRecord record = new KeyValueRecord(positionalKey, value, null, headers);
+    assertThat(record.getFieldValue(record.indexOf("key.kf2"))).isEqualTo("kv2");
+    assertThat(record.getFieldValue("key.kf1")).isEqualTo("kv1");
+    assertThat(record.getFieldValue(record.indexOf("value.vf1"))).isEqualTo("vv1");
+    assertThat(record.getFieldValue(record.indexOf("header.h2"))).isEqualTo("hv2");
+    assertThat(record.indexOf("value.not_exist")).isEqualTo(-1);
+  }
+
   @Test
   void should_throw_if_get_field_value_with_not_known_prefix() {
     KeyValueRecord record = new KeyValueRecord(key, value, null, headers);
@@ -0,0 +1,103 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.record;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.driver.api.core.type.DataTypes;
+import com.datastax.oss.driver.api.core.type.reflect.GenericType;
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableMap;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class MapDataTest {
+  private final ObjectMapper mapper =
+      new ObjectMapper().configure(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS, true);
+
+  @Test
+  void should_read_values_like_json_round_trip() throws IOException {
+    Map<String, Object> map = new HashMap<>();
+    map.put("string", "abc");
+    map.put("null", null);
+    map.put("boolean", true);
+    map.put("byte", (byte) 1);
+    map.put("int", 42);
+    map.put("small_long", 42L);
+    map.put("long", 1234567890123L);
+    map.put("big_integer", new BigInteger("123456789012345678901234567890"));
+    map.put("double", 1.10d);
+    map.put("large_double", 1e20d);
+    map.put("float", 1.5f);
+    map.put("nan", Double.NaN);
+    map.put("decimal", new BigDecimal("1.10"));
+    map.put("integral_decimal", new BigDecimal("5"));
+    map.put("scaled_decimal", new BigDecimal("5E+3"));
+    map.put("list", Arrays.asList("1", 2, 3.5));
+    map.put("map", ImmutableMap.of("sub1", 37, "sub2", 0.5));
+    map.put(
+        "nested",
+        Arrays.asList(
+            ImmutableMap.of("long", 42L, "nan", Float.NaN), Arrays.asList(null, "a", 1e20d)));
+
+    MapData mapData = new MapData(mapper, map);
+    JavaType type = mapper.constructType(new TypeReference<Map<String, JsonNode>>() {}.getType());
+    JsonData jsonData = new JsonData(mapper, type, mapper.writeValueAsString(map));
+
+    assertThat(mapData.fields()).isEqualTo(jsonData.fields());
+    for (String field : map.keySet()) {
+      Object value = mapData.getFieldValue(field);
+      if (field.equals("string")) {
+        assertThat(value).isEqualTo("abc");
+        assertThat(mapData.getFieldType(field, DataTypes.TEXT)).isEqualTo(GenericType.STRING);
+      } else {
+        assertThat(value).as(field).isEqualTo(jsonData.getFieldValue(field));
+        assertThat(value.getClass()).as(field).isEqualTo(jsonData.getFieldValue(field).getClass());
+        assertThat(mapData.getFieldType(field, DataTypes.TEXT))
+            .isEqualTo(GenericType.of(JsonNode.class));
+      }
+    }
+    assertThat(mapper.readTree((String) mapData.getFieldValue(RawData.FIELD_NAME)))
+        .isEqualTo(mapper.readTree((String) jsonData.getFieldValue(RawData.FIELD_NAME)));
+    assertThat(mapData.getFieldValue("absent")).isNull();
+    // Converted once.
+    assertThat(mapData.getFieldValue("nested")).isSameAs(mapData.getFieldValue("nested"));
+  }
+
+  @Test
+  void should_use_string_representation_of_keys() {
+    MapData mapData = new MapData(mapper, ImmutableMap.of(1, "one"));
+    assertThat(mapData.fields()).containsOnly("1", RawData.FIELD_NAME);
+    assertThat(mapData.getFieldValue("1")).isEqualTo("one");
+  }
+
+  @Test
+  void should_not_report_field_names_twice() {
+    MapData mapData = new MapData(mapper, ImmutableMap.of(RawData.FIELD_NAME, "self", "a", 1));
+    assertThat(mapData.fields()).containsOnly("a", RawData.FIELD_NAME).hasSize(2);
+    assertThat(mapData.getFieldValue(RawData.FIELD_NAME))
+        .isEqualTo("{\"__self\":\"self\",\"a\":1}");
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.record;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableMap;
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableSet;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.DecimalNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class ProjectedJsonDataTest {
+  private final ObjectMapper mapper =
+      new ObjectMapper().configure(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS, true);
+
+  @Test
+  void should_only_parse_projected_fields() throws IOException {
+    String json =
+        "{\"f1\": 42, \"skipped\": {\"a\": [1, 2, {\"b\": null}]}, "
+            + "\"f2\": {\"sub1\": 37}, \"f3\": null}";
+    ProjectedJsonData jsonData = newJsonData(json, ImmutableSet.of("f1", "f2", "f3", "absent"));
+    // Every field is reported, whether it is parsed or not.
+    assertThat(jsonData.fields()).containsOnly(RawData.FIELD_NAME, "f1", "skipped", "f2", "f3");
+    assertThat(jsonData.getFieldValue("f1")).isEqualTo(new IntNode(42));
+    assertThat(jsonData.getFieldValue("f2"))
+        .isEqualTo(
+            new ObjectNode(
+                mapper.getNodeFactory(),
+                ImmutableMap.<String, JsonNode>of("sub1", new IntNode(37))));
+    assertThat(jsonData.getFieldValue("f3")).isEqualTo(NullNode.getInstance());
+    assertThat(jsonData.getFieldValue("skipped")).isNull();
+    assertThat(jsonData.getFieldValue("absent")).isNull();
+    assertThat(jsonData.getFieldValue(RawData.FIELD_NAME)).isEqualTo(json);
+  }
+
+  @Test
+  void should_parse_empty_json() throws IOException {
+    ProjectedJsonData jsonData = newJsonData("", ImmutableSet.of("f1"));
+    assertThat(jsonData.fields()).containsOnly(RawData.FIELD_NAME);
+    assertThat(jsonData.getFieldValue("f1")).isNull();
+  }
+
+  @Test
+  void should_reject_invalid_json_object() {
+    assertThatThrownBy(() -> newJsonData("{name: Mike}", ImmutableSet.of()))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> newJsonData("{\"f1\": 4", ImmutableSet.of()))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> newJsonData("[1, 2]", ImmutableSet.of()))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void should_decode_floating_point_numbers_as_doubles_for_double_fields() throws IOException {
+    ProjectedJsonData jsonData =
+        new ProjectedJsonData(
+            mapper.reader(),
+            mapper.reader().without(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS),
+            "{\"exact\": 1.10, \"double\": 1.10, \"doubles\": [0.5], \"int\": 2}",
+            ImmutableSet.of("exact", "double", "doubles", "int"),
+            ImmutableSet.of("double", "doubles", "int"));
+    assertThat(jsonData.getFieldValue("exact")).isEqualTo(new DecimalNode(new BigDecimal("1.10")));
+    assertThat(jsonData.getFieldValue("double")).isEqualTo(new DoubleNode(1.1));
+    assertThat(((JsonNode) jsonData.getFieldValue("doubles")).get(0))
+        .isEqualTo(new DoubleNode(0.5));
+    assertThat(jsonData.getFieldValue("int")).isEqualTo(new IntNode(2));
+  }
+
+  @Test
+  void should_parse_utf8_bytes() throws IOException {
+    byte[] json =
+        "{\"plain\": \"h\u00e9llo \u2603\", \"escaped\": \"a\\\"b\", \"int\": 42}"
+            .getBytes(StandardCharsets.UTF_8);
+    // A buffer over part of a larger array.
+    byte[] array = new byte[json.length + 10];
+    System.arraycopy(json, 0, array, 7, json.length);
+    ByteBuffer buffer = ByteBuffer.wrap(array, 7, json.length).slice();
+    ProjectedJsonData jsonData =
+        new ProjectedJsonData(
+            mapper.reader(),
+            mapper.reader(),
+            buffer,
+            ImmutableSet.of("plain", "escaped", "int"),
+            Collections.emptySet());
+    assertThat(jsonData.fields()).containsOnly(RawData.FIELD_NAME, "plain", "escaped", "int");
+    assertThat(jsonData.getFieldValue("plain")).isInstanceOf(Utf8TextNode.class);
+    assertThat(((JsonNode) jsonData.getFieldValue("plain")).textValue())
+        .isEqualTo("h\u00e9llo \u2603");
+    assertThat(((Utf8TextNode) jsonData.getFieldValue("plain")).utf8Bytes())
+        .isEqualTo(ByteBuffer.wrap("h\u00e9llo \u2603".getBytes(StandardCharsets.UTF_8)));
+    assertThat(mapper.writeValueAsString(jsonData.getFieldValue("plain")))
+        .isEqualTo("\"h\u00e9llo \u2603\"");
+    // The bytes of escaped strings are not those of the string.
+    assertThat(jsonData.getFieldValue("escaped"))
+        .isNotInstanceOf(Utf8TextNode.class)
+        .isEqualTo(new TextNode("a\"b"));
+    assertThat(jsonData.getFieldValue("int")).isEqualTo(new IntNode(42));
+    assertThat(jsonData.getFieldValue(RawData.FIELD_NAME)).isSameAs(buffer);
+  }
+
+  @Test
+  void should_reject_unterminated_utf8_string() {
+    byte[] json = "{\"plain\": \"hello".getBytes(StandardCharsets.UTF_8);
+    assertThatThrownBy(
+            () ->
+                new ProjectedJsonData(
+                    mapper.reader(),
+                    mapper.reader(),
+                    ByteBuffer.wrap(json),
+                    ImmutableSet.of("plain"),
+                    Collections.emptySet()))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private ProjectedJsonData newJsonData(String json, Set<String> projection) throws IOException {
+    return new ProjectedJsonData(
+        mapper.reader(), mapper.reader(), json, projection, Collections.emptySet());
+  }
+}
@@ -56,6 +56,40 @@ class StructDataTest {
     assertThat(structData.getFieldValue("bytes")).isEqualTo(ByteBuffer.wrap(bytesArray));
   }
 
+  @Test
+  void should_get_field_value_by_position() {
+    Object[] values = {1234L, false, bytesArray};
+    AbstractStruct positionalStruct =
+        new AbstractStruct() {
+          @Override
+          public Object get(String field) {
+            throw new AssertionError("Fields should be read by position");
+          }
+
+          @Override
+          public Object get(int index) {
+            return values[index];
+          }
+
+          @Override
+          public AbstractSchema schema() {
+            return schema;
+          }
+        };
+    StructData positionalData = new StructData(positionalStruct);
+    assertThat(positionalData.getFieldValue("bigint")).isEqualTo(1234L);
+    assertThat(positionalData.getFieldValue("boolean")).isEqualTo(false);
+    assertThat(positionalData.getFieldValue("bytes")).isEqualTo(ByteBuffer.wrap(bytesArray));
+    assertThat(positionalData.indexOf("boolean")).isEqualTo(1);
+    assertThat(positionalData.indexOf(RawData.FIELD_NAME)).isEqualTo(-1);
+    assertThat(positionalData.getFieldValue(2)).isEqualTo(ByteBuffer.wrap(bytesArray));
+  }
+
+  @Test
+  void should_read_fields_by_name_if_struct_does_not_read_them_by_position() {
+    assertThat(structData.indexOf("boolean")).isEqualTo(-1);
+  }
+
   @Test
   void should_handle_null_struct() {
     StructData empty = new StructData(null);
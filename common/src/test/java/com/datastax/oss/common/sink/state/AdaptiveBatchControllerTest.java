@@ -0,0 +1,133 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import static com.datastax.oss.common.sink.state.AdaptiveBatchController.EXPLORE_INTERVAL;
+import static com.datastax.oss.common.sink.state.AdaptiveBatchController.WINDOW_SIZE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntToLongFunction;
+import org.junit.jupiter.api.Test;
+
+class AdaptiveBatchControllerTest {
+
+  private final AtomicLong nanoTime = new AtomicLong();
+
+  @Test
+  void should_start_at_max_batch_size_and_halve_on_overload() {
+    AdaptiveBatchController controller = newController(32);
+    assertThat(controller.getBatchSize()).isEqualTo(32);
+    assertThat(controller.isFanOut()).isFalse();
+
+    controller.onRequestCompleted(32, new DriverTimeoutException("timeout"));
+    assertThat(controller.getBatchSize()).isEqualTo(16);
+    controller.onRequestCompleted(16, new DriverTimeoutException("timeout"));
+    assertThat(controller.getBatchSize()).isEqualTo(8);
+    for (int i = 0; i < 10; i++) {
+      controller.onRequestCompleted(1, new DriverTimeoutException("timeout"));
+    }
+    assertThat(controller.getBatchSize()).isEqualTo(1);
+  }
+
+  @Test
+  void should_ignore_other_failures() {
+    AdaptiveBatchController controller = newController(32);
+    for (int i = 0; i < WINDOW_SIZE * 2; i++) {
+      controller.onRequestCompleted(32, new IllegalArgumentException("invalid record"));
+    }
+    assertThat(controller.getBatchSize()).isEqualTo(32);
+  }
+
+  @Test
+  void should_only_adjust_at_end_of_window() {
+    AdaptiveBatchController controller = newController(32);
+    // The first completion only starts the clock.
+    for (int i = 0; i < WINDOW_SIZE; i++) {
+      nanoTime.addAndGet(1_000_000);
+      controller.onRequestCompleted(32, null);
+    }
+    assertThat(controller.getBatchSize()).isEqualTo(32);
+    nanoTime.addAndGet(1_000_000);
+    controller.onRequestCompleted(32, null);
+    // Starts by probing smaller batches.
+    assertThat(controller.getBatchSize()).isEqualTo(24);
+  }
+
+  @Test
+  void should_converge_towards_fastest_batch_size() {
+    AdaptiveBatchController controller = newController(64);
+    // Batches are sent one at a time; throughput is highest with batches of 16 records.
+    IntToLongFunction nanosPerRequest = size -> (long) size * (1_000 + 100 * Math.abs(size - 16));
+    for (int w = 0; w < 100; w++) {
+      runWindow(controller, nanosPerRequest);
+    }
+    assertThat(controller.getBatchSize()).isBetween(8, 24);
+  }
+
+  @Test
+  void should_prefer_fan_out_when_faster_and_keep_exploring() {
+    AdaptiveBatchController controller = newController(32);
+    // Batches are slow, single statements are fast.
+    IntToLongFunction nanosPerRequest = size -> size == 1 ? 100 : size * 10_000L;
+    boolean sawFanOut = false;
+    boolean sawBatch = false;
+    for (int w = 0; w < EXPLORE_INTERVAL * 3; w++) {
+      runWindow(controller, nanosPerRequest);
+      if (w > EXPLORE_INTERVAL + 1) {
+        sawFanOut |= controller.isFanOut();
+        sawBatch |= !controller.isFanOut();
+      }
+    }
+    assertThat(sawFanOut).isTrue();
+    // The batch mode is still tried from time to time.
+    assertThat(sawBatch).isTrue();
+  }
+
+  @Test
+  void should_compare_throughput_of_concurrent_single_statements() {
+    AdaptiveBatchController controller = newController(32);
+    // A single statement takes 50us, twice the time per record of a batch, but 100 of them are in
+    // flight at once: one completes every 0.5us, while batches of 32 complete every 32us.
+    long singleStatementLatency = 50_000;
+    IntToLongFunction nanosBetweenCompletions =
+        size -> size == 1 ? singleStatementLatency / 100 : size * 1_000L;
+    assertThat(singleStatementLatency).isGreaterThan(nanosBetweenCompletions.applyAsLong(32) / 32);
+    int fanOutWindows = 0;
+    for (int w = 0; w < EXPLORE_INTERVAL * 3; w++) {
+      runWindow(controller, nanosBetweenCompletions);
+      if (controller.isFanOut()) {
+        fanOutWindows++;
+      }
+    }
+    // Fan-out is first tried after EXPLORE_INTERVAL windows, then kept but for explorations.
+    assertThat(fanOutWindows).isGreaterThan(EXPLORE_INTERVAL);
+  }
+
+  private AdaptiveBatchController newController(int maxBatchSize) {
+    return new AdaptiveBatchController(maxBatchSize, nanoTime::get);
+  }
+
+  /** Completes a window of requests, each the given time after the previous one. */
+  private void runWindow(AdaptiveBatchController controller, IntToLongFunction nanosPerRequest) {
+    for (int i = 0; i < WINDOW_SIZE; i++) {
+      int size = controller.isFanOut() ? 1 : controller.getBatchSize();
+      nanoTime.addAndGet(nanosPerRequest.applyAsLong(size));
+      controller.onRequestCompleted(size, null);
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.ConcurrencyLimiterPolicy;
+import com.datastax.oss.driver.api.core.metadata.EndPoint;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class AdmissionControllerTest {
+  private final MetricRegistry registry = new MetricRegistry();
+  private final Node node1 = node("127_0_0_1:9042");
+  private final Node node2 = node("127_0_0_2:9042");
+
+  @Test
+  void should_limit_per_table_without_holding_global_permits() throws InterruptedException {
+    AdmissionController controller = newController(10, 1, 0);
+    AdmissionController.Permit permit = controller.acquire("ks.hot", null);
+
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            () -> {
+              controller.acquire("ks.hot", null);
+              acquired.countDown();
+            });
+    thread.start();
+    assertThat(acquired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    // Another table is not held back, and the waiting request holds no global permit.
+    controller.acquire("ks.cold", null);
+    assertThat(controller.getGlobalLimiter().getInFlight()).isEqualTo(2);
+    assertThat(gauge("admission/table/ks.hot/permitsHeld")).isEqualTo(1);
+    assertThat(gauge("admission/table/ks.cold/permitsHeld")).isEqualTo(1);
+
+    permit.release(1_000_000, null);
+    assertThat(acquired.await(10, TimeUnit.SECONDS)).isTrue();
+    thread.join();
+    assertThat(controller.getGlobalLimiter().getInFlight()).isEqualTo(2);
+  }
+
+  @Test
+  void should_limit_per_replica_node() throws InterruptedException {
+    AdmissionController controller = newController(10, 0, 1);
+    assertThat(controller.isNodeLimited()).isTrue();
+    AdmissionController.Permit permit = controller.acquire("ks.t", ImmutableSet.of(node1));
+    assertThat(gauge("admission/node/127_0_0_1:9042/permitsHeld")).isEqualTo(1);
+
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            () -> {
+              controller.acquire("ks.t", ImmutableSet.of(node2, node1));
+              acquired.countDown();
+            });
+    thread.start();
+    assertThat(acquired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    // Unknown replicas are only limited globally.
+    controller.acquire("ks.t", null);
+
+    permit.release(1_000_000, null);
+    assertThat(acquired.await(10, TimeUnit.SECONDS)).isTrue();
+    thread.join();
+    assertThat(gauge("admission/node/127_0_0_1:9042/permitsHeld")).isEqualTo(1);
+    assertThat(gauge("admission/node/127_0_0_2:9042/permitsHeld")).isEqualTo(1);
+  }
+
+  @Test
+  void should_only_limit_globally_by_default() {
+    AdmissionController controller = newController(2, 0, 0);
+    assertThat(controller.isNodeLimited()).isFalse();
+    controller.acquire("ks.t", ImmutableSet.of(node1)).release(1_000_000, null);
+    controller.acquire("ks.t", ImmutableSet.of(node1));
+    controller.acquire("ks.t", ImmutableSet.of(node1));
+    assertThat(controller.getGlobalLimiter().getInFlight()).isEqualTo(2);
+    assertThat(registry.getGauges()).isEmpty();
+  }
+
+  @Test
+  void should_give_up_acquiring_after_timeout() {
+    AdmissionController controller = newController(2, 1, 1);
+    AdmissionController.Permit permit = controller.acquire("ks.t", ImmutableSet.of(node1));
+
+    assertThat(controller.tryAcquire("ks.t", null, TimeUnit.MILLISECONDS.toNanos(10))).isNull();
+    // The permits of the other levels are given back.
+    assertThat(controller.tryAcquire("ks.u", ImmutableSet.of(node1), 0)).isNull();
+    assertThat(gauge("admission/table/ks.u/permitsHeld")).isEqualTo(0);
+    assertThat(controller.tryAcquire("ks.u", ImmutableSet.of(node2), 0)).isNotNull();
+    assertThat(controller.tryAcquire("ks.v", ImmutableSet.of(node1), 0)).isNull();
+    assertThat(gauge("admission/table/ks.v/permitsHeld")).isEqualTo(0);
+    assertThat(controller.getGlobalLimiter().getInFlight()).isEqualTo(2);
+
+    permit.release(1_000_000, null);
+    controller.acquire("ks.w", null);
+    // Only the global limit is reached now.
+    assertThat(controller.tryAcquire("ks.v", ImmutableSet.of(node1), 0)).isNull();
+    assertThat(gauge("admission/table/ks.v/permitsHeld")).isEqualTo(0);
+    assertThat(gauge("admission/node/127_0_0_1:9042/permitsHeld")).isEqualTo(0);
+  }
+
+  @Test
+  void should_admit_asynchronously_without_holding_back_other_tables() {
+    AdmissionController controller = newController(10, 1, 0);
+    CompletableFuture<AdmissionController.Permit> first = controller.acquireAsync("ks.hot", null);
+    assertThat(first).isCompleted();
+
+    CompletableFuture<AdmissionController.Permit> second = controller.acquireAsync("ks.hot", null);
+    CompletableFuture<AdmissionController.Permit> third = controller.acquireAsync("ks.hot", null);
+    assertThat(second).isNotDone();
+    // Another table goes ahead, and the waiting requests hold no global permit.
+    assertThat(controller.acquireAsync("ks.cold", null)).isCompleted();
+    assertThat(controller.getGlobalLimiter().getInFlight()).isEqualTo(2);
+
+    // Requests for the same table are admitted in order.
+    first.join().release(1_000_000, null);
+    assertThat(second).isCompleted();
+    assertThat(third).isNotDone();
+    second.join().release(1_000_000, null);
+    assertThat(third).isCompleted();
+    assertThat(controller.getGlobalLimiter().getInFlight()).isEqualTo(2);
+  }
+
+  @Test
+  void should_admit_asynchronously_once_global_permits_are_released() {
+    AdmissionController controller = newController(1, 0, 1);
+    AdmissionController.Permit permit = controller.acquireAsync("ks.t", null).join();
+
+    CompletableFuture<AdmissionController.Permit> cancelled =
+        controller.acquireAsync("ks.t", ImmutableSet.of(node1));
+    CompletableFuture<AdmissionController.Permit> waiting =
+        controller.acquireAsync("ks.u", ImmutableSet.of(node1));
+    assertThat(cancelled).isNotDone();
+    assertThat(gauge("admission/node/127_0_0_1:9042/permitsHeld")).isEqualTo(0);
+    cancelled.cancel(false);
+
+    // A request that stopped waiting is skipped.
+    permit.release(1_000_000, null);
+    assertThat(waiting).isCompleted();
+    assertThat(gauge("admission/node/127_0_0_1:9042/permitsHeld")).isEqualTo(1);
+    assertThat(controller.getGlobalLimiter().getInFlight()).isEqualTo(1);
+
+    // A permit that is not used is given back.
+    waiting.join().discard();
+    assertThat(gauge("admission/node/127_0_0_1:9042/permitsHeld")).isEqualTo(0);
+    assertThat(controller.getGlobalLimiter().getInFlight()).isEqualTo(0);
+  }
+
+  private AdmissionController newController(int global, int perTable, int perNode) {
+    return new AdmissionController(
+        ConcurrencyLimiter.create(ConcurrencyLimiterPolicy.FIXED, global, global),
+        perTable,
+        perNode,
+        registry);
+  }
+
+  private int gauge(String name) {
+    Gauge<?> gauge = registry.getGauges().get(name);
+    assertThat(gauge).isNotNull();
+    return (Integer) gauge.getValue();
+  }
+
+  private static Node node(String name) {
+    Node node = mock(Node.class);
+    EndPoint endPoint = mock(EndPoint.class);
+    when(endPoint.asMetricPrefix()).thenReturn(name);
+    when(node.getEndPoint()).thenReturn(endPoint);
+    return node;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.ConcurrencyLimiterPolicy;
+import com.datastax.oss.common.sink.metrics.MetricNamesCreator;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.servererrors.OverloadedException;
+import com.datastax.oss.driver.api.core.servererrors.SyntaxError;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyLimiterTest {
+  private static final long MILLIS = 1_000_000;
+
+  @Test
+  void should_block_until_permit_released() throws InterruptedException {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.create(ConcurrencyLimiterPolicy.FIXED, 1, 10);
+    MetricRegistry registry = new MetricRegistry();
+    limiter.initializeMetrics(registry);
+    limiter.acquire();
+    assertThat(limiter.getInFlight()).isEqualTo(1);
+
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            () -> {
+              limiter.acquire();
+              acquired.countDown();
+            });
+    thread.start();
+    assertThat(acquired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    limiter.release(MILLIS, new DriverTimeoutException("timeout"));
+    assertThat(acquired.await(10, TimeUnit.SECONDS)).isTrue();
+    thread.join();
+
+    // The fixed policy never changes the limit.
+    assertThat(limiter.getLimit()).isEqualTo(1);
+    assertThat(
+            registry
+                .getGauges()
+                .get(MetricNamesCreator.createConcurrencyLimitMetricName())
+                .getValue())
+        .isEqualTo(1);
+    assertThat(
+            registry
+                .getGauges()
+                .get(MetricNamesCreator.createInFlightRequestsMetricName())
+                .getValue())
+        .isEqualTo(1);
+    assertThat(registry.timer(MetricNamesCreator.createConcurrencyLimitWaitMetricName()).getCount())
+        .isEqualTo(2);
+  }
+
+  @Test
+  void should_classify_overload_errors() {
+    assertThat(ConcurrencyLimiter.isOverload(null)).isFalse();
+    assertThat(ConcurrencyLimiter.isOverload(new DriverTimeoutException("timeout"))).isTrue();
+    assertThat(
+            ConcurrencyLimiter.isOverload(
+                new CompletionException(new OverloadedException(mock(Node.class)))))
+        .isTrue();
+    assertThat(ConcurrencyLimiter.isOverload(new SyntaxError(mock(Node.class), "bad query")))
+        .isFalse();
+  }
+
+  @Test
+  void should_increase_and_decrease_aimd_limit() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.create(ConcurrencyLimiterPolicy.AIMD, 10, 12);
+    for (int i = 0; i < 5; i++) {
+      run(limiter, 10, MILLIS, null);
+    }
+    // Capped by the maximum limit.
+    assertThat(limiter.getLimit()).isEqualTo(12);
+    limiter.acquire();
+    limiter.release(MILLIS, new DriverTimeoutException("timeout"));
+    assertThat(limiter.getLimit()).isEqualTo(10);
+  }
+
+  @Test
+  void should_not_increase_aimd_limit_when_not_used() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.create(ConcurrencyLimiterPolicy.AIMD, 10, 100);
+    for (int i = 0; i < 5; i++) {
+      run(limiter, 1, MILLIS, null);
+    }
+    assertThat(limiter.getLimit()).isEqualTo(10);
+  }
+
+  @Test
+  void should_decrease_gradient_limit_when_latency_increases() {
+    ConcurrencyLimiter limiter =
+        ConcurrencyLimiter.create(ConcurrencyLimiterPolicy.GRADIENT, 100, 1000);
+    for (int i = 0; i < 20; i++) {
+      run(limiter, 100, MILLIS, null);
+    }
+    int steady = limiter.getLimit();
+    // With a flat latency the limit grows.
+    assertThat(steady).isGreaterThan(100);
+    run(limiter, limiter.getLimit(), 10 * MILLIS, null);
+    assertThat(limiter.getLimit()).isLessThan(steady);
+  }
+
+  @Test
+  void should_track_vegas_queue_size() {
+    ConcurrencyLimiter limiter =
+        ConcurrencyLimiter.create(ConcurrencyLimiterPolicy.VEGAS, 100, 1000);
+    run(limiter, 100, MILLIS, null);
+    int unloaded = limiter.getLimit();
+    assertThat(unloaded).isGreaterThan(100);
+    // Latency doubles: about half of the requests are queued.
+    for (int i = 0; i < 5; i++) {
+      run(limiter, limiter.getLimit(), 2 * MILLIS, null);
+    }
+    assertThat(limiter.getLimit()).isLessThan(unloaded);
+    int loaded = limiter.getLimit();
+    limiter.acquire();
+    limiter.release(MILLIS, new DriverTimeoutException("timeout"));
+    assertThat(limiter.getLimit()).isLessThan(loaded);
+  }
+
+  /** Send the given number of concurrent requests, and complete them. */
+  private static void run(
+      ConcurrencyLimiter limiter, int requests, long rttNanos, Throwable error) {
+    for (int i = 0; i < requests; i++) {
+      limiter.acquire();
+    }
+    for (int i = 0; i < requests; i++) {
+      limiter.release(rttNanos, error);
+    }
+  }
+}
@@ -16,20 +16,29 @@
 package com.datastax.oss.common.sink.state;
 
 import static com.datastax.oss.common.sink.config.TableConfig.MAPPING_OPT;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.common.sink.AbstractSinkTask;
 import com.datastax.oss.common.sink.config.CassandraSinkConfig;
 import com.datastax.oss.common.sink.config.TableConfig;
 import com.datastax.oss.common.sink.config.TableConfigBuilder;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
 import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinition;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.type.DataType;
+import com.datastax.oss.driver.api.core.type.DataTypes;
 import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableList;
 import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableMap;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import org.assertj.core.api.ThrowableAssert;
 import org.junit.jupiter.api.Test;
 
@@ -37,6 +46,10 @@ class InstanceStateTest {
   private CassandraSinkConfig config = mock(CassandraSinkConfig.class);
   private CqlSession session = mock(CqlSession.class);
 
+  {
+    when(config.getCompletionThreads()).thenReturn(1);
+  }
+
   private Map<String, TopicState> topicStates = new HashMap<>();
   private InstanceState instanceState =
       new InstanceState(config, session, topicStates, new MetricRegistry());
@@ -105,4 +118,63 @@ class InstanceStateTest {
     // then metrics should not reset
     assertEquals(instanceState2.getRecordCounter("t1", "ks.tb"), 1);
   }
+
+  @Test
+  void should_decode_doubles_for_fields_only_written_to_floating_point_columns() {
+    TopicState topicState = new TopicState(null);
+    topicState.createRecordMapper(
+        new TableConfigBuilder("t1", "ks", "tb1", false)
+            .addSimpleSetting(MAPPING_OPT, "d=value.d, f=key.f, x=value.x")
+            .build(),
+        ImmutableList.of(),
+        prepared(
+            ImmutableMap.of("d", DataTypes.DOUBLE, "f", DataTypes.FLOAT, "x", DataTypes.DOUBLE)),
+        null);
+    topicState.createRecordMapper(
+        new TableConfigBuilder("t1", "ks", "tb2", false)
+            .addSimpleSetting(MAPPING_OPT, "d=value.d, x=value.x")
+            .build(),
+        ImmutableList.of(),
+        prepared(ImmutableMap.of("d", DataTypes.FLOAT, "x", DataTypes.DECIMAL)),
+        null);
+    InstanceState instanceState =
+        new InstanceState(config, session, ImmutableMap.of("t1", topicState), new MetricRegistry());
+
+    assertThat(instanceState.getDoubleKeyFields("t1")).containsOnly("f");
+    // x is also written to a decimal column: it must stay exact.
+    assertThat(instanceState.getDoubleValueFields("t1")).containsOnly("d");
+  }
+
+  @Test
+  void should_shut_down_executors_when_last_task_unregisters() {
+    when(config.isSplitFailedBatches()).thenReturn(true);
+    when(config.getSplitRetryDelayMs()).thenReturn(100);
+    InstanceState instanceState =
+        new InstanceState(config, session, topicStates, new MetricRegistry());
+    AbstractSinkTask task1 = mock(AbstractSinkTask.class);
+    AbstractSinkTask task2 = mock(AbstractSinkTask.class);
+    instanceState.registerTask(task1);
+    instanceState.registerTask(task2);
+
+    assertThat(instanceState.unregisterTaskAndCheckIfLast(task1)).isFalse();
+    assertThat(((ExecutorService) instanceState.getCompletionExecutor()).isShutdown()).isFalse();
+    assertThat(instanceState.unregisterTaskAndCheckIfLast(task2)).isTrue();
+    assertThat(((ExecutorService) instanceState.getCompletionExecutor()).isShutdown()).isTrue();
+    assertThat(instanceState.getRetryScheduler().isShutdown()).isTrue();
+  }
+
+  private static PreparedStatement prepared(Map<String, DataType> columnTypes) {
+    ColumnDefinitions variables = mock(ColumnDefinitions.class);
+    columnTypes.forEach(
+        (name, type) -> {
+          CqlIdentifier column = CqlIdentifier.fromInternal(name);
+          ColumnDefinition definition = mock(ColumnDefinition.class);
+          when(definition.getType()).thenReturn(type);
+          when(variables.contains(column)).thenReturn(true);
+          when(variables.get(column)).thenReturn(definition);
+        });
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    when(prepared.getVariableDefinitions()).thenReturn(variables);
+    return prepared;
+  }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.ConcurrencyLimiterPolicy;
+import com.datastax.oss.common.sink.metrics.MetricNamesCreator;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.NoNodeAvailableException;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.servererrors.InvalidQueryException;
+import com.datastax.oss.driver.internal.core.util.concurrent.CompletableFutures;
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SpillDrainerTest {
+  private static final String INSERT = "INSERT INTO ks.t(pk) VALUES (:pk)";
+
+  @TempDir Path directory;
+
+  private final MetricRegistry registry = new MetricRegistry();
+  private final CqlSession session = mock(CqlSession.class);
+
+  @Test
+  void should_retry_while_cluster_is_unreachable() throws Exception {
+    SpillLog spillLog = spillLog(2);
+    when(session.executeAsync(any(Statement.class)))
+        .thenReturn(CompletableFutures.failedFuture(new NoNodeAvailableException()))
+        .thenReturn(CompletableFutures.failedFuture(new NoNodeAvailableException()))
+        .thenReturn(CompletableFuture.completedFuture(mock(AsyncResultSet.class)));
+    SpillDrainer drainer = drainer(spillLog, 10);
+
+    // Exponential backoff on the same statement.
+    assertThat(drainer.replayNext()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    assertThat(drainer.replayNext()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+    assertThat(spillLog.getSizeInBytes()).isPositive();
+    // Then at the given rate.
+    assertThat(drainer.replayNext()).isBetween(0L, TimeUnit.MILLISECONDS.toNanos(100));
+    assertThat(registry.meter(MetricNamesCreator.createReplayedStatementsMetricName()).getCount())
+        .isEqualTo(1);
+    assertThat(spillLog.peek()).isNotNull();
+    // The query is only prepared once.
+    verify(session, times(1)).prepare(INSERT);
+  }
+
+  @Test
+  void should_drop_statements_failing_for_other_reasons() throws Exception {
+    SpillLog spillLog = spillLog(1);
+    when(session.executeAsync(any(Statement.class)))
+        .thenReturn(
+            CompletableFutures.failedFuture(
+                new InvalidQueryException(mock(Node.class), "invalid")));
+    SpillDrainer drainer = drainer(spillLog, 1000);
+
+    drainer.replayNext();
+    assertThat(spillLog.peek()).isNull();
+    assertThat(registry.meter(MetricNamesCreator.createFailedReplaysMetricName()).getCount())
+        .isEqualTo(1);
+    assertThat(registry.meter(MetricNamesCreator.createReplayedStatementsMetricName()).getCount())
+        .isZero();
+  }
+
+  private SpillLog spillLog(int statements) throws IOException {
+    SpillLog spillLog = new SpillLog(directory, 1024 * 1024, 1024, registry);
+    for (int pk = 0; pk < statements; pk++) {
+      PreparedStatement prepared = mock(PreparedStatement.class);
+      when(prepared.getQuery()).thenReturn(INSERT);
+      BoundStatement statement = mock(BoundStatement.class);
+      when(statement.getPreparedStatement()).thenReturn(prepared);
+      when(statement.size()).thenReturn(1);
+      when(statement.isSet(0)).thenReturn(true);
+      when(statement.getBytesUnsafe(0)).thenReturn(ByteBuffer.wrap(new byte[] {(byte) pk}));
+      when(statement.getQueryTimestamp()).thenReturn(Statement.NO_DEFAULT_TIMESTAMP);
+      spillLog.append(ImmutableList.of(statement), "ks.t");
+    }
+    return spillLog;
+  }
+
+  private SpillDrainer drainer(SpillLog spillLog, int maxStatementsPerSecond) {
+    BoundStatementBuilder builder = mock(BoundStatementBuilder.class, RETURNS_SELF);
+    when(builder.build()).thenReturn(mock(BoundStatement.class));
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    when(prepared.boundStatementBuilder()).thenReturn(builder);
+    when(session.prepare(INSERT)).thenReturn(prepared);
+    AdmissionController admissionController =
+        new AdmissionController(
+            ConcurrencyLimiter.create(ConcurrencyLimiterPolicy.FIXED, 1, 1), 0, 0, registry);
+    return new SpillDrainer(
+        spillLog, session, admissionController, maxStatementsPerSecond, registry);
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.common.sink.metrics.MetricNamesCreator;
+import com.datastax.oss.driver.api.core.DefaultConsistencyLevel;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.shaded.guava.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SpillLogTest {
+  private static final String INSERT = "INSERT INTO ks.t(pk,v) VALUES (:pk,:v)";
+
+  @TempDir Path directory;
+
+  private final MetricRegistry registry = new MetricRegistry();
+
+  @Test
+  void should_replay_statements_in_order() throws IOException {
+    SpillLog spillLog = new SpillLog(directory, 1024 * 1024, 1024, registry);
+    assertThat(spillLog.peek()).isNull();
+    assertThat(spillLog.append(ImmutableList.of(statement(1), statement(2)), "ks.t")).isTrue();
+    assertThat(spillLog.append(ImmutableList.of(statement(3)), "ks.t")).isTrue();
+    assertThat(registry.meter(MetricNamesCreator.createSpilledStatementsMetricName()).getCount())
+        .isEqualTo(3);
+
+    for (int pk = 1; pk <= 3; pk++) {
+      SpilledStatement spilled = spillLog.peek();
+      assertThat(spilled).isNotNull();
+      // Returned again until removed.
+      assertThat(spillLog.peek().getQuery()).isEqualTo(INSERT);
+      assertThat(spilled.getKeyspaceAndTable()).isEqualTo("ks.t");
+      assertThat(pk(spilled)).isEqualTo(pk);
+      spillLog.remove();
+    }
+    assertThat(spillLog.peek()).isNull();
+    assertThat(spillLog.getSizeInBytes()).isZero();
+    // Replayed segments are deleted.
+    assertThat(segmentFiles()).isZero();
+  }
+
+  @Test
+  void should_bind_spilled_statements() throws IOException {
+    SpillLog spillLog = new SpillLog(directory, 1024 * 1024, 1024, registry);
+    BoundStatement statement = statement(1);
+    when(statement.getConsistencyLevel()).thenReturn(DefaultConsistencyLevel.LOCAL_QUORUM);
+    when(statement.getQueryTimestamp()).thenReturn(1234L);
+    spillLog.append(ImmutableList.of(statement), "ks.t");
+
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    BoundStatementBuilder builder = mock(BoundStatementBuilder.class, RETURNS_SELF);
+    when(prepared.boundStatementBuilder()).thenReturn(builder);
+    spillLog.peek().bind(prepared);
+
+    verify(builder).setBytesUnsafe(0, ByteBuffer.wrap(new byte[] {1}));
+    // The null value is set, the unset one is not.
+    verify(builder).setBytesUnsafe(1, null);
+    verify(builder).setConsistencyLevel(DefaultConsistencyLevel.LOCAL_QUORUM);
+    verify(builder).setQueryTimestamp(1234L);
+    verify(builder).setIdempotence(true);
+  }
+
+  @Test
+  void should_not_exceed_max_size() throws IOException {
+    // Two segments holding three statements each.
+    SpillLog spillLog = new SpillLog(directory, 2 * 256, 256, registry);
+    for (int pk = 0; pk < 6; pk++) {
+      assertThat(spillLog.append(ImmutableList.of(statement(pk)), "ks.t")).isTrue();
+    }
+    assertThat(spillLog.getSegmentCount()).isEqualTo(2);
+    assertThat(spillLog.append(ImmutableList.of(statement(6)), "ks.t")).isFalse();
+
+    // Room is made as segments are replayed.
+    for (int pk = 0; pk < 3; pk++) {
+      spillLog.peek();
+      spillLog.remove();
+    }
+    assertThat(spillLog.peek()).isNotNull();
+    assertThat(spillLog.getSegmentCount()).isEqualTo(1);
+    // All or none of the statements are written.
+    assertThat(
+            spillLog.append(
+                ImmutableList.of(statement(6), statement(7), statement(8), statement(9)), "ks.t"))
+        .isFalse();
+    assertThat(spillLog.append(ImmutableList.of(statement(6), statement(7), statement(8)), "ks.t"))
+        .isTrue();
+  }
+
+  @Test
+  void should_replay_statements_spilled_before_restart() throws IOException {
+    SpillLog spillLog = new SpillLog(directory, 1024 * 1024, 256, registry);
+    for (int pk = 0; pk < 5; pk++) {
+      spillLog.append(ImmutableList.of(statement(pk)), "ks.t");
+    }
+    spillLog.close();
+
+    // Segments left by the previous run are never written to, even if they had room left or the
+    // segment size changed.
+    SpillLog reopened = new SpillLog(directory, 1024 * 1024, 1024, registry);
+    assertThat(reopened.getSizeInBytes()).isEqualTo(spillLog.getSizeInBytes());
+    int previousSegments = reopened.getSegmentCount();
+    for (int pk = 5; pk < 10; pk++) {
+      assertThat(reopened.append(ImmutableList.of(statement(pk)), "ks.t")).isTrue();
+    }
+    assertThat(reopened.getSegmentCount()).isEqualTo(previousSegments + 1);
+    // New statements go after the replayed ones.
+    for (int pk = 0; pk < 10; pk++) {
+      assertThat(pk(reopened.peek())).isEqualTo(pk);
+      reopened.remove();
+    }
+    assertThat(reopened.peek()).isNull();
+    assertThat(segmentFiles()).isZero();
+  }
+
+  @Test
+  void should_skip_corrupt_statements() throws IOException {
+    SpillLog spillLog = new SpillLog(directory, 1024 * 1024, 1024, registry);
+    spillLog.append(ImmutableList.of(statement(1), statement(2)), "ks.t");
+    long sizeInBytes = spillLog.getSizeInBytes();
+    spillLog.close();
+    // Make the first entry claim a table name longer than itself.
+    Path segment;
+    try (Stream<Path> files = Files.list(directory)) {
+      segment = files.findFirst().orElseThrow(IllegalStateException::new);
+    }
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE), 4);
+    }
+
+    SpillLog reopened = new SpillLog(directory, 1024 * 1024, 1024, registry);
+    assertThat(pk(reopened.peek())).isEqualTo(2);
+    assertThat(reopened.getSizeInBytes()).isEqualTo(sizeInBytes / 2);
+    reopened.remove();
+    assertThat(reopened.peek()).isNull();
+  }
+
+  private long segmentFiles() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.count();
+    }
+  }
+
+  private static int pk(SpilledStatement spilled) {
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    BoundStatementBuilder builder = mock(BoundStatementBuilder.class, RETURNS_SELF);
+    when(prepared.boundStatementBuilder()).thenReturn(builder);
+    int[] pk = new int[1];
+    when(builder.setBytesUnsafe(anyInt(), any()))
+        .thenAnswer(
+            i -> {
+              if ((Integer) i.getArgument(0) == 0) {
+                pk[0] = ((ByteBuffer) i.getArgument(1)).get(0);
+              }
+              return builder;
+            });
+    spilled.bind(prepared);
+    return pk[0];
+  }
+
+  /** An insert with pk set, v set to null and a third variable unset. */
+  private static BoundStatement statement(int pk) {
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    when(prepared.getQuery()).thenReturn(INSERT);
+    BoundStatement statement = mock(BoundStatement.class);
+    when(statement.getPreparedStatement()).thenReturn(prepared);
+    when(statement.size()).thenReturn(3);
+    when(statement.isSet(0)).thenReturn(true);
+    when(statement.isSet(1)).thenReturn(true);
+    when(statement.getBytesUnsafe(0)).thenReturn(ByteBuffer.wrap(new byte[] {(byte) pk}));
+    when(statement.getQueryTimestamp()).thenReturn(Statement.NO_DEFAULT_TIMESTAMP);
+    return statement;
+  }
+}
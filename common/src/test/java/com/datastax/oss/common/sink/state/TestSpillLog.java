@@ -0,0 +1,45 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.common.sink.state;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.common.sink.config.CassandraSinkConfig.ConcurrencyLimiterPolicy;
+import com.datastax.oss.driver.api.core.CqlSession;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/** Opens and drains spill logs for the tests of other packages. */
+public final class TestSpillLog {
+
+  private TestSpillLog() {}
+
+  public static SpillLog open(Path directory) throws IOException {
+    return new SpillLog(directory, 1024 * 1024, 1024, new MetricRegistry());
+  }
+
+  /** Replay every statement of the given log, waiting for each of them to complete. */
+  public static void drain(SpillLog spillLog, CqlSession session) throws InterruptedException {
+    MetricRegistry registry = new MetricRegistry();
+    AdmissionController admissionController =
+        new AdmissionController(
+            ConcurrencyLimiter.create(ConcurrencyLimiterPolicy.FIXED, 1, 1), 0, 0, registry);
+    SpillDrainer drainer =
+        new SpillDrainer(spillLog, session, admissionController, Integer.MAX_VALUE, registry);
+    while (spillLog.peek() != null) {
+      drainer.replayNext();
+    }
+  }
+}